@@ -13,6 +13,7 @@ CREATE TABLE users (
     email VARCHAR(100) NOT NULL UNIQUE,
     full_name VARCHAR(100),
     storage_used BIGINT DEFAULT 0,
+    storage_reserved BIGINT NOT NULL DEFAULT 0, -- held by uploads in progress
     storage_limit BIGINT DEFAULT 5368709120, -- 5GB default
     created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
     updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP
@@ -24,6 +25,12 @@ CREATE TABLE directories (
     directory_name VARCHAR(255) NOT NULL,
     owner_id INT NOT NULL,
     parent_directory_id INT,
+    -- Ancestor ids, root first ("/1/5/"); a root directory has "/"
+    tree_path VARCHAR(768),
+    depth INT,
+    -- Bytes and number of files in the directory and everything below it
+    total_size BIGINT NOT NULL DEFAULT 0,
+    file_count BIGINT NOT NULL DEFAULT 0,
     created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
     updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
     FOREIGN KEY (owner_id) REFERENCES users(user_id) ON DELETE CASCADE,
@@ -36,6 +43,9 @@ CREATE TABLE files (
     file_name VARCHAR(255) NOT NULL,
     file_type VARCHAR(50),
     file_size BIGINT NOT NULL,
+    stored_size BIGINT,
+    content_encoding VARCHAR(16),
+    content_digest CHAR(64),
     file_path VARCHAR(500) NOT NULL,
     owner_id INT NOT NULL,
     directory_id INT,
@@ -58,17 +68,50 @@ CREATE TABLE shared_items (
     FOREIGN KEY (shared_with_id) REFERENCES users(user_id) ON DELETE CASCADE
 );
 
+-- Content-addressed chunks shared by stored files (file_path points at a manifest)
+CREATE TABLE blob_chunks (
+    chunk_hash CHAR(64) PRIMARY KEY,
+    chunk_size BIGINT NOT NULL,
+    ref_count BIGINT NOT NULL,
+    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+);
+
+-- Blobs being written for uploads and not yet referenced by a file
+CREATE TABLE staged_blobs (
+    blob_key VARCHAR(64) PRIMARY KEY,
+    user_id INT NOT NULL,
+    created_at TIMESTAMP NOT NULL
+);
+
+-- Content of deleted files, released in the background
+CREATE TABLE blob_tombstones (
+    tombstone_id BIGINT AUTO_INCREMENT PRIMARY KEY,
+    blob_key VARCHAR(500) NOT NULL,
+    created_at TIMESTAMP NOT NULL
+);
+
 -- Add indexes for better performance
 CREATE INDEX idx_directories_parent ON directories(parent_directory_id);
 CREATE INDEX idx_files_directory ON files(directory_id);
-CREATE INDEX idx_files_owner ON files(owner_id);
+CREATE INDEX idx_files_path ON files(file_path);
+-- Keyset-paginated listings, one per sort key, per directory and across all
+CREATE INDEX idx_files_owner_dir_name ON files(owner_id, directory_id, file_name);
+CREATE INDEX idx_files_owner_dir_size ON files(owner_id, directory_id, file_size);
+CREATE INDEX idx_files_owner_dir_created ON files(owner_id, directory_id, created_at);
+CREATE INDEX idx_files_owner_dir_type ON files(owner_id, directory_id, file_type);
+CREATE INDEX idx_files_owner_name ON files(owner_id, file_name);
+CREATE INDEX idx_files_owner_size ON files(owner_id, file_size);
+CREATE INDEX idx_files_owner_created ON files(owner_id, created_at);
+CREATE INDEX idx_files_owner_type ON files(owner_id, file_type);
 CREATE INDEX idx_directories_owner ON directories(owner_id);
+CREATE INDEX idx_directories_tree_path ON directories(tree_path);
 CREATE INDEX idx_shared_items_shared_with ON shared_items(shared_with_id);
+CREATE INDEX idx_staged_blobs_created ON staged_blobs(created_at);
 
 -- Insert a test admin user (password: admin123)
 INSERT INTO users (username, password, email, full_name, storage_limit) 
 VALUES ('admin', '$2a$10$xJwW9PHx8.k1ixjNgQzFZu6.L.iLXw8oK.ZZyLWrN3Gg9dvHHWgDK', 'admin@mydrive.com', 'System Admin', 10737418240); -- 10GB
 
 -- Create root directory for admin
-INSERT INTO directories (directory_name, owner_id, parent_directory_id)
-VALUES ('Root', 1, NULL);
\ No newline at end of file
+INSERT INTO directories (directory_name, owner_id, parent_directory_id, tree_path, depth)
+VALUES ('Root', 1, NULL, '/', 0);
\ No newline at end of file
@@ -0,0 +1,30 @@
+package com.mydrive.demo.cache;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Invalidation of caches over data changed in a transaction
+ */
+public final class Invalidation {
+  private Invalidation() {
+  }
+
+  /**
+   * Run an invalidation now and again when the current transaction
+   * completes, whichever way it ends. A reader that loads between the two
+   * still sees the old rows; the second run keeps what it cached from
+   * outliving the commit.
+   */
+  public static void nowAndAfterCompletion(Runnable invalidation) {
+    invalidation.run();
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCompletion(int status) {
+          invalidation.run();
+        }
+      });
+    }
+  }
+}
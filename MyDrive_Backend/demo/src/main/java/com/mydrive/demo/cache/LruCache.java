@@ -0,0 +1,167 @@
+package com.mydrive.demo.cache;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Bounded, thread-safe map that evicts the least recently used entry once it
+ * is full, and counts hits, misses and evictions.
+ *
+ * Keys belong to groups (by default every key is its own group), and a group
+ * can be invalidated as a whole at the cost of its own size.
+ *
+ * Loads run outside the lock. An invalidation of a group that happens while
+ * a value of it is being loaded keeps that value out of the cache, so a load
+ * that read data from before a change can never outlive the invalidation for
+ * it. Loads of other groups are not affected.
+ */
+public class LruCache<K, V> {
+  private final String name;
+  private final int maxEntries;
+  private final Function<? super K, ?> groupOf;
+  private final Map<K, V> entries;
+  // Cached keys of each group
+  private final Map<Object, Set<K>> members = new HashMap<>();
+  // Groups with loads in flight; only those need to notice invalidations
+  private final Map<Object, PendingLoads> pending = new HashMap<>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong puts = new AtomicLong();
+  // Bumped by invalidateAll, which stops every load in flight
+  private long generation;
+
+  private static final class PendingLoads {
+    private int count;
+    private long generation;
+  }
+
+  public LruCache(String name, int maxEntries) {
+    this(name, maxEntries, key -> key);
+  }
+
+  public LruCache(String name, int maxEntries, Function<? super K, ?> groupOf) {
+    this.name = name;
+    this.maxEntries = maxEntries;
+    this.groupOf = groupOf;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        boolean evict = size() > LruCache.this.maxEntries;
+        if (evict) {
+          evictions.incrementAndGet();
+          forget(eldest.getKey());
+        }
+        return evict;
+      }
+    };
+  }
+
+  public V get(K key, Function<? super K, ? extends V> loader) {
+    Object group = groupOf.apply(key);
+    PendingLoads loads;
+    long loadGeneration;
+    long groupGeneration;
+    synchronized (this) {
+      V value = entries.get(key);
+      if (value != null) {
+        hits.incrementAndGet();
+        return value;
+      }
+      misses.incrementAndGet();
+      loads = pending.computeIfAbsent(group, g -> new PendingLoads());
+      loads.count++;
+      loadGeneration = generation;
+      groupGeneration = loads.generation;
+    }
+
+    V loaded = null;
+    try {
+      loaded = loader.apply(key);
+    } finally {
+      synchronized (this) {
+        if (loaded != null && generation == loadGeneration && loads.generation == groupGeneration) {
+          entries.put(key, loaded);
+          members.computeIfAbsent(group, g -> new HashSet<>()).add(key);
+          puts.incrementAndGet();
+        }
+        if (--loads.count == 0) {
+          pending.remove(group);
+        }
+      }
+    }
+    return loaded;
+  }
+
+  public synchronized V getIfPresent(K key) {
+    return entries.get(key);
+  }
+
+  public synchronized void invalidate(K key) {
+    stopLoads(groupOf.apply(key));
+    if (entries.remove(key) != null) {
+      forget(key);
+    }
+  }
+
+  /**
+   * Drop every entry of a group
+   */
+  public synchronized void invalidateGroup(Object group) {
+    stopLoads(group);
+    Set<K> keys = members.remove(group);
+    if (keys != null) {
+      keys.forEach(entries::remove);
+    }
+  }
+
+  public synchronized void invalidateAll() {
+    generation++;
+    entries.clear();
+    members.clear();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public long hitCount() {
+    return hits.get();
+  }
+
+  public long missCount() {
+    return misses.get();
+  }
+
+  public long evictionCount() {
+    return evictions.get();
+  }
+
+  public long putCount() {
+    return puts.get();
+  }
+
+  private void stopLoads(Object group) {
+    PendingLoads loads = pending.get(group);
+    if (loads != null) {
+      loads.generation++;
+    }
+  }
+
+  private void forget(K key) {
+    Object group = groupOf.apply(key);
+    Set<K> keys = members.get(group);
+    if (keys != null && keys.remove(key) && keys.isEmpty()) {
+      members.remove(group);
+    }
+  }
+}
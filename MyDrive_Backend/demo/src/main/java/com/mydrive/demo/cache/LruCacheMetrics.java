@@ -0,0 +1,45 @@
+package com.mydrive.demo.cache;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CacheMeterBinder;
+
+import java.util.List;
+
+/**
+ * Publishes the hit, miss, eviction and size counters of an LruCache under
+ * the standard {@code cache.*} meters
+ */
+public class LruCacheMetrics extends CacheMeterBinder<LruCache<?, ?>> {
+  public LruCacheMetrics(LruCache<?, ?> cache) {
+    super(cache, cache.getName(), List.of());
+  }
+
+  @Override
+  protected Long size() {
+    return (long) getCache().size();
+  }
+
+  @Override
+  protected long hitCount() {
+    return getCache().hitCount();
+  }
+
+  @Override
+  protected Long missCount() {
+    return getCache().missCount();
+  }
+
+  @Override
+  protected Long evictionCount() {
+    return getCache().evictionCount();
+  }
+
+  @Override
+  protected long putCount() {
+    return getCache().putCount();
+  }
+
+  @Override
+  protected void bindImplementationSpecificMetrics(MeterRegistry registry) {
+  }
+}
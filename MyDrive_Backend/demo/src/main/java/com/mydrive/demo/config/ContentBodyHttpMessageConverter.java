@@ -0,0 +1,57 @@
+package com.mydrive.demo.config;
+
+import com.mydrive.demo.controller.ContentBody;
+import com.mydrive.demo.storage.PhysicalRegion;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes ContentBody responses, transferring file regions channel to channel
+ */
+public class ContentBodyHttpMessageConverter extends AbstractHttpMessageConverter<ContentBody> {
+  public ContentBodyHttpMessageConverter() {
+    super(MediaType.ALL);
+  }
+
+  @Override
+  protected boolean supports(Class<?> clazz) {
+    return ContentBody.class.isAssignableFrom(clazz);
+  }
+
+  @Override
+  protected boolean canRead(MediaType mediaType) {
+    return false;
+  }
+
+  @Override
+  protected ContentBody readInternal(Class<? extends ContentBody> clazz, HttpInputMessage inputMessage) {
+    throw new HttpMessageNotReadableException("ContentBody is write-only", inputMessage);
+  }
+
+  @Override
+  protected void writeInternal(ContentBody body, HttpOutputMessage outputMessage) throws IOException {
+    OutputStream out = outputMessage.getBody();
+    WritableByteChannel target = Channels.newChannel(out);
+    for (Object segment : body.getSegments()) {
+      if (segment instanceof PhysicalRegion region) {
+        region.transferTo(target);
+      } else if (segment instanceof ContentBody.StreamSource source) {
+        try (InputStream in = source.open()) {
+          in.transferTo(out);
+        }
+      } else {
+        out.write((byte[]) segment);
+      }
+    }
+    out.flush();
+  }
+}
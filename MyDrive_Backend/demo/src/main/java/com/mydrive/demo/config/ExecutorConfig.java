@@ -0,0 +1,107 @@
+package com.mydrive.demo.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+@Configuration
+public class ExecutorConfig {
+  /**
+   * Bounded pool that writes folder uploads into the blob store. When the
+   * queue is full the submitting request thread does the work itself, which
+   * throttles a large upload instead of rejecting it.
+   */
+  @Bean
+  public ThreadPoolTaskExecutor ingestExecutor(
+      @Value("${file.ingest.threads:4}") int threads,
+      @Value("${file.ingest.queue-capacity:64}") int queueCapacity) {
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(threads);
+    executor.setMaxPoolSize(threads);
+    executor.setQueueCapacity(queueCapacity);
+    executor.setThreadNamePrefix("ingest-");
+    executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+    executor.initialize();
+    return executor;
+  }
+
+  /**
+   * Pool that runs password hashing, one thread per core by default: BCrypt
+   * is CPU-bound, so more threads would only contend. A full queue rejects
+   * the task, and the request is turned away instead of tying up a request
+   * thread.
+   */
+  @Bean
+  public ThreadPoolTaskExecutor passwordHashingExecutor(
+      @Value("${app.password-hashing.threads:0}") int threads,
+      @Value("${app.password-hashing.queue-capacity:32}") int queueCapacity) {
+    int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(poolSize);
+    executor.setMaxPoolSize(poolSize);
+    executor.setQueueCapacity(queueCapacity);
+    executor.setThreadNamePrefix("password-hashing-");
+    executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+    executor.initialize();
+    return executor;
+  }
+
+  /**
+   * Pool for the database writes that follow password hashing: storing a
+   * registered user and a rehashed password. Kept apart so hashing threads
+   * never wait on connections or inserts; a full queue rejects the write.
+   */
+  @Bean
+  public ThreadPoolTaskExecutor accountWriteExecutor(
+      @Value("${app.account-writes.threads:4}") int threads,
+      @Value("${app.account-writes.queue-capacity:256}") int queueCapacity) {
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(threads);
+    executor.setMaxPoolSize(threads);
+    executor.setQueueCapacity(queueCapacity);
+    executor.setThreadNamePrefix("account-write-");
+    executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+    executor.initialize();
+    return executor;
+  }
+
+  /**
+   * Thread that deletes directory subtrees too large to delete within the
+   * request. One at a time: each holds row locks, if only per batch.
+   */
+  @Bean
+  public ThreadPoolTaskExecutor subtreeDeleteExecutor(
+      @Value("${file.subtree-delete.queue-capacity:64}") int queueCapacity) {
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(1);
+    executor.setMaxPoolSize(1);
+    executor.setQueueCapacity(queueCapacity);
+    executor.setThreadNamePrefix("subtree-delete-");
+    executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+    executor.initialize();
+    return executor;
+  }
+
+  /**
+   * Pool that Spring MVC runs async handlers on, above all the streaming of
+   * directory archives. Declaring the executors above turns off the one
+   * Spring Boot would configure, and MVC would fall back to a new thread per
+   * request. The pool has no queue: once every thread is busy, a download
+   * streams on its own request thread, so threads stay bounded by the
+   * server's request pool.
+   */
+  @Bean
+  public ThreadPoolTaskExecutor mvcAsyncExecutor(@Value("${app.mvc-async.threads:8}") int threads) {
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(threads);
+    executor.setMaxPoolSize(threads);
+    executor.setQueueCapacity(0);
+    executor.setThreadNamePrefix("mvc-async-");
+    executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+    executor.initialize();
+    return executor;
+  }
+}
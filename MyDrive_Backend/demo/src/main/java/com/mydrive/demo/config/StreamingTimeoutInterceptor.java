@@ -0,0 +1,37 @@
+package com.mydrive.demo.config;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.async.AsyncWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Lifts the async request timeout for handlers that mark their request with
+ * {@link #extend}. Directory archives stream for as long as the subtree takes
+ * to write; every other async handler keeps spring.mvc.async.request-timeout.
+ */
+public class StreamingTimeoutInterceptor implements CallableProcessingInterceptor {
+  private static final String EXTENDED_ATTRIBUTE = StreamingTimeoutInterceptor.class.getName() + ".EXTENDED";
+
+  private final long timeoutMs;
+
+  public StreamingTimeoutInterceptor(long timeoutMs) {
+    this.timeoutMs = timeoutMs;
+  }
+
+  public static void extend(HttpServletRequest request) {
+    request.setAttribute(EXTENDED_ATTRIBUTE, Boolean.TRUE);
+  }
+
+  @Override
+  public <T> void beforeConcurrentHandling(NativeWebRequest request, Callable<T> task) {
+    // Runs before the async request starts, while its timeout can still change
+    if (request instanceof AsyncWebRequest asyncRequest
+        && request.getAttribute(EXTENDED_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST) != null) {
+      asyncRequest.setTimeout(timeoutMs);
+    }
+  }
+}
@@ -1,24 +1,53 @@
 package com.mydrive.demo.config;
 
+import com.mydrive.demo.security.CurrentUserArgumentResolver;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.method.support.HandlerMethodArgumentResolver;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
-import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
+import java.util.List;
+
 @Configuration
 public class WebConfig implements WebMvcConfigurer {
+  @Autowired
+  private CurrentUserArgumentResolver currentUserArgumentResolver;
+
+  @Autowired
+  @Qualifier("mvcAsyncExecutor")
+  private ThreadPoolTaskExecutor mvcAsyncExecutor;
+
+  @Value("${file.archive.request-timeout-ms:-1}")
+  private long archiveRequestTimeoutMs;
+
   @Override
   public void addCorsMappings(CorsRegistry registry) {
     registry.addMapping("/**")
         .allowedOrigins("*")
         .allowedMethods("GET", "POST", "PUT", "DELETE", "OPTIONS")
-        .allowedHeaders("Authorization", "Content-Type", "X-Requested-With")
+        .allowedHeaders("Authorization", "Content-Type", "X-Requested-With", "X-File-Size")
         .maxAge(3600);
   }
 
   @Override
-  public void addResourceHandlers(ResourceHandlerRegistry registry) {
-    registry.addResourceHandler("/uploads/**")
-        .addResourceLocations("file:upload-dir/");
+  public void addArgumentResolvers(List<HandlerMethodArgumentResolver> resolvers) {
+    resolvers.add(currentUserArgumentResolver);
+  }
+
+  @Override
+  public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+    converters.add(0, new ContentBodyHttpMessageConverter());
+  }
+
+  @Override
+  public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+    configurer.setTaskExecutor(mvcAsyncExecutor);
+    configurer.registerCallableInterceptors(new StreamingTimeoutInterceptor(archiveRequestTimeoutMs));
   }
 }
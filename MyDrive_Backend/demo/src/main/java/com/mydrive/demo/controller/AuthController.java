@@ -2,73 +2,153 @@ package com.mydrive.demo.controller;
 
 import com.mydrive.demo.entity.User;
 import com.mydrive.demo.security.JwtTokenProvider;
+import com.mydrive.demo.security.PasswordHasher;
 import com.mydrive.demo.service.UserService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
-import org.springframework.security.authentication.AuthenticationManager;
-import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
-import org.springframework.security.core.Authentication;
-import org.springframework.security.core.context.SecurityContextHolder;
-import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 
+/**
+ * Login and registration. Password hashing runs on PasswordHasher's pool and
+ * the response completes asynchronously, so request threads are never held
+ * by BCrypt; when the pool is saturated the request gets 503 with
+ * Retry-After at once. Database writes that follow a hash run on a separate
+ * pool, so the hashing threads only ever hash.
+ */
 @RestController
 @RequestMapping("/api/auth")
 public class AuthController {
-  @Autowired
-  private AuthenticationManager authenticationManager;
-
   @Autowired
   private JwtTokenProvider jwtTokenProvider;
 
   @Autowired
   private UserService userService;
 
+  @Autowired
+  private PasswordHasher passwordHasher;
+
+  @Autowired
+  @Qualifier("accountWriteExecutor")
+  private ThreadPoolTaskExecutor accountWriteExecutor;
+
+  @Value("${app.password-hashing.retry-after-seconds:1}")
+  private int retryAfterSeconds;
+
   @PostMapping("/login")
-  public ResponseEntity<?> login(@RequestBody Map<String, String> loginRequest) {
-    Authentication authentication = authenticationManager.authenticate(
-        new UsernamePasswordAuthenticationToken(
-            loginRequest.get("username"),
-            loginRequest.get("password"))
-    );
-
-    SecurityContextHolder.getContext().setAuthentication(authentication);
-    String jwt = jwtTokenProvider.generateToken((UserDetails) authentication.getPrincipal());
-
-    User user = userService.findByUsername(loginRequest.get("username")).orElseThrow();
-
-    Map<String, Object> response = new HashMap<>();
-    response.put("token", jwt);
-    response.put("id", user.getId());
-    response.put("username", user.getUsername());
-    response.put("email", user.getEmail());
-    response.put("fullName", user.getFullName());
-    response.put("storageUsed", user.getStorageUsed());
-    response.put("storageLimit", user.getStorageLimit());
-
-    return ResponseEntity.ok(response);
+  public CompletableFuture<ResponseEntity<?>> login(@RequestBody Map<String, String> loginRequest) {
+    String username = loginRequest.get("username");
+    String password = loginRequest.get("password");
+    if (username == null || password == null) {
+      return CompletableFuture.completedFuture(invalidCredentials());
+    }
+
+    Optional<User> userOptional = userService.findByUsername(username);
+    CompletableFuture<Boolean> verified;
+    try {
+      verified = userOptional.isPresent()
+          ? passwordHasher.matches(password, userOptional.get().getPassword())
+          : passwordHasher.mismatch(password);
+    } catch (RejectedExecutionException e) {
+      return CompletableFuture.completedFuture(busy());
+    }
+
+    return verified.thenApply(matches -> {
+      if (!matches) {
+        return invalidCredentials();
+      }
+
+      User user = userOptional.get();
+      if (passwordHasher.upgradeEncoding(user.getPassword())) {
+        rehash(user.getId(), password);
+      }
+
+      String jwt = jwtTokenProvider.generateToken(user.getUsername(), user.getId());
+
+      Map<String, Object> response = new HashMap<>();
+      response.put("token", jwt);
+      response.put("id", user.getId());
+      response.put("username", user.getUsername());
+      response.put("email", user.getEmail());
+      response.put("fullName", user.getFullName());
+      response.put("storageUsed", user.getStorageUsed());
+      response.put("storageLimit", user.getStorageLimit());
+
+      return ResponseEntity.ok(response);
+    });
   }
 
   @PostMapping("/register")
-  public ResponseEntity<?> register(@RequestBody User user) {
+  public CompletableFuture<ResponseEntity<?>> register(@RequestBody User user) {
     if (userService.existsByUsername(user.getUsername())) {
-      return ResponseEntity.badRequest().body("Username is already taken");
+      return CompletableFuture.completedFuture(ResponseEntity.badRequest().body("Username is already taken"));
     }
 
     if (userService.existsByEmail(user.getEmail())) {
-      return ResponseEntity.badRequest().body("Email is already in use");
+      return CompletableFuture.completedFuture(ResponseEntity.badRequest().body("Email is already in use"));
+    }
+
+    if (user.getPassword() == null || user.getPassword().isEmpty()) {
+      return CompletableFuture.completedFuture(ResponseEntity.badRequest().body("Password is required"));
     }
 
-    User registeredUser = userService.register(user);
+    CompletableFuture<String> encoded;
+    try {
+      encoded = passwordHasher.encode(user.getPassword());
+    } catch (RejectedExecutionException e) {
+      return CompletableFuture.completedFuture(busy());
+    }
+
+    return encoded.<ResponseEntity<?>>thenApplyAsync(encodedPassword -> {
+      user.setPassword(encodedPassword);
+      User registeredUser = userService.register(user);
+
+      Map<String, Object> response = new HashMap<>();
+      response.put("message", "User registered successfully");
+      response.put("id", registeredUser.getId());
+      response.put("username", registeredUser.getUsername());
 
-    Map<String, Object> response = new HashMap<>();
-    response.put("message", "User registered successfully");
-    response.put("id", registeredUser.getId());
-    response.put("username", registeredUser.getUsername());
+      return ResponseEntity.ok(response);
+    }, accountWriteExecutor).exceptionally(ex -> {
+      if (ex.getCause() instanceof RejectedExecutionException) {
+        return busy();
+      }
+      throw ex instanceof CompletionException completion ? completion : new CompletionException(ex);
+    });
+  }
+
+  /**
+   * Replace a hash made with an older cost factor while the password is at
+   * hand. Best effort: the login does not wait for it, and it is skipped
+   * when either pool is busy.
+   */
+  private void rehash(Integer userId, String password) {
+    try {
+      passwordHasher.encode(password)
+          .thenAcceptAsync(encoded -> userService.updatePassword(userId, encoded), accountWriteExecutor);
+    } catch (RejectedExecutionException e) {
+      // Tried again on the next login
+    }
+  }
+
+  private static ResponseEntity<?> invalidCredentials() {
+    return ResponseEntity.status(403).body("Invalid username or password");
+  }
 
-    return ResponseEntity.ok(response);
+  private ResponseEntity<?> busy() {
+    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+        .header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds))
+        .body("Too many login attempts, please retry shortly");
   }
 }
@@ -0,0 +1,45 @@
+package com.mydrive.demo.controller;
+
+import com.mydrive.demo.storage.PhysicalRegion;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Response body assembled from literal byte runs, regions of files on disk
+ * and streams. Written by ContentBodyHttpMessageConverter, which copies
+ * regions with FileChannel.transferTo instead of pulling them through an
+ * InputStream; streams are only used for content that has to be decoded.
+ */
+public class ContentBody {
+  /**
+   * Stream segment, opened when the body is written
+   */
+  @FunctionalInterface
+  public interface StreamSource {
+    InputStream open() throws IOException;
+  }
+
+  private final List<Object> segments = new ArrayList<>();
+
+  public ContentBody bytes(byte[] bytes) {
+    segments.add(bytes);
+    return this;
+  }
+
+  public ContentBody regions(List<PhysicalRegion> regions) {
+    segments.addAll(regions);
+    return this;
+  }
+
+  public ContentBody stream(StreamSource source) {
+    segments.add(source);
+    return this;
+  }
+
+  public List<Object> getSegments() {
+    return segments;
+  }
+}
@@ -1,20 +1,29 @@
 package com.mydrive.demo.controller;
 
+import com.mydrive.demo.config.StreamingTimeoutInterceptor;
+import com.mydrive.demo.dto.FileView;
 import com.mydrive.demo.entity.Directory;
 import com.mydrive.demo.entity.File;
 import com.mydrive.demo.entity.User;
+import com.mydrive.demo.security.CurrentUser;
+import com.mydrive.demo.service.ArchiveService;
 import com.mydrive.demo.service.DirectoryService;
+import com.mydrive.demo.service.DirectoryTree;
+import com.mydrive.demo.service.FileListing;
 import com.mydrive.demo.service.FileService;
 import com.mydrive.demo.service.SharedItemService;
-import com.mydrive.demo.service.UserService;
+import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.security.core.Authentication;
-import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
@@ -25,22 +34,18 @@ public class DirectoryController {
   @Autowired
   private DirectoryService directoryService;
 
-  @Autowired
-  private UserService userService;
-
   @Autowired
   private SharedItemService sharedItemService;
 
   @Autowired
   private FileService fileService;
 
-  @GetMapping
-  public ResponseEntity<?> getRootDirectories() {
-    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-    String username = authentication.getName();
+  @Autowired
+  private ArchiveService archiveService;
 
-    User user = userService.findByUsername(username).orElseThrow();
-    List<Directory> directories = directoryService.findRootDirectoriesByOwner(user);
+  @GetMapping
+  public ResponseEntity<?> getRootDirectories(@CurrentUser User user) {
+    List<DirectoryTree.Node> directories = directoryService.listRoots(user);
 
     List<Map<String, Object>> response = directories.stream()
         .map(this::convertToMap)
@@ -49,13 +54,22 @@ public class DirectoryController {
     return ResponseEntity.ok(response);
   }
 
+  /**
+   * A directory with its subdirectories and files. With any of the paging
+   * parameters files are sorted on the server and returned one page at a
+   * time, the next page's cursor in the X-Next-Cursor header and in
+   * "nextCursor"; subdirectories come with the first page only.
+   */
   @GetMapping("/{id}")
-  public ResponseEntity<?> getDirectoryContents(@PathVariable Integer id) {
-    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-    String username = authentication.getName();
-
-    User user = userService.findByUsername(username).orElseThrow();
-
+  public ResponseEntity<?> getDirectoryContents(
+      @PathVariable Integer id,
+      @RequestParam(required = false) String sort,
+      @RequestParam(required = false) String order,
+      @RequestParam(required = false) Integer limit,
+      @RequestParam(required = false) String cursor,
+      @RequestParam(required = false) String type,
+      @RequestParam(required = false) String name,
+      @CurrentUser User user) {
     Optional<Directory> directoryOptional = directoryService.findById(id);
     if (directoryOptional.isEmpty()) {
       return ResponseEntity.notFound().build();
@@ -71,43 +85,122 @@ public class DirectoryController {
       return ResponseEntity.status(403).body("Access denied");
     }
 
-    List<Directory> subdirectories = directoryService.findByOwnerAndParentDirectory(directory.getOwner(), directory);
+    boolean paged = limit != null || cursor != null || sort != null || order != null || type != null || name != null;
+    FileListing listing = null;
+    if (paged) {
+      try {
+        listing = FileListing.of(sort, order, limit, cursor, type, name);
+      } catch (IllegalArgumentException e) {
+        return ResponseEntity.badRequest().body(e.getMessage());
+      }
+    }
+
+    List<DirectoryTree.Node> subdirectories = directoryService.listChildren(directory);
+    if (listing != null) {
+      subdirectories = listing.after() != null || listing.typePrefix() != null
+          ? List.of()
+          : sortSubdirectories(subdirectories, listing);
+    }
 
     Map<String, Object> response = new HashMap<>();
     response.put("id", directory.getId());
     response.put("name", directory.getName());
     response.put("parentId", directory.getParentDirectory() != null ? directory.getParentDirectory().getId() : null);
     response.put("path", directoryService.getFullPath(directory));
+    response.put("totalSize", directory.getTotalSize());
+    response.put("fileCount", directory.getFileCount());
     response.put("subdirectories", subdirectories.stream()
         .map(this::convertToMap)
         .collect(Collectors.toList()));
 
     // Lấy tất cả file trong thư mục (không phân biệt owner)
-    List<File> files = fileService.findByDirectory(directory);
+    // Uploads into a directory are limited to its owner, so a page can be
+    // read through the owner's listing indexes
+    String nextCursor = null;
+    List<FileView> files;
+    if (listing != null) {
+      FileListing.Page page = fileService.listFiles(directory.getOwner(), directory, listing);
+      files = page.files();
+      nextCursor = page.nextCursor();
+    } else {
+      files = fileService.findViewsByDirectory(directory);
+    }
 
     List<Map<String, Object>> fileResponses = files.stream()
         .map(file -> {
           Map<String, Object> map = new HashMap<>();
-          map.put("id", file.getId());
-          map.put("name", file.getName());
-          map.put("type", file.getType());
-          map.put("size", file.getSize());
-          map.put("uploadDate", file.getCreatedAt());
+          map.put("id", file.id());
+          map.put("name", file.name());
+          map.put("type", file.type());
+          map.put("size", file.size());
+          map.put("uploadDate", file.createdAt());
           return map;
         })
         .collect(Collectors.toList());
     response.put("files", fileResponses);
 
+    if (nextCursor != null) {
+      response.put("nextCursor", nextCursor);
+      return ResponseEntity.ok().header(FileController.NEXT_CURSOR_HEADER, nextCursor).body(response);
+    }
     return ResponseEntity.ok(response);
   }
 
-  @PostMapping
-  public ResponseEntity<?> createDirectory(@RequestBody Map<String, Object> createRequest) {
-    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-    String username = authentication.getName();
+  /**
+   * Subdirectories filtered by name and ordered like the files: by total size
+   * for a size sort, by name otherwise
+   */
+  private static List<DirectoryTree.Node> sortSubdirectories(List<DirectoryTree.Node> subdirectories,
+      FileListing listing) {
+    Comparator<DirectoryTree.Node> order = "size".equals(listing.sort())
+        ? Comparator.comparingLong(DirectoryTree.Node::totalSize)
+        : Comparator.comparing(DirectoryTree.Node::name, String.CASE_INSENSITIVE_ORDER);
+    if (listing.descending()) {
+      order = order.reversed();
+    }
+    String nameFilter = listing.nameContains() != null ? listing.nameContains().toLowerCase(Locale.ROOT) : null;
+    return subdirectories.stream()
+        .filter(node -> nameFilter == null || node.name().toLowerCase(Locale.ROOT).contains(nameFilter))
+        .sorted(order.thenComparing(DirectoryTree.Node::id))
+        .toList();
+  }
 
-    User user = userService.findByUsername(username).orElseThrow();
+  /**
+   * Download a directory and everything below it as one ZIP archive. The
+   * body type has to be declared for Spring to stream it asynchronously, so
+   * errors go out without a message.
+   */
+  @GetMapping("/{id}/archive")
+  public ResponseEntity<StreamingResponseBody> downloadArchive(@PathVariable Integer id, @CurrentUser User user,
+      HttpServletRequest request) {
+    Optional<Directory> directoryOptional = directoryService.findById(id);
+    if (directoryOptional.isEmpty()) {
+      return ResponseEntity.notFound().build();
+    }
+
+    Directory directory = directoryOptional.get();
+
+    // Access to a directory covers its whole subtree, so one check is enough
+    boolean isOwner = directory.getOwner().getId().equals(user.getId());
+    boolean isSharedWith = sharedItemService
+        .hasRecursiveDirectoryAccess(directory.getId(), user.getId());
+    if (!isOwner && !isSharedWith) {
+      return ResponseEntity.status(403).build();
+    }
+
+    List<ArchiveService.Entry> entries = archiveService.collectEntries(directory);
+    StreamingResponseBody body = out -> archiveService.writeArchive(entries, out);
+    StreamingTimeoutInterceptor.extend(request);
+
+    return ResponseEntity.ok()
+        .contentType(MediaType.parseMediaType("application/zip"))
+        .header(HttpHeaders.CONTENT_DISPOSITION,
+            DownloadResponses.contentDisposition(directory.getName() + ".zip").toString())
+        .body(body);
+  }
 
+  @PostMapping
+  public ResponseEntity<?> createDirectory(@RequestBody Map<String, Object> createRequest, @CurrentUser User user) {
     String name = (String) createRequest.get("name");
     Integer parentId = (Integer) createRequest.get("parentId");
 
@@ -142,18 +235,15 @@ public class DirectoryController {
     newDirectory.setOwner(user);
     newDirectory.setParentDirectory(parentDirectory);
 
-    Directory createdDirectory = directoryService.create(newDirectory);
-
-    return ResponseEntity.ok(convertToMap(createdDirectory));
+    try {
+      return ResponseEntity.ok(convertToMap(directoryService.create(newDirectory)));
+    } catch (IllegalArgumentException e) {
+      return ResponseEntity.badRequest().body(e.getMessage());
+    }
   }
 
   @PutMapping("/{id}")
-  public ResponseEntity<?> updateDirectory(@PathVariable Integer id, @RequestBody Map<String, String> updateRequest) {
-    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-    String username = authentication.getName();
-
-    User user = userService.findByUsername(username).orElseThrow();
-
+  public ResponseEntity<?> updateDirectory(@PathVariable Integer id, @RequestBody Map<String, String> updateRequest, @CurrentUser User user) {
     Optional<Directory> directoryOptional = directoryService.findById(id);
     if (directoryOptional.isEmpty()) {
       return ResponseEntity.notFound().build();
@@ -182,13 +272,46 @@ public class DirectoryController {
     return ResponseEntity.badRequest().body("No valid fields to update");
   }
 
-  @DeleteMapping("/{id}")
-  public ResponseEntity<?> deleteDirectory(@PathVariable Integer id) {
-    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-    String username = authentication.getName();
+  @PutMapping("/{id}/move")
+  public ResponseEntity<?> moveDirectory(@PathVariable Integer id, @RequestBody Map<String, Integer> moveRequest, @CurrentUser User user) {
+    Integer parentId = moveRequest.get("parentId");
+    if (parentId == null) {
+      return ResponseEntity.badRequest().body("parentId is required");
+    }
+
+    Optional<Directory> directoryOptional = directoryService.findById(id);
+    Optional<Directory> parentOptional = directoryService.findById(parentId);
+    if (directoryOptional.isEmpty() || parentOptional.isEmpty()) {
+      return ResponseEntity.notFound().build();
+    }
+
+    Directory directory = directoryOptional.get();
+    Directory newParent = parentOptional.get();
 
-    User user = userService.findByUsername(username).orElseThrow();
+    // Check if user owns both the directory and its new parent
+    if (!directory.getOwner().getId().equals(user.getId()) || !newParent.getOwner().getId().equals(user.getId())) {
+      return ResponseEntity.status(403).body("Access denied");
+    }
 
+    if (directory.getParentDirectory() == null) {
+      return ResponseEntity.badRequest().body("Cannot move the root directory");
+    }
+
+    if (directoryService.findByNameAndOwnerAndParentDirectory(directory.getName(), user, newParent).isPresent()) {
+      return ResponseEntity.badRequest().body("Directory with the same name already exists");
+    }
+
+    try {
+      return ResponseEntity.ok(convertToMap(directoryService.move(directory, newParent)));
+    } catch (IllegalArgumentException e) {
+      return ResponseEntity.badRequest().body(e.getMessage());
+    } catch (IllegalStateException e) {
+      return ResponseEntity.status(409).body(e.getMessage());
+    }
+  }
+
+  @DeleteMapping("/{id}")
+  public ResponseEntity<?> deleteDirectory(@PathVariable Integer id, @CurrentUser User user) {
     Optional<Directory> directoryOptional = directoryService.findById(id);
     if (directoryOptional.isEmpty()) {
       return ResponseEntity.notFound().build();
@@ -206,7 +329,15 @@ public class DirectoryController {
       return ResponseEntity.badRequest().body("Cannot delete the root directory");
     }
 
-    directoryService.delete(id);
+    try {
+      if (!directoryService.delete(id)) {
+        // Too large to delete within the request; it goes on in the background
+        return ResponseEntity.accepted().build();
+      }
+    } catch (IllegalStateException e) {
+      // Kept being moved while it was deleted; what is gone stays gone
+      return ResponseEntity.status(409).body(e.getMessage());
+    }
 
     return ResponseEntity.ok().build();
   }
@@ -216,6 +347,18 @@ public class DirectoryController {
     map.put("id", directory.getId());
     map.put("name", directory.getName());
     map.put("parentId", directory.getParentDirectory() != null ? directory.getParentDirectory().getId() : null);
+    map.put("totalSize", directory.getTotalSize());
+    map.put("fileCount", directory.getFileCount());
+    return map;
+  }
+
+  private Map<String, Object> convertToMap(DirectoryTree.Node node) {
+    Map<String, Object> map = new HashMap<>();
+    map.put("id", node.id());
+    map.put("name", node.name());
+    map.put("parentId", node.parentId());
+    map.put("totalSize", node.totalSize());
+    map.put("fileCount", node.fileCount());
     return map;
   }
 }
@@ -0,0 +1,331 @@
+package com.mydrive.demo.controller;
+
+import com.mydrive.demo.entity.File;
+import com.mydrive.demo.service.FileService;
+import com.mydrive.demo.storage.PhysicalRegion;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Builds download responses for stored files with single- and multi-range
+ * support. Headers come from the File row alone; content is copied with
+ * FileChannel.transferTo (see ContentBody), and a single region backed by one
+ * file on disk is handed to the container's sendfile support when it offers
+ * it.
+ *
+ * Content stored compressed is passed through as is to clients that accept
+ * its encoding. Everyone else, and every range request, gets it decompressed
+ * on the fly.
+ *
+ * Files carry the SHA-256 of their content as a strong ETag, and their
+ * creation time as Last-Modified. Conditional requests are answered from
+ * those, so a client revalidating its copy costs a metadata lookup.
+ */
+@Component
+public class DownloadResponses {
+  private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+  private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+  private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+  private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+  @Autowired
+  private FileService fileService;
+
+  public ResponseEntity<?> download(File file, HttpServletRequest request) throws IOException {
+    return download(file, request, null);
+  }
+
+  /**
+   * Download with a Cache-Control header on every successful response, for
+   * content that caches may keep
+   */
+  public ResponseEntity<?> download(File file, HttpServletRequest request, CacheControl cacheControl)
+      throws IOException {
+    long length = file.getSize();
+    MediaType contentType = contentType(file);
+    Instant lastModified = lastModified(file);
+
+    // A range of a copy the client no longer has is answered with all of it
+    String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+    if (rangeHeader != null && !ifRangeMatches(request, etag(file, null), lastModified)) {
+      rangeHeader = null;
+    }
+    String encoding = file.getContentEncoding();
+    boolean passThrough = encoding != null && rangeHeader == null && acceptsEncoding(request, encoding);
+    String etag = etag(file, passThrough ? encoding : null);
+
+    HttpHeaders headers = new HttpHeaders();
+    if (cacheControl != null) {
+      headers.setCacheControl(cacheControl);
+    }
+    if (etag != null) {
+      headers.setETag(etag);
+    }
+    if (lastModified != null) {
+      headers.setLastModified(lastModified);
+    }
+    if (encoding != null) {
+      headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+    }
+    // Decided from the File row alone, before any content is opened
+    if (notModified(request, etag, lastModified)) {
+      return ResponseEntity.status(HttpStatus.NOT_MODIFIED).headers(headers).build();
+    }
+    headers.setContentDisposition(contentDisposition(file.getName()));
+    headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+    if (passThrough) {
+      long storedSize = file.getStoredSize();
+      headers.setContentType(contentType);
+      headers.set(HttpHeaders.CONTENT_ENCODING, encoding);
+      headers.setContentLength(storedSize);
+      return respond(HttpStatus.OK, headers, request,
+          new ContentBody().regions(fileService.contentRegions(file, 0, storedSize)));
+    }
+
+    List<HttpRange> ranges;
+    try {
+      ranges = HttpRange.parseRanges(rangeHeader);
+    } catch (IllegalArgumentException e) {
+      return unsatisfiable(length);
+    }
+
+    if (ranges.isEmpty()) {
+      headers.setContentType(contentType);
+      headers.setContentLength(length);
+      return respond(HttpStatus.OK, headers, request, content(new ContentBody(), file, 0, length));
+    }
+
+    // Unsatisfiable ranges are dropped; only when none is left is the request
+    // answered with 416
+    List<long[]> satisfiable = new ArrayList<>();
+    try {
+      for (HttpRange range : ranges) {
+        long start = range.getRangeStart(length);
+        long end = range.getRangeEnd(length);
+        if (start < length && start <= end) {
+          satisfiable.add(new long[] { start, end });
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      return unsatisfiable(length);
+    }
+    if (satisfiable.isEmpty()) {
+      return unsatisfiable(length);
+    }
+
+    long[] starts = satisfiable.stream().mapToLong(range -> range[0]).toArray();
+    long[] ends = satisfiable.stream().mapToLong(range -> range[1]).toArray();
+
+    if (starts.length == 1) {
+      long count = ends[0] - starts[0] + 1;
+      headers.setContentType(contentType);
+      headers.setContentLength(count);
+      headers.set(HttpHeaders.CONTENT_RANGE, contentRange(starts[0], ends[0], length));
+      return respond(HttpStatus.PARTIAL_CONTENT, headers, request,
+          content(new ContentBody(), file, starts[0], count));
+    }
+
+    return multipartRanges(file, contentType, length, starts, ends, headers);
+  }
+
+  /**
+   * Append a byte range of a file's original content to a body: regions of
+   * the stored bytes when they are stored as is, a decoding stream otherwise
+   */
+  private ContentBody content(ContentBody body, File file, long start, long count) throws IOException {
+    if (file.getContentEncoding() == null) {
+      return body.regions(fileService.contentRegions(file, start, count));
+    }
+    return body.stream(() -> fileService.openContent(file, start, count));
+  }
+
+  private ResponseEntity<?> respond(HttpStatus status, HttpHeaders headers, HttpServletRequest request,
+      ContentBody body) {
+    List<Object> segments = body.getSegments();
+    if (segments.size() == 1 && segments.get(0) instanceof PhysicalRegion region
+        && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+      request.setAttribute(SENDFILE_FILENAME, region.path().toAbsolutePath().toString());
+      request.setAttribute(SENDFILE_START, region.start());
+      request.setAttribute(SENDFILE_END, region.start() + region.length());
+      return ResponseEntity.status(status).headers(headers).build();
+    }
+
+    return ResponseEntity.status(status).headers(headers).body(body);
+  }
+
+  private ResponseEntity<?> multipartRanges(File file, MediaType contentType, long length, long[] starts, long[] ends,
+      HttpHeaders headers) throws IOException {
+    String boundary = UUID.randomUUID().toString();
+    ContentBody body = new ContentBody();
+    long contentLength = 0;
+    for (int i = 0; i < starts.length; i++) {
+      long count = ends[i] - starts[i] + 1;
+      byte[] partHeader = ("\r\n--" + boundary + "\r\n"
+          + HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+          + HttpHeaders.CONTENT_RANGE + ": " + contentRange(starts[i], ends[i], length) + "\r\n\r\n")
+          .getBytes(StandardCharsets.US_ASCII);
+      content(body.bytes(partHeader), file, starts[i], count);
+      contentLength += partHeader.length + count;
+    }
+    byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    body.bytes(closing);
+    contentLength += closing.length;
+
+    headers.setContentType(MediaType.parseMediaType("multipart/byteranges; boundary=" + boundary));
+    headers.setContentLength(contentLength);
+    return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT).headers(headers).body(body);
+  }
+
+  private ResponseEntity<?> unsatisfiable(long length) {
+    return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+        .header(HttpHeaders.CONTENT_RANGE, "bytes */" + length)
+        .build();
+  }
+
+  /**
+   * Strong ETag of a file's content as sent: its digest, tagged with the
+   * encoding when it goes out encoded. Null when the digest is unknown.
+   */
+  private static String etag(File file, String encoding) {
+    if (file.getContentDigest() == null) {
+      return null;
+    }
+    return "\"" + file.getContentDigest() + (encoding != null ? "-" + encoding : "") + "\"";
+  }
+
+  /**
+   * Content never changes once stored, so it was last modified when the file
+   * was created
+   */
+  private static Instant lastModified(File file) {
+    if (file.getCreatedAt() == null) {
+      return null;
+    }
+    return file.getCreatedAt().atZone(ZoneId.systemDefault()).toInstant().truncatedTo(ChronoUnit.SECONDS);
+  }
+
+  /**
+   * If-None-Match, or If-Modified-Since when there is none, says the
+   * client's copy is current
+   */
+  private static boolean notModified(HttpServletRequest request, String etag, Instant lastModified) {
+    Enumeration<String> values = request.getHeaders(HttpHeaders.IF_NONE_MATCH);
+    if (values != null && values.hasMoreElements()) {
+      while (values.hasMoreElements()) {
+        for (String tag : values.nextElement().split(",")) {
+          tag = tag.trim();
+          if (tag.equals("*") || (etag != null && weakTag(tag).equals(etag))) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    long since = dateHeader(request, HttpHeaders.IF_MODIFIED_SINCE);
+    return since >= 0 && lastModified != null && lastModified.toEpochMilli() <= since;
+  }
+
+  /**
+   * If-Range holds the client's validator of the representation it has a
+   * part of; only an exact match of a strong one lets ranges through
+   */
+  private static boolean ifRangeMatches(HttpServletRequest request, String etag, Instant lastModified) {
+    String validator = request.getHeader(HttpHeaders.IF_RANGE);
+    if (validator == null) {
+      return true;
+    }
+    validator = validator.trim();
+    if (validator.startsWith("W/")) {
+      return false;
+    }
+    if (validator.startsWith("\"")) {
+      return validator.equals(etag);
+    }
+    long date = dateHeader(request, HttpHeaders.IF_RANGE);
+    return date >= 0 && lastModified != null && lastModified.toEpochMilli() == date;
+  }
+
+  private static String weakTag(String tag) {
+    return tag.startsWith("W/") ? tag.substring(2) : tag;
+  }
+
+  private static long dateHeader(HttpServletRequest request, String name) {
+    try {
+      return request.getDateHeader(name);
+    } catch (IllegalArgumentException e) {
+      return -1;
+    }
+  }
+
+  private static boolean acceptsEncoding(HttpServletRequest request, String encoding) {
+    Enumeration<String> values = request.getHeaders(HttpHeaders.ACCEPT_ENCODING);
+    while (values != null && values.hasMoreElements()) {
+      for (String token : values.nextElement().split(",")) {
+        String[] parts = token.trim().split(";");
+        String coding = parts[0].trim();
+        if (!coding.equalsIgnoreCase(encoding) && !coding.equals("*")) {
+          continue;
+        }
+        boolean refused = false;
+        for (int i = 1; i < parts.length; i++) {
+          String param = parts[i].trim();
+          if (param.startsWith("q=")) {
+            try {
+              refused = Double.parseDouble(param.substring(2)) <= 0;
+            } catch (NumberFormatException ex) {
+              refused = true;
+            }
+          }
+        }
+        if (!refused) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  static ContentDisposition contentDisposition(String fileName) {
+    // Only non-ASCII names need the RFC 5987 encoded form
+    boolean ascii = StandardCharsets.US_ASCII.newEncoder().canEncode(fileName);
+    return ascii
+        ? ContentDisposition.attachment().filename(fileName).build()
+        : ContentDisposition.attachment().filename(fileName, StandardCharsets.UTF_8).build();
+  }
+
+  private static String contentRange(long start, long end, long length) {
+    return "bytes " + start + "-" + end + "/" + length;
+  }
+
+  private static MediaType contentType(File file) {
+    if (file.getType() == null) {
+      return MediaType.APPLICATION_OCTET_STREAM;
+    }
+    try {
+      return MediaType.parseMediaType(file.getType());
+    } catch (InvalidMediaTypeException e) {
+      return MediaType.APPLICATION_OCTET_STREAM;
+    }
+  }
+}
@@ -1,31 +1,50 @@
 package com.mydrive.demo.controller;
 
+import com.mydrive.demo.dto.FileView;
 import com.mydrive.demo.entity.Directory;
 import com.mydrive.demo.entity.File;
 import com.mydrive.demo.entity.User;
+import com.mydrive.demo.security.CurrentUser;
 import com.mydrive.demo.service.DirectoryService;
+import com.mydrive.demo.service.FileListing;
 import com.mydrive.demo.service.FileService;
+import com.mydrive.demo.service.QuotaService;
 import com.mydrive.demo.service.SharedItemService;
+import com.mydrive.demo.service.StreamedUpload;
 import com.mydrive.demo.service.UserService;
+import jakarta.servlet.http.HttpServletRequest;
+import org.apache.commons.fileupload2.jakarta.servlet6.JakartaServletFileUpload;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
-import org.springframework.http.HttpHeaders;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
 @RestController
 @RequestMapping("/api/files")
 public class FileController {
+  static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+  // Size of the file part of an upload, declared by the client so exactly
+  // that much quota is reserved
+  static final String FILE_SIZE_HEADER = "X-File-Size";
+  // Stored content never changes, so only the requesting user's cache keeps
+  // it, for as long as it likes; the ETag revalidates it cheaply after that
+  private static final CacheControl CONTENT_CACHE = CacheControl.maxAge(Duration.ofDays(365)).cachePrivate();
+
   @Autowired
   private FileService fileService;
 
@@ -38,6 +57,15 @@ public class FileController {
   @Autowired
   private SharedItemService sharedItemService;
 
+  @Autowired
+  private QuotaService quotaService;
+
+  @Autowired
+  private DownloadResponses downloadResponses;
+
+  @Value("${spring.servlet.multipart.max-file-size:100MB}")
+  private DataSize maxFileSize;
+
   // Thêm JwtTokenProvider để giải mã token
   @Autowired
   private com.mydrive.demo.security.JwtTokenProvider jwtTokenProvider;
@@ -45,13 +73,25 @@ public class FileController {
   @Autowired
   private org.springframework.security.core.userdetails.UserDetailsService userDetailsService;
 
+  /**
+   * All files of the user. With any of the paging parameters the listing is
+   * sorted on the server and returned one page at a time; the cursor of the
+   * next page comes back in the X-Next-Cursor header.
+   */
   @GetMapping
-  public ResponseEntity<?> getAllFiles() {
-    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-    String username = authentication.getName();
+  public ResponseEntity<?> getAllFiles(
+      @RequestParam(required = false) String sort,
+      @RequestParam(required = false) String order,
+      @RequestParam(required = false) Integer limit,
+      @RequestParam(required = false) String cursor,
+      @RequestParam(required = false) String type,
+      @RequestParam(required = false) String name,
+      @CurrentUser User user) {
+    if (isPaged(sort, order, limit, cursor, type, name)) {
+      return listPage(user, null, sort, order, limit, cursor, type, name);
+    }
 
-    User user = userService.findByUsername(username).orElseThrow();
-    List<File> files = fileService.findByOwner(user);
+    List<FileView> files = fileService.findViewsByOwner(user);
 
     List<Map<String, Object>> response = files.stream()
         .map(this::convertToMap)
@@ -61,12 +101,15 @@ public class FileController {
   }
 
   @GetMapping("/directory/{directoryId}")
-  public ResponseEntity<?> getFilesByDirectory(@PathVariable Integer directoryId) {
-    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-    String username = authentication.getName();
-
-    User user = userService.findByUsername(username).orElseThrow();
-
+  public ResponseEntity<?> getFilesByDirectory(
+      @PathVariable Integer directoryId,
+      @RequestParam(required = false) String sort,
+      @RequestParam(required = false) String order,
+      @RequestParam(required = false) Integer limit,
+      @RequestParam(required = false) String cursor,
+      @RequestParam(required = false) String type,
+      @RequestParam(required = false) String name,
+      @CurrentUser User user) {
     Optional<Directory> directoryOptional = directoryService.findById(directoryId);
     if (directoryOptional.isEmpty()) {
       return ResponseEntity.notFound().build();
@@ -79,7 +122,11 @@ public class FileController {
       return ResponseEntity.status(403).body("Access denied");
     }
 
-    List<File> files = fileService.findByOwnerAndDirectory(user, directory);
+    if (isPaged(sort, order, limit, cursor, type, name)) {
+      return listPage(user, directory, sort, order, limit, cursor, type, name);
+    }
+
+    List<FileView> files = fileService.findViewsByOwnerAndDirectory(user, directory);
 
     List<Map<String, Object>> response = files.stream()
         .map(this::convertToMap)
@@ -88,13 +135,29 @@ public class FileController {
     return ResponseEntity.ok(response);
   }
 
-  @GetMapping("/{id}")
-  public ResponseEntity<?> getFile(@PathVariable Integer id) {
-    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-    String username = authentication.getName();
+  private static boolean isPaged(Object... pagingParams) {
+    return Arrays.stream(pagingParams).anyMatch(Objects::nonNull);
+  }
+
+  private ResponseEntity<?> listPage(User user, Directory directory, String sort, String order, Integer limit,
+      String cursor, String type, String name) {
+    FileListing listing;
+    try {
+      listing = FileListing.of(sort, order, limit, cursor, type, name);
+    } catch (IllegalArgumentException e) {
+      return ResponseEntity.badRequest().body(e.getMessage());
+    }
 
-    User user = userService.findByUsername(username).orElseThrow();
+    FileListing.Page page = fileService.listFiles(user, directory, listing);
+    ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+    if (page.nextCursor() != null) {
+      response.header(NEXT_CURSOR_HEADER, page.nextCursor());
+    }
+    return response.body(page.files().stream().map(this::convertToMap).collect(Collectors.toList()));
+  }
 
+  @GetMapping("/{id}")
+  public ResponseEntity<?> getFile(@PathVariable Integer id, @CurrentUser User user) {
     Optional<File> fileOptional = fileService.findById(id);
     if (fileOptional.isEmpty()) {
       return ResponseEntity.notFound().build();
@@ -103,13 +166,10 @@ public class FileController {
     File file = fileOptional.get();
 
     // Cho phép truy cập nếu là owner hoặc được share (đệ quy theo cha thư mục)
+    // One cached lookup covers both a direct share and one of a parent directory
     boolean isOwner = file.getOwner().getId().equals(user.getId());
-    boolean isSharedWith = sharedItemService
-        .hasRecursiveDirectoryAccess(file.getDirectory() != null ? file.getDirectory().getId() : null, user.getId());
-    boolean isFileShared = sharedItemService
-        .findByItemTypeAndItemIdAndSharedWith(com.mydrive.demo.entity.SharedItem.ItemType.file, file.getId(), user)
-        .isPresent();
-    if (!isOwner && !isFileShared && !isSharedWith) {
+    boolean isShared = !isOwner && sharedItemService.effectivePermission(file, user.getId()).isPresent();
+    if (!isOwner && !isShared) {
       return ResponseEntity.status(403).body("Access denied");
     }
 
@@ -117,12 +177,7 @@ public class FileController {
   }
 
   @GetMapping("/{id}/download")
-  public ResponseEntity<?> downloadFile(@PathVariable Integer id) {
-    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-    String username = authentication.getName();
-
-    User user = userService.findByUsername(username).orElseThrow();
-
+  public ResponseEntity<?> downloadFile(@PathVariable Integer id, HttpServletRequest request, @CurrentUser User user) {
     Optional<File> fileOptional = fileService.findById(id);
     if (fileOptional.isEmpty()) {
       return ResponseEntity.notFound().build();
@@ -136,41 +191,98 @@ public class FileController {
     // view/edit đều như nhau
     // Cho phép download nếu là owner hoặc được share (dù quyền view hay edit, share
     // trực tiếp hoặc qua thư mục)
+    // One cached lookup covers both a direct share and one of a parent directory
     boolean isOwner = file.getOwner().getId().equals(user.getId());
-    boolean isSharedWith = sharedItemService
-        .hasRecursiveDirectoryAccess(file.getDirectory() != null ? file.getDirectory().getId() : null, user.getId());
-    boolean isFileShared = sharedItemService
-        .findByItemTypeAndItemIdAndSharedWith(com.mydrive.demo.entity.SharedItem.ItemType.file, file.getId(), user)
-        .isPresent();
+    boolean isShared = !isOwner && sharedItemService.effectivePermission(file, user.getId()).isPresent();
     // Không kiểm tra quyền view/edit, chỉ cần được share là có thể download
-    if (!isOwner && !isFileShared && !isSharedWith) {
+    if (!isOwner && !isShared) {
       return ResponseEntity.status(403).body("Access denied");
     }
 
     try {
-      Resource resource = fileService.loadFileAsResource(file);
-      return ResponseEntity.ok()
-          .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + file.getName() + "\"")
-          .header(HttpHeaders.CONTENT_TYPE, file.getType())
-          .body(resource);
+      return downloadResponses.download(file, request, CONTENT_CACHE);
     } catch (Exception e) {
       return ResponseEntity.badRequest().body("Could not download the file: " + e.getMessage());
     }
   }
 
   @PostMapping("/upload")
-  public ResponseEntity<?> uploadFile(
-      @RequestParam("file") MultipartFile file,
-      @RequestParam(value = "directoryId", required = false) Integer directoryId) {
+  public ResponseEntity<?> uploadFile(HttpServletRequest request, @CurrentUser User user) {
+    if (!JakartaServletFileUpload.isMultipartContent(request)) {
+      return ResponseEntity.badRequest().body("Expected a multipart request");
+    }
+
+    // Reserve quota before anything is written; the content is cut off once
+    // it outgrows the reservation
+    long reservedBytes;
+    try {
+      reservedBytes = uploadReservation(request);
+    } catch (IllegalArgumentException e) {
+      return ResponseEntity.badRequest().body(e.getMessage());
+    }
+    QuotaService.Reservation reservation;
+    try {
+      reservation = quotaService.reserve(user.getId(), reservedBytes);
+    } catch (RuntimeException e) {
+      return ResponseEntity.badRequest().body("Not enough storage space");
+    }
 
-    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-    String username = authentication.getName();
+    try {
+      // The file part is written to storage while it is being received; the
+      // directory is resolved afterwards since clients may send it last
+      StreamedUpload upload;
+      try {
+        upload = fileService.receiveMultipart(request, "file", reservation);
+      } catch (IOException e) {
+        return ResponseEntity.badRequest().body("Could not upload the file: " + e.getMessage());
+      }
+      if (upload.blob() == null) {
+        return ResponseEntity.badRequest().body("Missing file part");
+      }
 
-    User user = userService.findByUsername(username).orElseThrow();
+      ResponseEntity<?> response = storeUploadedFile(upload, user, reservation);
+      if (!response.getStatusCode().is2xxSuccessful()) {
+        fileService.discardContent(upload.blob());
+      }
+      return response;
+    } finally {
+      quotaService.release(reservation);
+    }
+  }
 
-    // Check if user has enough storage
-    if (!userService.hasEnoughStorage(user.getId(), file.getSize())) {
-      return ResponseEntity.badRequest().body("Not enough storage space");
+  /**
+   * Bytes to reserve for a streamed upload: the file size the client
+   * declares, otherwise the request length, which also counts the multipart
+   * framing. Both are capped at the largest file allowed, and so is an
+   * upload of unknown length, which never holds the user's whole quota.
+   */
+  private long uploadReservation(HttpServletRequest request) {
+    long maxBytes = maxFileSize.toBytes();
+    String declared = request.getHeader(FILE_SIZE_HEADER);
+    if (declared != null) {
+      long size;
+      try {
+        size = Long.parseLong(declared.trim());
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid " + FILE_SIZE_HEADER);
+      }
+      if (size < 0 || size > maxBytes) {
+        throw new IllegalArgumentException(size < 0 ? "Invalid " + FILE_SIZE_HEADER : "File is too large");
+      }
+      return size;
+    }
+    long requestLength = request.getContentLengthLong();
+    return requestLength > 0 ? Math.min(requestLength, maxBytes) : maxBytes;
+  }
+
+  private ResponseEntity<?> storeUploadedFile(StreamedUpload upload, User user,
+      QuotaService.Reservation reservation) {
+    String directoryIdValue = upload.fields().get("directoryId");
+    Integer directoryId;
+    try {
+      directoryId = directoryIdValue != null && !directoryIdValue.isBlank() ? Integer.valueOf(directoryIdValue) : null;
+    } catch (NumberFormatException e) {
+      return ResponseEntity.badRequest().body("Invalid directoryId");
     }
 
     // Check if directory exists if directoryId is provided
@@ -196,9 +308,10 @@ public class FileController {
     }
 
     try {
-      File uploadedFile = fileService.uploadFile(file, user, directory);
+      File uploadedFile = fileService.createFile(upload.blob(), upload.fileName(), upload.contentType(), user,
+          directory, reservation);
       return ResponseEntity.ok(convertToMap(uploadedFile));
-    } catch (IOException e) {
+    } catch (RuntimeException e) {
       return ResponseEntity.badRequest().body("Could not upload the file: " + e.getMessage());
     }
   }
@@ -208,7 +321,8 @@ public class FileController {
       @RequestParam("files") List<MultipartFile> files,
       @RequestParam("paths") String[] paths,
       @RequestParam(value = "directoryId", required = false) Integer directoryId,
-      @RequestParam(value = "token", required = false) String token) {
+      @RequestParam(value = "token", required = false) String token,
+      @CurrentUser(required = false) User currentUser) {
 
     // DEBUG LOGGING
     System.out.println("==== [uploadFolder] ====");
@@ -272,6 +386,8 @@ public class FileController {
           return ResponseEntity.ok(response);
         } catch (IOException e) {
           return ResponseEntity.badRequest().body("Could not upload the folder: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+          return ResponseEntity.badRequest().body(e.getMessage());
         }
       } catch (Exception e) {
         return ResponseEntity.status(403).body("Invalid token");
@@ -279,9 +395,7 @@ public class FileController {
     }
 
     // Original authentication flow
-    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-    String username = authentication.getName();
-    User user = userService.findByUsername(username).orElseThrow();
+    User user = currentUser;
 
     Directory parentDirectory = null;
     if (directoryId != null) {
@@ -307,16 +421,13 @@ public class FileController {
       return ResponseEntity.ok(response);
     } catch (IOException e) {
       return ResponseEntity.badRequest().body("Could not upload the folder: " + e.getMessage());
+    } catch (IllegalArgumentException e) {
+      return ResponseEntity.badRequest().body(e.getMessage());
     }
   }
 
   @DeleteMapping("/{id}")
-  public ResponseEntity<?> deleteFile(@PathVariable Integer id) {
-    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-    String username = authentication.getName();
-
-    User user = userService.findByUsername(username).orElseThrow();
-
+  public ResponseEntity<?> deleteFile(@PathVariable Integer id, @CurrentUser User user) {
     Optional<File> fileOptional = fileService.findById(id);
     if (fileOptional.isEmpty()) {
       return ResponseEntity.notFound().build();
@@ -338,14 +449,18 @@ public class FileController {
   }
 
   private Map<String, Object> convertToMap(File file) {
+    return convertToMap(FileView.of(file));
+  }
+
+  private Map<String, Object> convertToMap(FileView file) {
     Map<String, Object> map = new HashMap<>();
-    map.put("id", file.getId());
-    map.put("name", file.getName());
-    map.put("type", file.getType());
-    map.put("size", file.getSize());
-    map.put("directoryId", file.getDirectory() != null ? file.getDirectory().getId() : null);
-    map.put("createdAt", file.getCreatedAt());
-    map.put("updatedAt", file.getUpdatedAt());
+    map.put("id", file.id());
+    map.put("name", file.name());
+    map.put("type", file.type());
+    map.put("size", file.size());
+    map.put("directoryId", file.directoryId());
+    map.put("createdAt", file.createdAt());
+    map.put("updatedAt", file.updatedAt());
     return map;
   }
 }
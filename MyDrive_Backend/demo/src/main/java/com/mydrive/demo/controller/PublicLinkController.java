@@ -0,0 +1,131 @@
+package com.mydrive.demo.controller;
+
+import com.mydrive.demo.config.StreamingTimeoutInterceptor;
+import com.mydrive.demo.entity.Directory;
+import com.mydrive.demo.entity.File;
+import com.mydrive.demo.entity.SharedItem;
+import com.mydrive.demo.security.PublicLink;
+import com.mydrive.demo.security.PublicLinkSigner;
+import com.mydrive.demo.service.ArchiveService;
+import com.mydrive.demo.service.DirectoryService;
+import com.mydrive.demo.service.FileService;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Downloads through signed public links, without a login. A file link is
+ * verified and served from the token alone, with no database access, and may
+ * be cached publicly until it expires: the content under a stored path never
+ * changes. Directory links need the directory's current contents, so they
+ * read the database after the token checks out and are cached only briefly.
+ * They are served under /{token}/archive, as a streamed body needs its own
+ * declared response type.
+ */
+@RestController
+@RequestMapping("/api/public/links")
+public class PublicLinkController {
+  private static final Duration ARCHIVE_MAX_AGE = Duration.ofMinutes(1);
+
+  @Autowired
+  private PublicLinkSigner publicLinkSigner;
+
+  @Autowired
+  private DownloadResponses downloadResponses;
+
+  @Autowired
+  private FileService fileService;
+
+  @Autowired
+  private DirectoryService directoryService;
+
+  @Autowired
+  private ArchiveService archiveService;
+
+  @GetMapping("/{token}")
+  public ResponseEntity<?> download(@PathVariable String token, HttpServletRequest request) {
+    Optional<PublicLink> linkOptional = publicLinkSigner.verify(token);
+    if (linkOptional.isEmpty()) {
+      return ResponseEntity.status(403).body("Access denied");
+    }
+
+    PublicLink link = linkOptional.get();
+    if (link.itemType() != SharedItem.ItemType.file) {
+      return ResponseEntity.notFound().build();
+    }
+
+    long remaining = link.expiresAt() - Instant.now().getEpochSecond();
+    CacheControl cacheControl = CacheControl.maxAge(Duration.ofSeconds(remaining)).cachePublic().immutable();
+    File file = linkedFile(link);
+    try {
+      // Content is only read while the response is written; a deleted file
+      // has to be caught before that
+      if (!fileService.hasContent(file)) {
+        return ResponseEntity.notFound().build();
+      }
+      return downloadResponses.download(file, request, cacheControl);
+    } catch (IOException e) {
+      return ResponseEntity.notFound().build();
+    }
+  }
+
+  @GetMapping("/{token}/archive")
+  public ResponseEntity<StreamingResponseBody> downloadArchive(@PathVariable String token,
+      HttpServletRequest request) {
+    Optional<PublicLink> linkOptional = publicLinkSigner.verify(token);
+    if (linkOptional.isEmpty()) {
+      return ResponseEntity.status(403).build();
+    }
+
+    PublicLink link = linkOptional.get();
+    if (link.itemType() != SharedItem.ItemType.directory) {
+      return ResponseEntity.notFound().build();
+    }
+
+    Optional<Directory> directoryOptional = directoryService.findById(link.itemId());
+    if (directoryOptional.isEmpty() || !directoryOptional.get().getOwner().getId().equals(link.ownerId())) {
+      return ResponseEntity.notFound().build();
+    }
+
+    Directory directory = directoryOptional.get();
+    List<ArchiveService.Entry> entries = archiveService.collectEntries(directory);
+    StreamingResponseBody body = out -> archiveService.writeArchive(entries, out);
+    StreamingTimeoutInterceptor.extend(request);
+
+    return ResponseEntity.ok()
+        .contentType(MediaType.parseMediaType("application/zip"))
+        .cacheControl(CacheControl.maxAge(ARCHIVE_MAX_AGE).cachePublic())
+        .header(HttpHeaders.CONTENT_DISPOSITION,
+            DownloadResponses.contentDisposition(directory.getName() + ".zip").toString())
+        .body(body);
+  }
+
+  /**
+   * A detached File carrying what the download needs, as sealed into the link
+   */
+  private static File linkedFile(PublicLink link) {
+    File file = new File();
+    file.setId(link.itemId());
+    file.setName(link.name());
+    file.setType(link.contentType());
+    file.setSize(link.size());
+    file.setStoredSize(link.storedSize());
+    file.setContentEncoding(link.contentEncoding());
+    file.setPath(link.path());
+    return file;
+  }
+}
@@ -1,28 +1,44 @@
 package com.mydrive.demo.controller;
 
+import com.mydrive.demo.dto.ShareView;
 import com.mydrive.demo.entity.Directory;
 import com.mydrive.demo.entity.File;
 import com.mydrive.demo.entity.SharedItem;
 import com.mydrive.demo.entity.User;
+import com.mydrive.demo.security.PublicLink;
+import com.mydrive.demo.security.PublicLinkSigner;
+import com.mydrive.demo.security.CurrentUser;
 import com.mydrive.demo.service.DirectoryService;
 import com.mydrive.demo.service.FileService;
 import com.mydrive.demo.service.SharedItemService;
 import com.mydrive.demo.service.UserService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.ResponseEntity;
-import org.springframework.security.core.Authentication;
-import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.*;
 
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.BiFunction;
 import java.util.stream.Collectors;
 
 @RestController
 @RequestMapping("/api/shared")
 public class ShareController {
+  private static final int MAX_ACCESS_ITEMS = 5000;
+  private static final int DEFAULT_PAGE_SIZE = 100;
+  private static final int MAX_PAGE_SIZE = 1000;
+
+  @Value("${app.public-links.default-ttl-seconds:86400}")
+  private long publicLinkDefaultTtlSeconds;
+
+  @Value("${app.public-links.max-ttl-seconds:2592000}")
+  private long publicLinkMaxTtlSeconds;
+
   @Autowired
   private SharedItemService sharedItemService;
 
@@ -35,13 +51,25 @@ public class ShareController {
   @Autowired
   private DirectoryService directoryService;
 
+  @Autowired
+  private PublicLinkSigner publicLinkSigner;
+
+  /**
+   * Items shared with the user. With limit or cursor the list comes newest
+   * first, one page at a time, with the next page's cursor in the
+   * X-Next-Cursor header.
+   */
   @GetMapping("/with-me")
-  public ResponseEntity<?> getItemsSharedWithMe() {
-    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-    String username = authentication.getName();
+  public ResponseEntity<?> getItemsSharedWithMe(
+      @RequestParam(required = false) Integer limit,
+      @RequestParam(required = false) String cursor,
+      @CurrentUser User user) {
+    if (limit != null || cursor != null) {
+      return sharePage(limit, cursor,
+          (beforeId, pageSize) -> sharedItemService.findViewPageBySharedWith(user, beforeId, pageSize));
+    }
 
-    User user = userService.findByUsername(username).orElseThrow();
-    List<SharedItem> sharedItems = sharedItemService.findBySharedWith(user);
+    List<ShareView> sharedItems = sharedItemService.findViewsBySharedWith(user);
 
     List<Map<String, Object>> response = sharedItems.stream()
         .map(this::convertToMap)
@@ -51,12 +79,16 @@ public class ShareController {
   }
 
   @GetMapping("/by-me")
-  public ResponseEntity<?> getItemsSharedByMe() {
-    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-    String username = authentication.getName();
+  public ResponseEntity<?> getItemsSharedByMe(
+      @RequestParam(required = false) Integer limit,
+      @RequestParam(required = false) String cursor,
+      @CurrentUser User user) {
+    if (limit != null || cursor != null) {
+      return sharePage(limit, cursor,
+          (beforeId, pageSize) -> sharedItemService.findViewPageByOwner(user, beforeId, pageSize));
+    }
 
-    User user = userService.findByUsername(username).orElseThrow();
-    List<SharedItem> sharedItems = sharedItemService.findByOwner(user);
+    List<ShareView> sharedItems = sharedItemService.findViewsByOwner(user);
 
     List<Map<String, Object>> response = sharedItems.stream()
         .map(this::convertToMap)
@@ -65,15 +97,38 @@ public class ShareController {
     return ResponseEntity.ok(response);
   }
 
+  /**
+   * Read one page of shares, one row more than asked for to tell whether
+   * another page follows. The cursor is the id of the page's last share.
+   */
+  private ResponseEntity<?> sharePage(Integer limit, String cursor,
+      BiFunction<Integer, Integer, List<ShareView>> loader) {
+    int pageSize = limit != null ? limit : DEFAULT_PAGE_SIZE;
+    if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+      return ResponseEntity.badRequest().body("Limit must be between 1 and " + MAX_PAGE_SIZE);
+    }
+    Integer beforeId;
+    try {
+      beforeId = cursor != null ? Integer.valueOf(cursor) : null;
+    } catch (NumberFormatException e) {
+      return ResponseEntity.badRequest().body("Invalid cursor");
+    }
+
+    List<ShareView> rows = loader.apply(beforeId, pageSize + 1);
+    List<ShareView> page = rows.size() > pageSize ? rows.subList(0, pageSize) : rows;
+
+    ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+    if (rows.size() > pageSize) {
+      response.header(FileController.NEXT_CURSOR_HEADER, String.valueOf(page.get(page.size() - 1).id()));
+    }
+    return response.body(page.stream().map(this::convertToMap).collect(Collectors.toList()));
+  }
+
   @PostMapping("/file/{fileId}")
   public ResponseEntity<?> shareFile(
       @PathVariable Integer fileId,
-      @RequestBody Map<String, Object> shareRequest) {
-
-    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-    String username = authentication.getName();
-
-    User owner = userService.findByUsername(username).orElseThrow();
+      @RequestBody Map<String, Object> shareRequest,
+      @CurrentUser User owner) {
 
     String sharedWithUsername = (String) shareRequest.get("username");
     String permissionLevel = (String) shareRequest.get("permissionLevel");
@@ -131,18 +186,15 @@ public class ShareController {
 
     SharedItem createdSharedItem = sharedItemService.create(sharedItem);
 
-    return ResponseEntity.ok(convertToMap(createdSharedItem));
+    // Read back as a view; the owner is only a reference and not loaded
+    return ResponseEntity.ok(convertToMap(sharedItemService.findViewById(createdSharedItem.getId()).orElseThrow()));
   }
 
   @PostMapping("/directory/{directoryId}")
   public ResponseEntity<?> shareDirectory(
       @PathVariable Integer directoryId,
-      @RequestBody Map<String, Object> shareRequest) {
-
-    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-    String username = authentication.getName();
-
-    User owner = userService.findByUsername(username).orElseThrow();
+      @RequestBody Map<String, Object> shareRequest,
+      @CurrentUser User owner) {
 
     String sharedWithUsername = (String) shareRequest.get("username");
     String permissionLevel = (String) shareRequest.get("permissionLevel");
@@ -200,16 +252,121 @@ public class ShareController {
 
     SharedItem createdSharedItem = sharedItemService.create(sharedItem);
 
-    return ResponseEntity.ok(convertToMap(createdSharedItem));
+    // Read back as a view; the owner is only a reference and not loaded
+    return ResponseEntity.ok(convertToMap(sharedItemService.findViewById(createdSharedItem.getId()).orElseThrow()));
   }
 
-  @DeleteMapping("/{shareId}")
-  public ResponseEntity<?> removeSharing(@PathVariable Integer shareId) {
-    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-    String username = authentication.getName();
+  /**
+   * Evaluate the caller's access to a batch of files and directories in one
+   * pass. Body: {"items": [{"itemType": "file", "itemId": 1}, ...]}. Each
+   * item comes back with "edit" (also for the caller's own items), "view" or
+   * null.
+   */
+  @PostMapping("/access")
+  public ResponseEntity<?> resolveAccess(
+      @RequestBody Map<String, List<Map<String, Object>>> accessRequest,
+      @CurrentUser User user) {
+    List<Map<String, Object>> items = accessRequest.get("items");
+    if (items == null || items.isEmpty()) {
+      return ResponseEntity.badRequest().body("Items cannot be empty");
+    }
+    if (items.size() > MAX_ACCESS_ITEMS) {
+      return ResponseEntity.badRequest().body("At most " + MAX_ACCESS_ITEMS + " items can be checked at once");
+    }
+
+    List<SharedItemService.ItemRef> refs = new ArrayList<>(items.size());
+    try {
+      for (Map<String, Object> item : items) {
+        refs.add(new SharedItemService.ItemRef(SharedItem.ItemType.valueOf((String) item.get("itemType")),
+            (Integer) item.get("itemId")));
+      }
+    } catch (IllegalArgumentException | ClassCastException | NullPointerException e) {
+      return ResponseEntity.badRequest().body("Invalid item");
+    }
+
+    Map<SharedItemService.ItemRef, SharedItem.PermissionLevel> access = sharedItemService.resolveAccess(refs,
+        user.getId());
+
+    List<Map<String, Object>> response = refs.stream()
+        .map(ref -> {
+          Map<String, Object> map = new HashMap<>();
+          map.put("itemType", ref.type().toString());
+          map.put("itemId", ref.id());
+          SharedItem.PermissionLevel level = access.get(ref);
+          map.put("permissionLevel", level != null ? level.toString() : null);
+          return map;
+        })
+        .collect(Collectors.toList());
 
-    User user = userService.findByUsername(username).orElseThrow();
+    return ResponseEntity.ok(response);
+  }
 
+  /**
+   * Mint a signed public link to one of the caller's files or directories.
+   * Body: {"itemType": "file", "itemId": 1, "expiresInSeconds": 3600}; the
+   * expiry is optional. Anyone holding the link can download the item until
+   * it expires.
+   */
+  @PostMapping("/links")
+  public ResponseEntity<?> createPublicLink(@RequestBody Map<String, Object> linkRequest, @CurrentUser User user) {
+    SharedItem.ItemType itemType;
+    Integer itemId;
+    long expiresIn;
+    try {
+      itemType = SharedItem.ItemType.valueOf((String) linkRequest.get("itemType"));
+      itemId = (Integer) linkRequest.get("itemId");
+      Object expiresInValue = linkRequest.get("expiresInSeconds");
+      expiresIn = expiresInValue != null ? ((Number) expiresInValue).longValue() : publicLinkDefaultTtlSeconds;
+    } catch (IllegalArgumentException | ClassCastException | NullPointerException e) {
+      return ResponseEntity.badRequest().body("Invalid item");
+    }
+    if (itemId == null) {
+      return ResponseEntity.badRequest().body("Invalid item");
+    }
+    if (expiresIn < 1 || expiresIn > publicLinkMaxTtlSeconds) {
+      return ResponseEntity.badRequest().body("Expiry must be between 1 and " + publicLinkMaxTtlSeconds + " seconds");
+    }
+
+    long expiresAt = Instant.now().getEpochSecond() + expiresIn;
+    PublicLink link;
+    if (itemType == SharedItem.ItemType.file) {
+      Optional<File> fileOptional = fileService.findById(itemId);
+      if (fileOptional.isEmpty()) {
+        return ResponseEntity.notFound().build();
+      }
+      File file = fileOptional.get();
+      if (!file.getOwner().getId().equals(user.getId())) {
+        return ResponseEntity.status(403).body("Access denied");
+      }
+      link = new PublicLink(itemType, file.getId(), user.getId(), file.getName(), file.getType(), file.getSize(),
+          file.getStoredSize(), file.getContentEncoding(), file.getPath(), expiresAt);
+    } else {
+      Optional<Directory> directoryOptional = directoryService.findById(itemId);
+      if (directoryOptional.isEmpty()) {
+        return ResponseEntity.notFound().build();
+      }
+      Directory directory = directoryOptional.get();
+      if (!directory.getOwner().getId().equals(user.getId())) {
+        return ResponseEntity.status(403).body("Access denied");
+      }
+      link = new PublicLink(itemType, directory.getId(), user.getId(), directory.getName(), null, null, null, null,
+          null, expiresAt);
+    }
+
+    String token = publicLinkSigner.sign(link);
+    Map<String, Object> response = new HashMap<>();
+    response.put("itemType", itemType.toString());
+    response.put("itemId", itemId);
+    response.put("token", token);
+    response.put("url", "/api/public/links/" + token
+        + (itemType == SharedItem.ItemType.directory ? "/archive" : ""));
+    response.put("expiresAt", Instant.ofEpochSecond(expiresAt).toString());
+
+    return ResponseEntity.ok(response);
+  }
+
+  @DeleteMapping("/{shareId}")
+  public ResponseEntity<?> removeSharing(@PathVariable Integer shareId, @CurrentUser User user) {
     Optional<SharedItem> sharedItemOptional = sharedItemService.findById(shareId);
     if (sharedItemOptional.isEmpty()) {
       return ResponseEntity.notFound().build();
@@ -227,30 +384,28 @@ public class ShareController {
     return ResponseEntity.ok().build();
   }
 
-  private Map<String, Object> convertToMap(SharedItem sharedItem) {
+  private Map<String, Object> convertToMap(ShareView sharedItem) {
     Map<String, Object> map = new HashMap<>();
-    map.put("id", sharedItem.getId());
-    map.put("itemType", sharedItem.getItemType().toString());
-    map.put("itemId", sharedItem.getItemId());
-    map.put("permissionLevel", sharedItem.getPermissionLevel().toString());
+    map.put("id", sharedItem.id());
+    map.put("itemType", sharedItem.itemType().toString());
+    map.put("itemId", sharedItem.itemId());
+    map.put("permissionLevel", sharedItem.permissionLevel().toString());
 
     Map<String, Object> ownerMap = new HashMap<>();
-    ownerMap.put("id", sharedItem.getOwner().getId());
-    ownerMap.put("username", sharedItem.getOwner().getUsername());
+    ownerMap.put("id", sharedItem.ownerId());
+    ownerMap.put("username", sharedItem.ownerUsername());
 
     Map<String, Object> sharedWithMap = new HashMap<>();
-    sharedWithMap.put("id", sharedItem.getSharedWith().getId());
-    sharedWithMap.put("username", sharedItem.getSharedWith().getUsername());
+    sharedWithMap.put("id", sharedItem.sharedWithId());
+    sharedWithMap.put("username", sharedItem.sharedWithUsername());
 
     map.put("owner", ownerMap);
     map.put("sharedWith", sharedWithMap);
-    map.put("createdAt", sharedItem.getCreatedAt());
+    map.put("createdAt", sharedItem.createdAt());
 
-    // Add file or directory name for shared item
-    if (sharedItem.getItemType() == SharedItem.ItemType.file) {
-      fileService.findById(sharedItem.getItemId()).ifPresent(file -> map.put("itemName", file.getName()));
-    } else if (sharedItem.getItemType() == SharedItem.ItemType.directory) {
-      directoryService.findById(sharedItem.getItemId()).ifPresent(dir -> map.put("itemName", dir.getName()));
+    // Name of the shared file or directory, joined in by the query
+    if (sharedItem.itemName() != null) {
+      map.put("itemName", sharedItem.itemName());
     }
 
     return map;
@@ -0,0 +1,226 @@
+package com.mydrive.demo.controller;
+
+import com.mydrive.demo.entity.Directory;
+import com.mydrive.demo.entity.File;
+import com.mydrive.demo.entity.User;
+import com.mydrive.demo.security.AuthenticatedUser;
+import com.mydrive.demo.security.CurrentUser;
+import com.mydrive.demo.service.DirectoryService;
+import com.mydrive.demo.service.UploadSession;
+import com.mydrive.demo.service.UploadSessionService;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Resumable upload protocol: create a session, PUT numbered chunks in any
+ * order, query what has arrived, then commit.
+ */
+@RestController
+@RequestMapping("/api/uploads")
+public class UploadController {
+  @Autowired
+  private UploadSessionService uploadSessionService;
+
+  @Autowired
+  private DirectoryService directoryService;
+
+  @PostMapping
+  public ResponseEntity<?> createSession(@RequestBody Map<String, Object> createRequest, @CurrentUser User user) {
+    String fileName = (String) createRequest.get("fileName");
+    Number size = (Number) createRequest.get("size");
+    Number chunkSize = (Number) createRequest.get("chunkSize");
+    Integer directoryId = (Integer) createRequest.get("directoryId");
+
+    if (fileName == null || fileName.trim().isEmpty() || size == null) {
+      return ResponseEntity.badRequest().body("File name and size are required");
+    }
+
+    Directory directory = null;
+    if (directoryId != null) {
+      Optional<Directory> directoryOptional = directoryService.findById(directoryId);
+      if (directoryOptional.isEmpty()) {
+        return ResponseEntity.notFound().build();
+      }
+
+      directory = directoryOptional.get();
+
+      // Check if user is the owner of the directory
+      if (!directory.getOwner().getId().equals(user.getId())) {
+        return ResponseEntity.status(403).body("Access denied");
+      }
+    } else {
+      // Use root directory if no directoryId is provided
+      List<Directory> rootDirectories = directoryService.findRootDirectoriesByOwner(user);
+      if (!rootDirectories.isEmpty()) {
+        directory = rootDirectories.get(0);
+      }
+    }
+
+    try {
+      UploadSession session = uploadSessionService.create(user, directory, fileName,
+          (String) createRequest.get("contentType"), size.longValue(),
+          chunkSize != null ? chunkSize.intValue() : null);
+      return ResponseEntity.ok(convertToMap(session, new BitSet()));
+    } catch (IllegalArgumentException e) {
+      return ResponseEntity.badRequest().body(e.getMessage());
+    } catch (IOException e) {
+      return ResponseEntity.badRequest().body("Could not create the upload session: " + e.getMessage());
+    }
+  }
+
+  @GetMapping("/{sessionId}")
+  public ResponseEntity<?> getSession(@PathVariable String sessionId) {
+    Optional<UploadSession> sessionOptional = uploadSessionService.find(sessionId);
+    if (sessionOptional.isEmpty()) {
+      return ResponseEntity.notFound().build();
+    }
+
+    UploadSession session = sessionOptional.get();
+    if (!isSessionOwner(session)) {
+      return ResponseEntity.status(403).body("Access denied");
+    }
+
+    try {
+      return ResponseEntity.ok(convertToMap(session, uploadSessionService.receivedChunks(session)));
+    } catch (IOException e) {
+      return ResponseEntity.badRequest().body("Could not read the upload session: " + e.getMessage());
+    }
+  }
+
+  @PutMapping("/{sessionId}/chunks/{index}")
+  public ResponseEntity<?> uploadChunk(@PathVariable String sessionId, @PathVariable int index,
+      HttpServletRequest request) {
+    Optional<UploadSession> sessionOptional = uploadSessionService.find(sessionId);
+    if (sessionOptional.isEmpty()) {
+      return ResponseEntity.notFound().build();
+    }
+
+    UploadSession session = sessionOptional.get();
+    if (!isSessionOwner(session)) {
+      return ResponseEntity.status(403).body("Access denied");
+    }
+
+    try {
+      uploadSessionService.writeChunk(session, index, request.getInputStream());
+      return ResponseEntity.noContent().build();
+    } catch (IllegalArgumentException e) {
+      return ResponseEntity.badRequest().body(e.getMessage());
+    } catch (IOException e) {
+      return ResponseEntity.badRequest().body("Could not store the chunk: " + e.getMessage());
+    }
+  }
+
+  @PostMapping("/{sessionId}/commit")
+  public ResponseEntity<?> commitSession(@PathVariable String sessionId, @CurrentUser User user) {
+    Optional<UploadSession> sessionOptional = uploadSessionService.find(sessionId);
+    if (sessionOptional.isEmpty()) {
+      return ResponseEntity.notFound().build();
+    }
+
+    UploadSession session = sessionOptional.get();
+    if (!session.ownerId().equals(user.getId())) {
+      return ResponseEntity.status(403).body("Access denied");
+    }
+
+    // The target directory may have been deleted or moved since the session
+    // was created
+    Directory directory = null;
+    if (session.directoryId() != null) {
+      Optional<Directory> directoryOptional = directoryService.findById(session.directoryId());
+      if (directoryOptional.isEmpty() || !directoryOptional.get().getOwner().getId().equals(user.getId())) {
+        return ResponseEntity.badRequest().body("Target directory no longer exists");
+      }
+      directory = directoryOptional.get();
+    }
+
+    try {
+      File file = uploadSessionService.commit(session, user, directory);
+
+      Map<String, Object> response = new HashMap<>();
+      response.put("id", file.getId());
+      response.put("name", file.getName());
+      response.put("type", file.getType());
+      response.put("size", file.getSize());
+      response.put("directoryId", file.getDirectory() != null ? file.getDirectory().getId() : null);
+      response.put("createdAt", file.getCreatedAt());
+      response.put("updatedAt", file.getUpdatedAt());
+      return ResponseEntity.ok(response);
+    } catch (IllegalStateException e) {
+      return ResponseEntity.status(409).body(e.getMessage());
+    } catch (IOException | RuntimeException e) {
+      return ResponseEntity.badRequest().body("Could not commit the upload: " + e.getMessage());
+    }
+  }
+
+  @DeleteMapping("/{sessionId}")
+  public ResponseEntity<?> abortSession(@PathVariable String sessionId) {
+    Optional<UploadSession> sessionOptional = uploadSessionService.find(sessionId);
+    if (sessionOptional.isEmpty()) {
+      return ResponseEntity.notFound().build();
+    }
+
+    UploadSession session = sessionOptional.get();
+    if (!isSessionOwner(session)) {
+      return ResponseEntity.status(403).body("Access denied");
+    }
+
+    try {
+      uploadSessionService.abort(session);
+      return ResponseEntity.ok().build();
+    } catch (IllegalStateException e) {
+      return ResponseEntity.status(409).body(e.getMessage());
+    } catch (IOException e) {
+      return ResponseEntity.badRequest().body("Could not abort the upload: " + e.getMessage());
+    }
+  }
+
+  private boolean isSessionOwner(UploadSession session) {
+    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+    return authentication.getPrincipal() instanceof AuthenticatedUser principal
+        && session.ownerId().equals(principal.id());
+  }
+
+  private Map<String, Object> convertToMap(UploadSession session, BitSet received) {
+    List<Integer> receivedChunks = new ArrayList<>();
+    List<long[]> receivedRanges = new ArrayList<>();
+    long receivedBytes = 0;
+    for (int i = received.nextSetBit(0); i >= 0; i = received.nextSetBit(i + 1)) {
+      receivedChunks.add(i);
+      receivedBytes += session.chunkLength(i);
+
+      // Coalesce adjacent chunks into [start, end) byte ranges
+      long start = session.chunkOffset(i);
+      long end = start + session.chunkLength(i);
+      if (!receivedRanges.isEmpty() && receivedRanges.get(receivedRanges.size() - 1)[1] == start) {
+        receivedRanges.get(receivedRanges.size() - 1)[1] = end;
+      } else {
+        receivedRanges.add(new long[] { start, end });
+      }
+    }
+
+    Map<String, Object> map = new HashMap<>();
+    map.put("sessionId", session.id());
+    map.put("fileName", session.fileName());
+    map.put("size", session.size());
+    map.put("chunkSize", session.chunkSize());
+    map.put("chunkCount", session.chunkCount());
+    map.put("receivedChunks", receivedChunks);
+    map.put("receivedRanges", receivedRanges);
+    map.put("receivedBytes", receivedBytes);
+    map.put("complete", receivedChunks.size() == session.chunkCount());
+    map.put("createdAt", session.createdAt());
+    return map;
+  }
+}
@@ -1,11 +1,11 @@
 package com.mydrive.demo.controller;
 
 import com.mydrive.demo.entity.User;
+import com.mydrive.demo.security.AuthenticatedUser;
+import com.mydrive.demo.security.CurrentUser;
 import com.mydrive.demo.service.UserService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
-import org.springframework.security.core.Authentication;
-import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.HashMap;
@@ -19,11 +19,8 @@ public class UserController {
   private UserService userService;
 
   @GetMapping("/me")
-  public ResponseEntity<?> getCurrentUser() {
-    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-    String username = authentication.getName();
-
-    User user = userService.findByUsername(username).orElseThrow();
+  public ResponseEntity<?> getCurrentUser(@CurrentUser AuthenticatedUser principal) {
+    User user = userService.findById(principal.id()).orElseThrow();
 
     Map<String, Object> response = new HashMap<>();
     response.put("id", user.getId());
@@ -37,11 +34,9 @@ public class UserController {
   }
 
   @PutMapping("/me")
-  public ResponseEntity<?> updateCurrentUser(@RequestBody Map<String, String> updateRequest) {
-    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-    String username = authentication.getName();
-
-    Optional<User> userOptional = userService.findByUsername(username);
+  public ResponseEntity<?> updateCurrentUser(@RequestBody Map<String, String> updateRequest,
+      @CurrentUser AuthenticatedUser principal) {
+    Optional<User> userOptional = userService.findById(principal.id());
     if (userOptional.isEmpty()) {
       return ResponseEntity.notFound().build();
     }
@@ -0,0 +1,28 @@
+package com.mydrive.demo.dto;
+
+import com.mydrive.demo.entity.File;
+
+import java.time.LocalDateTime;
+
+/**
+ * Read model of a file for listings: its own columns and the id of its
+ * directory, nothing that needs another entity loaded
+ */
+public record FileView(
+    Integer id,
+    String name,
+    String type,
+    Long size,
+    Integer directoryId,
+    LocalDateTime createdAt,
+    LocalDateTime updatedAt) {
+
+  /**
+   * View of an entity already at hand; reads the directory id from the
+   * association without initializing it
+   */
+  public static FileView of(File file) {
+    return new FileView(file.getId(), file.getName(), file.getType(), file.getSize(),
+        file.getDirectory() != null ? file.getDirectory().getId() : null, file.getCreatedAt(), file.getUpdatedAt());
+  }
+}
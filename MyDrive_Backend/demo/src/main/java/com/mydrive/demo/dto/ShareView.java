@@ -0,0 +1,22 @@
+package com.mydrive.demo.dto;
+
+import com.mydrive.demo.entity.SharedItem;
+
+import java.time.LocalDateTime;
+
+/**
+ * Read model of a share with the usernames of both sides and the name of
+ * the shared item, loaded by one joined query
+ */
+public record ShareView(
+    Integer id,
+    SharedItem.ItemType itemType,
+    Integer itemId,
+    SharedItem.PermissionLevel permissionLevel,
+    Integer ownerId,
+    String ownerUsername,
+    Integer sharedWithId,
+    String sharedWithUsername,
+    LocalDateTime createdAt,
+    String itemName) {
+}
@@ -0,0 +1,30 @@
+package com.mydrive.demo.entity;
+
+import java.time.LocalDateTime;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.CreationTimestamp;
+
+@Entity
+@Table(name = "blob_chunks")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BlobChunk {
+  @Id
+  @Column(name = "chunk_hash", length = 64)
+  private String hash;
+
+  @Column(name = "chunk_size", nullable = false)
+  private Long size;
+
+  @Column(name = "ref_count", nullable = false)
+  private Long refCount;
+
+  @CreationTimestamp
+  @Column(name = "created_at")
+  private LocalDateTime createdAt;
+}
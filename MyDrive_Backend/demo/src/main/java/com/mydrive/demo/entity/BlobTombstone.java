@@ -0,0 +1,30 @@
+package com.mydrive.demo.entity;
+
+import java.time.LocalDateTime;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Stored content whose file row has been deleted and that is waiting to be
+ * released
+ */
+@Entity
+@Table(name = "blob_tombstones")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BlobTombstone {
+  @Id
+  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  @Column(name = "tombstone_id")
+  private Long id;
+
+  @Column(name = "blob_key", nullable = false, length = 500)
+  private String key;
+
+  @Column(name = "created_at", nullable = false)
+  private LocalDateTime createdAt;
+}
@@ -1,22 +1,29 @@
 package com.mydrive.demo.entity;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import jakarta.persistence.*;
 import lombok.AllArgsConstructor;
-import lombok.Data;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.hibernate.annotations.ColumnDefault;
 import org.hibernate.annotations.CreationTimestamp;
 import org.hibernate.annotations.UpdateTimestamp;
 
 @Entity
-@Table(name = "directories")
-@Data
+@Table(name = "directories", indexes = @Index(name = "idx_directories_tree_path", columnList = "tree_path"))
+@Getter
+@Setter
 @NoArgsConstructor
 @AllArgsConstructor
 public class Directory {
+  public static final int MAX_TREE_PATH_LENGTH = 768;
+
   @Id
   @GeneratedValue(strategy = GenerationType.IDENTITY)
   @Column(name = "directory_id")
@@ -25,14 +32,34 @@ public class Directory {
   @Column(name = "directory_name", nullable = false)
   private String name;
 
-  @ManyToOne
+  @ManyToOne(fetch = FetchType.LAZY)
   @JoinColumn(name = "owner_id", nullable = false)
   private User owner;
 
-  @ManyToOne
+  @ManyToOne(fetch = FetchType.LAZY)
   @JoinColumn(name = "parent_directory_id")
   private Directory parentDirectory;
 
+  // Ids of all ancestors, root first: "/" for a root, "/1/5/" two levels
+  // down. Subtree and ancestry queries use it instead of walking parents.
+  @Column(name = "tree_path", length = MAX_TREE_PATH_LENGTH)
+  private String treePath;
+
+  // Number of ancestors
+  @Column(name = "depth")
+  private Integer depth;
+
+  // Bytes and number of files in this directory and everything below it.
+  // Only ever changed by relative updates in DirectoryService, never by
+  // saving the entity, so a stale copy cannot overwrite them.
+  @ColumnDefault("0")
+  @Column(name = "total_size", nullable = false, insertable = false, updatable = false)
+  private Long totalSize = 0L;
+
+  @ColumnDefault("0")
+  @Column(name = "file_count", nullable = false, insertable = false, updatable = false)
+  private Long fileCount = 0L;
+
   @OneToMany(mappedBy = "parentDirectory", cascade = CascadeType.ALL)
   private Set<Directory> subdirectories = new HashSet<>();
 
@@ -46,4 +73,46 @@ public class Directory {
   @UpdateTimestamp
   @Column(name = "updated_at")
   private LocalDateTime updatedAt;
+
+  /**
+   * Tree path of a directory created under the given parent
+   */
+  public static String treePathUnder(Directory parent) {
+    return parent == null ? "/" : parent.subtreePath();
+  }
+
+  /**
+   * Prefix shared by the tree paths of everything below this directory
+   */
+  public String subtreePath() {
+    return treePath + id + "/";
+  }
+
+  /**
+   * Ids of all ancestors, root first
+   */
+  public List<Integer> ancestorIds() {
+    return ancestorIds(treePath);
+  }
+
+  /**
+   * Ids of all ancestors named by a tree path, root first
+   */
+  public static List<Integer> ancestorIds(String treePath) {
+    List<Integer> ids = new ArrayList<>();
+    for (String part : treePath.split("/")) {
+      if (!part.isEmpty()) {
+        ids.add(Integer.valueOf(part));
+      }
+    }
+    return ids;
+  }
+
+  @PrePersist
+  void assignTreePath() {
+    if (treePath == null) {
+      treePath = treePathUnder(parentDirectory);
+      depth = ancestorIds().size();
+    }
+  }
 }
\ No newline at end of file
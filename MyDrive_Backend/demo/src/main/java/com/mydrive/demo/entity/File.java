@@ -4,14 +4,29 @@ import java.time.LocalDateTime;
 
 import jakarta.persistence.*;
 import lombok.AllArgsConstructor;
-import lombok.Data;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.Setter;
 import org.hibernate.annotations.CreationTimestamp;
 import org.hibernate.annotations.UpdateTimestamp;
 
 @Entity
-@Table(name = "files")
-@Data
+// Listings filter on owner (and directory) and page through one sort key;
+// each index serves one of them as a single range scan
+@Table(name = "files", indexes = {
+    @Index(name = "idx_files_owner_dir_name", columnList = "owner_id, directory_id, file_name"),
+    @Index(name = "idx_files_owner_dir_size", columnList = "owner_id, directory_id, file_size"),
+    @Index(name = "idx_files_owner_dir_created", columnList = "owner_id, directory_id, created_at"),
+    @Index(name = "idx_files_owner_dir_type", columnList = "owner_id, directory_id, file_type"),
+    @Index(name = "idx_files_owner_name", columnList = "owner_id, file_name"),
+    @Index(name = "idx_files_owner_size", columnList = "owner_id, file_size"),
+    @Index(name = "idx_files_owner_created", columnList = "owner_id, created_at"),
+    @Index(name = "idx_files_owner_type", columnList = "owner_id, file_type"),
+    // Stored content is looked up by key when reconciling storage
+    @Index(name = "idx_files_path", columnList = "file_path")
+})
+@Getter
+@Setter
 @NoArgsConstructor
 @AllArgsConstructor
 public class File {
@@ -29,14 +44,27 @@ public class File {
   @Column(name = "file_size", nullable = false)
   private Long size;
 
+  // Bytes kept on disk; smaller than size when the content is compressed
+  @Column(name = "stored_size")
+  private Long storedSize;
+
+  // Encoding the content is stored with, null when stored as is
+  @Column(name = "content_encoding", length = 16)
+  private String contentEncoding;
+
+  // Hex SHA-256 of the original content, served as its ETag; null for
+  // files stored before it was recorded
+  @Column(name = "content_digest", length = 64)
+  private String contentDigest;
+
   @Column(name = "file_path", nullable = false)
   private String path;
 
-  @ManyToOne
+  @ManyToOne(fetch = FetchType.LAZY)
   @JoinColumn(name = "owner_id", nullable = false)
   private User owner;
 
-  @ManyToOne
+  @ManyToOne(fetch = FetchType.LAZY)
   @JoinColumn(name = "directory_id")
   private Directory directory;
 
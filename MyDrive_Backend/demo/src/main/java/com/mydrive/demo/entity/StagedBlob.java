@@ -0,0 +1,29 @@
+package com.mydrive.demo.entity;
+
+import java.time.LocalDateTime;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Manifest key of a blob that is being written for an upload and is not yet
+ * referenced by a file row
+ */
+@Entity
+@Table(name = "staged_blobs", indexes = @Index(name = "idx_staged_blobs_created", columnList = "created_at"))
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StagedBlob {
+  @Id
+  @Column(name = "blob_key", length = 64)
+  private String key;
+
+  @Column(name = "user_id", nullable = false)
+  private Integer userId;
+
+  @Column(name = "created_at", nullable = false)
+  private LocalDateTime createdAt;
+}
@@ -6,13 +6,17 @@ import java.util.Set;
 
 import jakarta.persistence.*;
 import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.hibernate.annotations.ColumnDefault;
 import org.hibernate.annotations.CreationTimestamp;
 import org.hibernate.annotations.UpdateTimestamp;
 
 @Entity
 @Table(name = "users")
-@lombok.Data
+@Getter
+@Setter
 @NoArgsConstructor
 @AllArgsConstructor
 public class User {
@@ -33,9 +37,17 @@ public class User {
   @Column(name = "full_name", length = 100)
   private String fullName;
 
-  @Column(name = "storage_used")
+  // Only ever changed by relative updates in UserRepository, never by saving
+  // the entity, so concurrent uploads and deletes cannot lose each other's
+  // changes
+  @Column(name = "storage_used", updatable = false)
   private Long storageUsed = 0L;
 
+  // Bytes held by uploads in progress, see QuotaService
+  @ColumnDefault("0")
+  @Column(name = "storage_reserved", nullable = false, insertable = false, updatable = false)
+  private Long storageReserved = 0L;
+
   @Column(name = "storage_limit")
   private Long storageLimit = 5368709120L; // 5GB default
 
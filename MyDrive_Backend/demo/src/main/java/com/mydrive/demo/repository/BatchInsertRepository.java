@@ -0,0 +1,92 @@
+package com.mydrive.demo.repository;
+
+import com.mydrive.demo.entity.Directory;
+import com.mydrive.demo.entity.File;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * JDBC batch inserts for bulk ingestion. Hibernate cannot batch inserts of
+ * entities with IDENTITY ids, so folder uploads write their rows here and read
+ * them back with one query. Runs on the caller's transaction.
+ */
+@Repository
+public class BatchInsertRepository {
+  private static final int BATCH_SIZE = 500;
+
+  private final JdbcTemplate jdbcTemplate;
+
+  public BatchInsertRepository(JdbcTemplate jdbcTemplate) {
+    this.jdbcTemplate = jdbcTemplate;
+  }
+
+  public void insertDirectories(List<Directory> directories) {
+    Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+    jdbcTemplate.batchUpdate(
+        "INSERT INTO directories (directory_name, owner_id, parent_directory_id, tree_path, depth, created_at, "
+            + "updated_at) VALUES (?, ?, ?, ?, ?, ?, ?)",
+        directories, BATCH_SIZE, (ps, directory) -> {
+          Directory parent = directory.getParentDirectory();
+          ps.setString(1, directory.getName());
+          ps.setInt(2, directory.getOwner().getId());
+          if (parent != null) {
+            ps.setInt(3, parent.getId());
+          } else {
+            ps.setNull(3, Types.INTEGER);
+          }
+          ps.setString(4, Directory.treePathUnder(parent));
+          ps.setInt(5, parent == null ? 0 : parent.getDepth() + 1);
+          ps.setTimestamp(6, now);
+          ps.setTimestamp(7, now);
+        });
+  }
+
+  public void insertFiles(List<File> files) {
+    Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+    jdbcTemplate.batchUpdate(
+        "INSERT INTO files (file_name, file_type, file_size, stored_size, content_encoding, content_digest, "
+            + "file_path, owner_id, directory_id, created_at, updated_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+        files, BATCH_SIZE, (ps, file) -> {
+          ps.setString(1, file.getName());
+          ps.setString(2, file.getType());
+          ps.setLong(3, file.getSize());
+          ps.setObject(4, file.getStoredSize(), Types.BIGINT);
+          ps.setString(5, file.getContentEncoding());
+          ps.setString(6, file.getContentDigest());
+          ps.setString(7, file.getPath());
+          ps.setInt(8, file.getOwner().getId());
+          if (file.getDirectory() != null) {
+            ps.setInt(9, file.getDirectory().getId());
+          } else {
+            ps.setNull(9, Types.INTEGER);
+          }
+          ps.setTimestamp(10, now);
+          ps.setTimestamp(11, now);
+        });
+  }
+
+  public void insertStagedBlobs(Collection<String> keys, Integer userId) {
+    Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+    jdbcTemplate.batchUpdate("INSERT INTO staged_blobs (blob_key, user_id, created_at) VALUES (?, ?, ?)",
+        keys, BATCH_SIZE, (ps, key) -> {
+          ps.setString(1, key);
+          ps.setInt(2, userId);
+          ps.setTimestamp(3, now);
+        });
+  }
+
+  public void insertTombstones(Collection<String> keys) {
+    Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+    jdbcTemplate.batchUpdate("INSERT INTO blob_tombstones (blob_key, created_at) VALUES (?, ?)",
+        keys, BATCH_SIZE, (ps, key) -> {
+          ps.setString(1, key);
+          ps.setTimestamp(2, now);
+        });
+  }
+}
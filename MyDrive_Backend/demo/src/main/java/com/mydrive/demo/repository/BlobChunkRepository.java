@@ -0,0 +1,34 @@
+package com.mydrive.demo.repository;
+
+import com.mydrive.demo.entity.BlobChunk;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Reference counts for content-addressed chunks. Every update runs in its own
+ * short transaction so that chunk bookkeeping never waits on the caller's
+ * transaction.
+ */
+@Repository
+public interface BlobChunkRepository extends JpaRepository<BlobChunk, String> {
+  @Modifying
+  @Transactional(propagation = Propagation.REQUIRES_NEW)
+  @Query(value = "INSERT INTO blob_chunks (chunk_hash, chunk_size, ref_count, created_at) "
+      + "VALUES (:hash, :size, 1, NOW()) ON DUPLICATE KEY UPDATE ref_count = ref_count + 1", nativeQuery = true)
+  void acquire(@Param("hash") String hash, @Param("size") long size);
+
+  @Modifying
+  @Transactional(propagation = Propagation.REQUIRES_NEW)
+  @Query("UPDATE BlobChunk c SET c.refCount = c.refCount - 1 WHERE c.hash = :hash AND c.refCount > 0")
+  int release(@Param("hash") String hash);
+
+  @Modifying
+  @Transactional(propagation = Propagation.REQUIRES_NEW)
+  @Query("DELETE FROM BlobChunk c WHERE c.hash = :hash AND c.refCount = 0")
+  int deleteIfUnreferenced(@Param("hash") String hash);
+}
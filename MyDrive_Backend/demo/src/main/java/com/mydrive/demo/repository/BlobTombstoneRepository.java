@@ -0,0 +1,27 @@
+package com.mydrive.demo.repository;
+
+import com.mydrive.demo.entity.BlobTombstone;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface BlobTombstoneRepository extends JpaRepository<BlobTombstone, Long> {
+  @Query("SELECT t FROM BlobTombstone t ORDER BY t.id")
+  List<BlobTombstone> findOldest(Limit limit);
+
+  @Query("SELECT t.key FROM BlobTombstone t WHERE t.key IN :keys")
+  List<String> findKeysIn(@Param("keys") Collection<String> keys);
+
+  @Modifying
+  @Transactional
+  @Query("DELETE FROM BlobTombstone t WHERE t.id IN :ids")
+  int deleteByIdIn(@Param("ids") Collection<Long> ids);
+}
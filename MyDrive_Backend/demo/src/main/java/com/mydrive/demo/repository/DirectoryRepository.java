@@ -2,14 +2,70 @@ package com.mydrive.demo.repository;
 
 import com.mydrive.demo.entity.Directory;
 import com.mydrive.demo.entity.User;
+import jakarta.persistence.LockModeType;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface DirectoryRepository extends JpaRepository<Directory, Integer> {
+  /**
+   * Id, name and parent of a directory, without the entity around them
+   */
+  interface TreeRow {
+    Integer getId();
+
+    String getName();
+
+    Integer getParentId();
+
+    Long getTotalSize();
+
+    Long getFileCount();
+  }
+
+  /**
+   * Recursive totals of a directory, with its tree path to roll them up
+   */
+  interface TotalsRow {
+    Integer getId();
+
+    String getTreePath();
+
+    Long getTotalSize();
+
+    Long getFileCount();
+  }
+
+  /**
+   * Bytes and file count held directly in a directory, not below it
+   */
+  interface DirectFilesRow {
+    Integer getDirectoryId();
+
+    Long getSize();
+
+    Long getCount();
+  }
+
+  /**
+   * Id and depth of a directory in a subtree being deleted
+   */
+  interface SubtreeRow {
+    Integer getId();
+
+    Integer getDepth();
+
+    String getTreePath();
+  }
+
   List<Directory> findByOwner(User owner);
 
   List<Directory> findByParentDirectoryId(Integer parentDirectoryId);
@@ -19,4 +75,96 @@ public interface DirectoryRepository extends JpaRepository<Directory, Integer> {
   List<Directory> findByOwnerAndParentDirectory(User owner, Directory parentDirectory);
 
   Optional<Directory> findByNameAndOwnerAndParentDirectory(String name, User owner, Directory parentDirectory);
-}
\ No newline at end of file
+
+  // Locking read: a concurrent move of these directories waits until the
+  // children being created under them have committed
+  @Lock(LockModeType.PESSIMISTIC_READ)
+  List<Directory> findByOwnerAndParentDirectoryIdIn(User owner, Collection<Integer> parentDirectoryIds);
+
+  /**
+   * Everything below a directory, given its subtree path
+   */
+  List<Directory> findByTreePathStartingWith(String subtreePath);
+
+  List<Directory> findByTreePathIsNull();
+
+  /**
+   * Length of the longest tree path below a directory, 0 for a leaf
+   */
+  @Query(value = "SELECT COALESCE(MAX(LENGTH(tree_path)), 0) FROM directories "
+      + "WHERE tree_path LIKE CONCAT(:subtreePath, '%')", nativeQuery = true)
+  int maxTreePathLengthInSubtree(@Param("subtreePath") String subtreePath);
+
+  @Query("SELECT d.id AS id, d.name AS name, p.id AS parentId, d.totalSize AS totalSize, d.fileCount AS fileCount "
+      + "FROM Directory d LEFT JOIN d.parentDirectory p WHERE d.owner.id = :ownerId ORDER BY d.id")
+  List<TreeRow> findTreeRowsByOwnerId(@Param("ownerId") Integer ownerId);
+
+  /**
+   * Current tree path of a directory, read under a row lock that a
+   * concurrent move of it or of an ancestor also needs
+   */
+  @Query(value = "SELECT tree_path FROM directories WHERE directory_id = :id FOR UPDATE", nativeQuery = true)
+  String lockTreePath(@Param("id") Integer id);
+
+  /**
+   * Move every directory whose tree path starts with oldPrefix under
+   * newPrefix
+   */
+  @Modifying
+  @Query("UPDATE Directory d SET d.treePath = CONCAT(:newPrefix, SUBSTRING(d.treePath, LENGTH(:oldPrefix) + 1)), "
+      + "d.depth = d.depth + :depthDelta WHERE d.treePath LIKE CONCAT(:oldPrefix, '%')")
+  int rebaseSubtree(@Param("oldPrefix") String oldPrefix, @Param("newPrefix") String newPrefix,
+      @Param("depthDelta") int depthDelta);
+
+  @Modifying
+  @Query("UPDATE Directory d SET d.totalSize = d.totalSize + :size, d.fileCount = d.fileCount + :count "
+      + "WHERE d.id IN :ids")
+  int addToTotals(@Param("ids") Collection<Integer> ids, @Param("size") long size, @Param("count") long count);
+
+  @Modifying
+  @Query("UPDATE Directory d SET d.totalSize = :size, d.fileCount = :count WHERE d.id = :id")
+  int setTotals(@Param("id") Integer id, @Param("size") long size, @Param("count") long count);
+
+  @Query(value = "SELECT directory_id AS id, tree_path AS treePath, total_size AS totalSize, file_count AS fileCount "
+      + "FROM directories WHERE owner_id = :ownerId FOR UPDATE", nativeQuery = true)
+  List<TotalsRow> lockTotalsByOwnerId(@Param("ownerId") Integer ownerId);
+
+  @Query("SELECT f.directory.id AS directoryId, SUM(f.size) AS size, COUNT(f) AS count FROM File f "
+      + "WHERE f.directory.owner.id = :ownerId GROUP BY f.directory.id")
+  List<DirectFilesRow> sumDirectFilesByOwnerId(@Param("ownerId") Integer ownerId);
+
+  /**
+   * Deepest directories below a subtree path, deepest level first
+   */
+  @Query(value = "SELECT directory_id AS id, depth AS depth, tree_path AS treePath FROM directories "
+      + "WHERE tree_path LIKE CONCAT(:subtreePath, '%') ORDER BY depth DESC, directory_id LIMIT :limit",
+      nativeQuery = true)
+  List<SubtreeRow> findDeepestInSubtree(@Param("subtreePath") String subtreePath, @Param("limit") int limit);
+
+  long countByTreePathStartingWith(String subtreePath);
+
+  /**
+   * Lock the totals rows of several directories in ascending id order, the
+   * order every totals update takes them in
+   */
+  @Query(value = "SELECT directory_id AS id, tree_path AS treePath, total_size AS totalSize, file_count AS fileCount "
+      + "FROM directories WHERE directory_id IN (:ids) ORDER BY directory_id FOR UPDATE", nativeQuery = true)
+  List<TotalsRow> lockTotalsIn(@Param("ids") Collection<Integer> ids);
+
+  /**
+   * Those of the given directories that have subdirectories
+   */
+  @Query("SELECT DISTINCT d.parentDirectory.id FROM Directory d WHERE d.parentDirectory.id IN :ids")
+  List<Integer> findParentIdsIn(@Param("ids") Collection<Integer> ids);
+
+  @Modifying
+  @Query("DELETE FROM Directory d WHERE d.id IN :ids")
+  int deleteByIdIn(@Param("ids") Collection<Integer> ids);
+
+  @Query("SELECT DISTINCT d.owner.id FROM Directory d")
+  List<Integer> findOwnerIds();
+
+  @Query("SELECT d.id AS id, d.owner.id AS ownerId, d.id AS directoryId, d.treePath AS treePath "
+      + "FROM Directory d WHERE d.id IN :ids")
+  List<ItemLocation> findLocationsByIdIn(@Param("ids") Collection<Integer> ids);
+}
@@ -1,16 +1,43 @@
 package com.mydrive.demo.repository;
 
+import com.mydrive.demo.dto.FileView;
 import com.mydrive.demo.entity.Directory;
 import com.mydrive.demo.entity.File;
 import com.mydrive.demo.entity.User;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
 @Repository
-public interface FileRepository extends JpaRepository<File, Integer> {
+public interface FileRepository extends JpaRepository<File, Integer>, JpaSpecificationExecutor<File> {
+  interface StoredContentRow {
+    Integer getId();
+
+    String getPath();
+  }
+
+  /**
+   * Id, content and size of a file, without the entity around them
+   */
+  interface StoredFileRow extends StoredContentRow {
+    Long getSize();
+  }
+
+  /**
+   * Stored file with the directory it is in
+   */
+  interface DirectoryFileRow extends StoredFileRow {
+    Integer getDirectoryId();
+  }
+
   List<File> findByOwner(User owner);
 
   List<File> findByDirectory(Directory directory);
@@ -18,4 +45,41 @@ public interface FileRepository extends JpaRepository<File, Integer> {
   List<File> findByOwnerAndDirectory(User owner, Directory directory);
 
   Optional<File> findByNameAndOwnerAndDirectory(String name, User owner, Directory directory);
+
+  List<File> findByPathIn(Collection<String> paths);
+
+  List<File> findByDirectoryIdIn(Collection<Integer> directoryIds);
+
+  @Query("SELECT new com.mydrive.demo.dto.FileView(f.id, f.name, f.type, f.size, d.id, f.createdAt, f.updatedAt) "
+      + "FROM File f LEFT JOIN f.directory d WHERE f.owner = :owner")
+  List<FileView> findViewsByOwner(@Param("owner") User owner);
+
+  @Query("SELECT new com.mydrive.demo.dto.FileView(f.id, f.name, f.type, f.size, f.directory.id, f.createdAt, "
+      + "f.updatedAt) FROM File f WHERE f.owner = :owner AND f.directory = :directory")
+  List<FileView> findViewsByOwnerAndDirectory(@Param("owner") User owner, @Param("directory") Directory directory);
+
+  @Query("SELECT new com.mydrive.demo.dto.FileView(f.id, f.name, f.type, f.size, f.directory.id, f.createdAt, "
+      + "f.updatedAt) FROM File f WHERE f.directory = :directory")
+  List<FileView> findViewsByDirectory(@Param("directory") Directory directory);
+
+  @Query("SELECT f.id AS id, f.owner.id AS ownerId, d.id AS directoryId, d.treePath AS treePath "
+      + "FROM File f LEFT JOIN f.directory d WHERE f.id IN :ids")
+  List<ItemLocation> findLocationsByIdIn(@Param("ids") Collection<Integer> ids);
+
+  @Query("SELECT f.path FROM File f WHERE f.path IN :paths")
+  List<String> findPathsIn(@Param("paths") Collection<String> paths);
+
+  /**
+   * Stored content of files in id order, one page after a file id
+   */
+  @Query("SELECT f.id AS id, f.path AS path FROM File f WHERE f.id > :afterId ORDER BY f.id")
+  List<StoredContentRow> findStoredContentAfter(@Param("afterId") Integer afterId, Limit limit);
+
+  @Query("SELECT f.id AS id, f.path AS path, f.size AS size, f.directory.id AS directoryId FROM File f "
+      + "WHERE f.directory.id IN :directoryIds ORDER BY f.id")
+  List<DirectoryFileRow> findStoredFilesIn(@Param("directoryIds") Collection<Integer> directoryIds, Limit limit);
+
+  @Modifying
+  @Query("DELETE FROM File f WHERE f.id IN :ids")
+  int deleteByIdIn(@Param("ids") Collection<Integer> ids);
 }
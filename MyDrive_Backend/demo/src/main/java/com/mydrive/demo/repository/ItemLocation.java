@@ -0,0 +1,16 @@
+package com.mydrive.demo.repository;
+
+/**
+ * Where a file or directory sits: its owner and the directory whose tree
+ * path it inherits shares along. For a directory, directoryId is its own id;
+ * for a file outside any directory it is null.
+ */
+public interface ItemLocation {
+  Integer getId();
+
+  Integer getOwnerId();
+
+  Integer getDirectoryId();
+
+  String getTreePath();
+}
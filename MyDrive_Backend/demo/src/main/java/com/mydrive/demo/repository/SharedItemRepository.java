@@ -1,21 +1,89 @@
 package com.mydrive.demo.repository;
 
+import com.mydrive.demo.dto.ShareView;
 import com.mydrive.demo.entity.SharedItem;
 import com.mydrive.demo.entity.User;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface SharedItemRepository extends JpaRepository<SharedItem, Integer> {
+  String SHARE_VIEW_SELECT = "SELECT new com.mydrive.demo.dto.ShareView(s.id, s.itemType, s.itemId, "
+      + "s.permissionLevel, o.id, o.username, w.id, w.username, s.createdAt, COALESCE(f.name, d.name)) "
+      + "FROM SharedItem s JOIN s.owner o JOIN s.sharedWith w "
+      + "LEFT JOIN File f ON s.itemType = com.mydrive.demo.entity.SharedItem.ItemType.file AND f.id = s.itemId "
+      + "LEFT JOIN Directory d ON s.itemType = com.mydrive.demo.entity.SharedItem.ItemType.directory "
+      + "AND d.id = s.itemId ";
+
   List<SharedItem> findByOwner(User owner);
 
   List<SharedItem> findBySharedWith(User sharedWith);
 
+  /**
+   * Shares with both users and the shared item's name joined in, so a
+   * listing is one query however many rows it has
+   */
+  @Query(SHARE_VIEW_SELECT + "WHERE s.owner = :user")
+  List<ShareView> findViewsByOwner(@Param("user") User owner);
+
+  @Query(SHARE_VIEW_SELECT + "WHERE s.sharedWith = :user")
+  List<ShareView> findViewsBySharedWith(@Param("user") User sharedWith);
+
+  @Query(SHARE_VIEW_SELECT + "WHERE s.id = :id")
+  Optional<ShareView> findViewById(@Param("id") Integer id);
+
+  /**
+   * One page of shares, newest first, starting below a share id. The
+   * owner_id and shared_with_id indexes carry the primary key, so each page
+   * is a range scan however deep it is.
+   */
+  @Query(SHARE_VIEW_SELECT + "WHERE s.owner = :user AND (:beforeId IS NULL OR s.id < :beforeId) ORDER BY s.id DESC")
+  List<ShareView> findViewPageByOwner(@Param("user") User owner, @Param("beforeId") Integer beforeId, Limit limit);
+
+  @Query(SHARE_VIEW_SELECT + "WHERE s.sharedWith = :user AND (:beforeId IS NULL OR s.id < :beforeId) "
+      + "ORDER BY s.id DESC")
+  List<ShareView> findViewPageBySharedWith(@Param("user") User sharedWith, @Param("beforeId") Integer beforeId,
+      Limit limit);
+
   List<SharedItem> findByItemTypeAndItemId(SharedItem.ItemType itemType, Integer itemId);
 
+  @Modifying
+  @Query("DELETE FROM SharedItem s WHERE s.itemType = :itemType AND s.itemId IN :itemIds")
+  int deleteByItemTypeAndItemIdIn(@Param("itemType") SharedItem.ItemType itemType,
+      @Param("itemIds") Collection<Integer> itemIds);
+
   Optional<SharedItem> findByItemTypeAndItemIdAndSharedWith(SharedItem.ItemType itemType, Integer itemId,
       User sharedWith);
+
+  boolean existsByItemTypeAndItemIdAndSharedWithId(SharedItem.ItemType itemType, Integer itemId, Integer userId);
+
+  boolean existsByItemTypeAndItemIdAndSharedWithIdAndPermissionLevel(SharedItem.ItemType itemType, Integer itemId,
+      Integer userId, SharedItem.PermissionLevel permissionLevel);
+
+  /**
+   * A user's shares of any of the given items
+   */
+  List<SharedItem> findBySharedWithIdAndItemTypeAndItemIdIn(Integer userId, SharedItem.ItemType itemType,
+      Collection<Integer> itemIds);
+
+  /**
+   * Levels of every share that gives a user access to a file or directory:
+   * a share of the file itself, of its directory or of any ancestor of that
+   * directory. Pass a null fileId for a directory.
+   */
+  @Query("SELECT s.permissionLevel FROM SharedItem s WHERE s.sharedWith.id = :userId AND ("
+      + "(s.itemType = com.mydrive.demo.entity.SharedItem.ItemType.file AND s.itemId = :fileId) "
+      + "OR (s.itemType = com.mydrive.demo.entity.SharedItem.ItemType.directory AND EXISTS ("
+      + "SELECT 1 FROM Directory d WHERE d.id = :directoryId "
+      + "AND (s.itemId = d.id OR d.treePath LIKE CONCAT('%/', CAST(s.itemId AS String), '/%')))))")
+  List<SharedItem.PermissionLevel> findEffectiveLevels(@Param("userId") Integer userId,
+      @Param("fileId") Integer fileId, @Param("directoryId") Integer directoryId);
 }
@@ -0,0 +1,41 @@
+package com.mydrive.demo.repository;
+
+import com.mydrive.demo.entity.StagedBlob;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface StagedBlobRepository extends JpaRepository<StagedBlob, String> {
+  /**
+   * Remove staged keys once their file rows are inserted; runs on the
+   * caller's transaction so both commit together
+   */
+  @Modifying
+  @Query("DELETE FROM StagedBlob s WHERE s.key IN :keys")
+  int deleteByKeyIn(@Param("keys") Collection<String> keys);
+
+  /**
+   * Remove a staged key in a transaction of its own; returns 0 when it was
+   * already recorded or reclaimed
+   */
+  @Modifying
+  @Transactional(propagation = Propagation.REQUIRES_NEW)
+  @Query("DELETE FROM StagedBlob s WHERE s.key = :key")
+  int claim(@Param("key") String key);
+
+  @Query("SELECT s.key FROM StagedBlob s WHERE s.key IN :keys")
+  List<String> findKeysIn(@Param("keys") Collection<String> keys);
+
+  @Query("SELECT s.key FROM StagedBlob s WHERE s.createdAt < :cutoff ORDER BY s.createdAt")
+  List<String> findKeysCreatedBefore(@Param("cutoff") LocalDateTime cutoff, Limit limit);
+}
@@ -2,12 +2,24 @@ package com.mydrive.demo.repository;
 
 import com.mydrive.demo.entity.User;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface UserRepository extends JpaRepository<User, Integer> {
+  interface StorageDriftRow {
+    Integer getId();
+
+    Long getStorageUsed();
+
+    Long getActualSize();
+  }
+
   Optional<User> findByUsername(String username);
 
   Optional<User> findByEmail(String email);
@@ -15,4 +27,50 @@ public interface UserRepository extends JpaRepository<User, Integer> {
   boolean existsByUsername(String username);
 
   boolean existsByEmail(String email);
-}
\ No newline at end of file
+
+  /**
+   * Reserve bytes for an upload if they fit next to what is used and already
+   * reserved. A single conditional update, so concurrent reservations can
+   * never overshoot the limit; returns 0 when the bytes do not fit.
+   */
+  @Modifying
+  @Query("UPDATE User u SET u.storageReserved = u.storageReserved + :bytes WHERE u.id = :id "
+      + "AND COALESCE(u.storageUsed, 0) + u.storageReserved + :bytes <= u.storageLimit")
+  int reserveStorage(@Param("id") Integer id, @Param("bytes") long bytes);
+
+  /**
+   * Turn a reservation into used storage
+   */
+  @Modifying
+  @Query("UPDATE User u SET u.storageReserved = u.storageReserved - :reserved, "
+      + "u.storageUsed = COALESCE(u.storageUsed, 0) + :used WHERE u.id = :id")
+  int commitStorage(@Param("id") Integer id, @Param("reserved") long reserved, @Param("used") long used);
+
+  @Modifying
+  @Query("UPDATE User u SET u.storageReserved = u.storageReserved - :bytes WHERE u.id = :id")
+  int releaseStorage(@Param("id") Integer id, @Param("bytes") long bytes);
+
+  /**
+   * Hold bytes again that were already reserved before a restart, without
+   * checking the limit
+   */
+  @Modifying
+  @Query("UPDATE User u SET u.storageReserved = u.storageReserved + :bytes WHERE u.id = :id")
+  int holdStorage(@Param("id") Integer id, @Param("bytes") long bytes);
+
+  @Modifying
+  @Query("UPDATE User u SET u.storageUsed = COALESCE(u.storageUsed, 0) + :bytes WHERE u.id = :id")
+  int addStorageUsed(@Param("id") Integer id, @Param("bytes") long bytes);
+
+  @Modifying
+  @Query("UPDATE User u SET u.storageReserved = 0 WHERE u.storageReserved <> 0")
+  int clearStorageReservations();
+
+  /**
+   * Users whose recorded storage used differs from the sizes of their files
+   */
+  @Query("SELECT u.id AS id, u.storageUsed AS storageUsed, COALESCE(SUM(f.size), 0) AS actualSize "
+      + "FROM User u LEFT JOIN File f ON f.owner = u GROUP BY u.id, u.storageUsed "
+      + "HAVING COALESCE(u.storageUsed, 0) <> COALESCE(SUM(f.size), 0)")
+  List<StorageDriftRow> findStorageDrift();
+}
@@ -0,0 +1,14 @@
+package com.mydrive.demo.security;
+
+import org.springframework.security.core.AuthenticatedPrincipal;
+
+/**
+ * The principal of an authenticated request: the user's immutable id and
+ * username, without the rest of the row
+ */
+public record AuthenticatedUser(Integer id, String username) implements AuthenticatedPrincipal {
+  @Override
+  public String getName() {
+    return username;
+  }
+}
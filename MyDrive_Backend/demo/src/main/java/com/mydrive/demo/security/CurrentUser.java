@@ -0,0 +1,23 @@
+package com.mydrive.demo.security;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Injects the authenticated user into a controller method parameter, either
+ * as an {@link AuthenticatedUser} or as a {@link com.mydrive.demo.entity.User}
+ * reference whose row is only loaded if something other than its id is read.
+ */
+@Target(ElementType.PARAMETER)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface CurrentUser {
+  /**
+   * Whether the request must be authenticated; when false an anonymous
+   * request gets null
+   */
+  boolean required() default true;
+}
@@ -0,0 +1,48 @@
+package com.mydrive.demo.security;
+
+import com.mydrive.demo.entity.User;
+import com.mydrive.demo.repository.UserRepository;
+import org.springframework.core.MethodParameter;
+import org.springframework.security.authentication.AuthenticationCredentialsNotFoundException;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.support.WebDataBinderFactory;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.method.support.HandlerMethodArgumentResolver;
+import org.springframework.web.method.support.ModelAndViewContainer;
+
+/**
+ * Resolves {@link CurrentUser} parameters from the principal that
+ * JwtAuthenticationFilter put in the security context. A User parameter gets
+ * a reference by id, so handlers that only compare or pass on the user never
+ * load its row.
+ */
+@Component
+public class CurrentUserArgumentResolver implements HandlerMethodArgumentResolver {
+  private final UserRepository userRepository;
+
+  public CurrentUserArgumentResolver(UserRepository userRepository) {
+    this.userRepository = userRepository;
+  }
+
+  @Override
+  public boolean supportsParameter(MethodParameter parameter) {
+    Class<?> type = parameter.getParameterType();
+    return parameter.hasParameterAnnotation(CurrentUser.class)
+        && (type == User.class || type == AuthenticatedUser.class);
+  }
+
+  @Override
+  public Object resolveArgument(MethodParameter parameter, ModelAndViewContainer mavContainer,
+      NativeWebRequest webRequest, WebDataBinderFactory binderFactory) {
+    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+    if (authentication == null || !(authentication.getPrincipal() instanceof AuthenticatedUser principal)) {
+      if (parameter.getParameterAnnotation(CurrentUser.class).required()) {
+        throw new AuthenticationCredentialsNotFoundException("No authenticated user");
+      }
+      return null;
+    }
+    return parameter.getParameterType() == User.class ? userRepository.getReferenceById(principal.id()) : principal;
+  }
+}
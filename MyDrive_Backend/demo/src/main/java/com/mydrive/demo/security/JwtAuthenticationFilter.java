@@ -2,8 +2,8 @@ package com.mydrive.demo.security;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
-import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.web.authentication.WebAuthenticationDetailsSource;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
@@ -14,15 +14,25 @@ import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
 
 @Component
 public class JwtAuthenticationFilter extends OncePerRequestFilter {
+  private static final List<SimpleGrantedAuthority> AUTHORITIES = List.of(new SimpleGrantedAuthority("ROLE_USER"));
+
   @Autowired
   private JwtTokenProvider jwtTokenProvider;
 
   @Autowired
-  private UserDetailsServiceImpl userDetailsService;
+  private PrincipalCache principalCache;
 
+  /**
+   * Authenticate from the token alone: its claims and the user's principal
+   * are both cached, so a request from a recently seen user costs neither a
+   * signature check nor a query. Tokens without a user id fall back to a
+   * lookup by name.
+   */
   @Override
   protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
       throws ServletException, IOException {
@@ -30,11 +40,14 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
       String jwt = parseJwt(request);
       if (jwt != null) {
         String username = jwtTokenProvider.getUsernameFromToken(jwt);
-        UserDetails userDetails = userDetailsService.loadUserByUsername(username);
+        Integer userId = jwtTokenProvider.getUserIdFromToken(jwt);
+        Optional<AuthenticatedUser> principal = userId != null
+            ? principalCache.get(userId)
+            : principalCache.findByUsername(username);
 
-        if (jwtTokenProvider.validateToken(jwt, userDetails)) {
+        if (principal.isPresent() && jwtTokenProvider.validateToken(jwt, principal.get().username())) {
           UsernamePasswordAuthenticationToken authentication = new UsernamePasswordAuthenticationToken(
-              userDetails, null, userDetails.getAuthorities());
+              principal.get(), null, AUTHORITIES);
           authentication.setDetails(new WebAuthenticationDetailsSource().buildDetails(request));
           SecurityContextHolder.getContext().setAuthentication(authentication);
         }
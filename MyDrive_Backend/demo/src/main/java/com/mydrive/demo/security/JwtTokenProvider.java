@@ -1,35 +1,68 @@
 package com.mydrive.demo.security;
 
+import com.mydrive.demo.cache.LruCache;
+import com.mydrive.demo.cache.LruCacheMetrics;
 import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 import io.jsonwebtoken.security.Keys;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
 import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.Map;
 import java.util.function.Function;
 
+/**
+ * Issues and verifies JWTs. The signing key and parser are built once; a
+ * token's signature is checked the first time it is seen and its claims are
+ * then served from a bounded cache until the token expires.
+ */
 @Component
 public class JwtTokenProvider {
-  @Value("${app.jwt.secret}")
-  private String jwtSecret;
+  private static final String USER_ID_CLAIM = "uid";
 
-  @Value("${app.jwt.expiration-ms}")
-  private int jwtExpirationMs;
+  private final Key signingKey;
+  private final JwtParser parser;
+  private final int jwtExpirationMs;
 
-  private Key getSigningKey() {
-    byte[] keyBytes = jwtSecret.getBytes();
-    return Keys.hmacShaKeyFor(keyBytes);
+  // Verified claims by SHA-256 of the token, so live credentials are not
+  // kept on the heap; only tokens that passed verification get in
+  private final LruCache<String, Claims> verifiedClaims;
+
+  public JwtTokenProvider(
+      @Value("${app.jwt.secret}") String jwtSecret,
+      @Value("${app.jwt.expiration-ms}") int jwtExpirationMs,
+      @Value("${app.jwt.claims-cache.max-entries:10000}") int maxCachedTokens,
+      MeterRegistry meterRegistry) {
+    this.signingKey = Keys.hmacShaKeyFor(jwtSecret.getBytes());
+    this.parser = Jwts.parserBuilder().setSigningKey(signingKey).build();
+    this.jwtExpirationMs = jwtExpirationMs;
+    this.verifiedClaims = new LruCache<>("jwtClaims", maxCachedTokens);
+    new LruCacheMetrics(verifiedClaims).bindTo(meterRegistry);
+  }
+
+  /**
+   * Token for a user, carrying the user id so requests can be authenticated
+   * without looking the user up by name
+   */
+  public String generateToken(UserDetails userDetails, Integer userId) {
+    return generateToken(userDetails.getUsername(), userId);
   }
 
-  public String generateToken(UserDetails userDetails) {
+  public String generateToken(String username, Integer userId) {
     Map<String, Object> claims = new HashMap<>();
-    return createToken(claims, userDetails.getUsername());
+    claims.put(USER_ID_CLAIM, userId);
+    return createToken(claims, username);
   }
 
   private String createToken(Map<String, Object> claims, String subject) {
@@ -38,7 +71,7 @@ public class JwtTokenProvider {
         .setSubject(subject)
         .setIssuedAt(new Date())
         .setExpiration(new Date(System.currentTimeMillis() + jwtExpirationMs))
-        .signWith(getSigningKey(), SignatureAlgorithm.HS256)
+        .signWith(signingKey, SignatureAlgorithm.HS256)
         .compact();
   }
 
@@ -46,6 +79,13 @@ public class JwtTokenProvider {
     return getClaimFromToken(token, Claims::getSubject);
   }
 
+  /**
+   * User id of a token, or null for tokens issued before it was included
+   */
+  public Integer getUserIdFromToken(String token) {
+    return getClaimFromToken(token, claims -> claims.get(USER_ID_CLAIM, Integer.class));
+  }
+
   public Date getExpirationDateFromToken(String token) {
     return getClaimFromToken(token, Claims::getExpiration);
   }
@@ -55,21 +95,43 @@ public class JwtTokenProvider {
     return claimsResolver.apply(claims);
   }
 
+  /**
+   * Claims of a valid token. A cached entry that has expired since it was
+   * verified is dropped and the token parsed again, which rejects it.
+   */
   private Claims getAllClaimsFromToken(String token) {
-    return Jwts.parserBuilder()
-        .setSigningKey(getSigningKey())
-        .build()
-        .parseClaimsJws(token)
-        .getBody();
+    String tokenHash = sha256(token);
+    Claims claims = verifiedClaims.get(tokenHash, key -> parser.parseClaimsJws(token).getBody());
+    if (isExpired(claims)) {
+      verifiedClaims.invalidate(tokenHash);
+      return parser.parseClaimsJws(token).getBody();
+    }
+    return claims;
   }
 
+  /**
+   * Check a token against a user with a single claims lookup
+   */
   public boolean validateToken(String token, UserDetails userDetails) {
-    final String username = getUsernameFromToken(token);
-    return (username.equals(userDetails.getUsername()) && !isTokenExpired(token));
+    return validateToken(token, userDetails.getUsername());
+  }
+
+  public boolean validateToken(String token, String username) {
+    final Claims claims = getAllClaimsFromToken(token);
+    return claims.getSubject().equals(username) && !isExpired(claims);
+  }
+
+  private static boolean isExpired(Claims claims) {
+    Date expiration = claims.getExpiration();
+    return expiration != null && expiration.before(new Date());
   }
 
-  private boolean isTokenExpired(String token) {
-    final Date expiration = getExpirationDateFromToken(token);
-    return expiration.before(new Date());
+  private static String sha256(String token) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return HexFormat.of().formatHex(digest.digest(token.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
   }
 }
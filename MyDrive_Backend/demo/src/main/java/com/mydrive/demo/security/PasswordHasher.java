@@ -0,0 +1,89 @@
+package com.mydrive.demo.security;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Runs password hashing on its own bounded pool, away from request threads.
+ * Every method throws RejectedExecutionException right away when the pool
+ * and its queue are full. Hash latency is recorded under password.hashing,
+ * tagged with the operation, and the pool's queue depth, active threads and
+ * rejections under password.hashing.queued, .active and .rejected.
+ */
+@Component
+public class PasswordHasher {
+  // Stand-in hash checked for unknown users, so that they take as long to
+  // turn away as a wrong password
+  private static final String UNKNOWN_USER_PASSWORD = "userNotFoundPassword";
+
+  private final PasswordEncoder passwordEncoder;
+  private final ThreadPoolTaskExecutor executor;
+  private final Timer verifyTimer;
+  private final Timer encodeTimer;
+  private final Counter rejections;
+  private volatile String unknownUserHash;
+
+  public PasswordHasher(
+      PasswordEncoder passwordEncoder,
+      @Qualifier("passwordHashingExecutor") ThreadPoolTaskExecutor executor,
+      MeterRegistry meterRegistry) {
+    this.passwordEncoder = passwordEncoder;
+    this.executor = executor;
+    this.verifyTimer = Timer.builder("password.hashing").tag("operation", "verify").register(meterRegistry);
+    this.encodeTimer = Timer.builder("password.hashing").tag("operation", "encode").register(meterRegistry);
+    this.rejections = Counter.builder("password.hashing.rejected").register(meterRegistry);
+    Gauge.builder("password.hashing.queued", executor, pool -> pool.getThreadPoolExecutor().getQueue().size())
+        .register(meterRegistry);
+    Gauge.builder("password.hashing.active", executor, ThreadPoolTaskExecutor::getActiveCount)
+        .register(meterRegistry);
+  }
+
+  public CompletableFuture<Boolean> matches(String rawPassword, String encodedPassword) {
+    return submit(verifyTimer, () -> passwordEncoder.matches(rawPassword, encodedPassword));
+  }
+
+  /**
+   * Spend the time of a password check for a user that does not exist; the
+   * result is always false
+   */
+  public CompletableFuture<Boolean> mismatch(String rawPassword) {
+    return submit(verifyTimer, () -> {
+      if (unknownUserHash == null) {
+        unknownUserHash = passwordEncoder.encode(UNKNOWN_USER_PASSWORD);
+      }
+      passwordEncoder.matches(rawPassword, unknownUserHash);
+      return false;
+    });
+  }
+
+  public CompletableFuture<String> encode(String rawPassword) {
+    return submit(encodeTimer, () -> passwordEncoder.encode(rawPassword));
+  }
+
+  /**
+   * Whether a hash was made with weaker settings than the current ones and
+   * should be replaced
+   */
+  public boolean upgradeEncoding(String encodedPassword) {
+    return passwordEncoder.upgradeEncoding(encodedPassword);
+  }
+
+  private <T> CompletableFuture<T> submit(Timer timer, Supplier<T> task) {
+    try {
+      return CompletableFuture.supplyAsync(() -> timer.record(task), executor);
+    } catch (RejectedExecutionException e) {
+      rejections.increment();
+      throw e;
+    }
+  }
+}
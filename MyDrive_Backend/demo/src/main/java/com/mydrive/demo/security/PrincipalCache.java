@@ -0,0 +1,48 @@
+package com.mydrive.demo.security;
+
+import com.mydrive.demo.cache.Invalidation;
+import com.mydrive.demo.cache.LruCache;
+import com.mydrive.demo.cache.LruCacheMetrics;
+import com.mydrive.demo.repository.UserRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Optional;
+
+/**
+ * Principals of recently seen users by id, so that authenticating a request
+ * whose token carries the user id needs no query. Empty when the user no
+ * longer exists. Entries are dropped whenever their user changes.
+ */
+@Component
+public class PrincipalCache {
+  private final UserRepository userRepository;
+  private final LruCache<Integer, Optional<AuthenticatedUser>> principals;
+
+  public PrincipalCache(
+      UserRepository userRepository,
+      MeterRegistry meterRegistry,
+      @Value("${app.principal-cache.max-entries:10000}") int maxEntries) {
+    this.userRepository = userRepository;
+    this.principals = new LruCache<>("principals", maxEntries);
+    new LruCacheMetrics(principals).bindTo(meterRegistry);
+  }
+
+  public Optional<AuthenticatedUser> get(Integer userId) {
+    return principals.get(userId, id -> userRepository.findById(id)
+        .map(user -> new AuthenticatedUser(user.getId(), user.getUsername())));
+  }
+
+  /**
+   * Look a user up by name, for tokens issued before they carried the id
+   */
+  public Optional<AuthenticatedUser> findByUsername(String username) {
+    return userRepository.findByUsername(username)
+        .map(user -> new AuthenticatedUser(user.getId(), user.getUsername()));
+  }
+
+  public void invalidate(Integer userId) {
+    Invalidation.nowAndAfterCompletion(() -> principals.invalidate(userId));
+  }
+}
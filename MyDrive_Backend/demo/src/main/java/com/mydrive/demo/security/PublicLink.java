@@ -0,0 +1,26 @@
+package com.mydrive.demo.security;
+
+import com.mydrive.demo.entity.SharedItem;
+
+/**
+ * What a public link grants, as sealed into its token. File links carry
+ * everything needed to serve the content, so they can be answered without
+ * touching the database; directory links only name the directory. Tokens are
+ * encrypted, so none of this is visible to whoever holds the link.
+ */
+public record PublicLink(
+    SharedItem.ItemType itemType,
+    Integer itemId,
+    Integer ownerId,
+    String name,
+    String contentType,
+    Long size,
+    Long storedSize,
+    String contentEncoding,
+    String path,
+    long expiresAt) {
+
+  public boolean isExpired(long nowEpochSecond) {
+    return nowEpochSecond >= expiresAt;
+  }
+}
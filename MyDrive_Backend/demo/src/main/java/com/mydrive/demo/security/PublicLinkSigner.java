@@ -0,0 +1,134 @@
+package com.mydrive.demo.security;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Optional;
+
+/**
+ * Seals and verifies public link tokens: the link as JSON, encrypted and
+ * authenticated with AES-GCM under a random nonce, base64url encoded. The
+ * storage key, owner and size a file link carries are not readable from the
+ * token, and a token that was altered in any way fails to open.
+ *
+ * The AES key is derived from the configured secret for this purpose alone,
+ * so it differs from the JWT signing key even when both come from the same
+ * secret. Tokens cannot be revoked before they expire; a file link stops
+ * working once the file is deleted, as its content goes with it.
+ */
+@Component
+public class PublicLinkSigner {
+  private static final String CIPHER = "AES/GCM/NoPadding";
+  private static final String KEY_LABEL = "mydrive public link encryption v1";
+  private static final int NONCE_BYTES = 12;
+  private static final int TAG_BITS = 128;
+
+  private final ObjectMapper objectMapper;
+  private final SecretKeySpec key;
+  private final ThreadLocal<Cipher> ciphers;
+  private final SecureRandom random = new SecureRandom();
+
+  public PublicLinkSigner(
+      ObjectMapper objectMapper,
+      @Value("${app.public-links.secret:${app.jwt.secret}}") String secret) {
+    this.objectMapper = objectMapper;
+    this.key = new SecretKeySpec(deriveKey(secret), "AES");
+    this.ciphers = ThreadLocal.withInitial(() -> {
+      try {
+        return Cipher.getInstance(CIPHER);
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("AES-GCM is not available", e);
+      }
+    });
+  }
+
+  /**
+   * 256-bit key for link tokens: HMAC-SHA256 of a fixed label under the
+   * secret
+   */
+  private static byte[] deriveKey(String secret) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+      return mac.doFinal(KEY_LABEL.getBytes(StandardCharsets.UTF_8));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("HMAC-SHA256 is not available", e);
+    }
+  }
+
+  public String sign(PublicLink link) {
+    byte[] payload;
+    try {
+      payload = objectMapper.writeValueAsBytes(link);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    byte[] nonce = new byte[NONCE_BYTES];
+    random.nextBytes(nonce);
+    byte[] sealed;
+    try {
+      Cipher cipher = ciphers.get();
+      cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+      sealed = cipher.doFinal(payload);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Could not seal a public link", e);
+    }
+
+    byte[] token = Arrays.copyOf(nonce, NONCE_BYTES + sealed.length);
+    System.arraycopy(sealed, 0, token, NONCE_BYTES, sealed.length);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+  }
+
+  /**
+   * The link a token stands for, or empty when the token is malformed, was
+   * altered or has expired
+   */
+  public Optional<PublicLink> verify(String token) {
+    byte[] bytes;
+    try {
+      bytes = Base64.getUrlDecoder().decode(token);
+    } catch (IllegalArgumentException e) {
+      return Optional.empty();
+    }
+    // Only the canonical encoding is accepted: the decoder ignores padding
+    // and unused trailing bits, and every link should have exactly one URL
+    // for caches to key on
+    byte[] canonical = Base64.getUrlEncoder().withoutPadding().encode(bytes);
+    if (!MessageDigest.isEqual(token.getBytes(StandardCharsets.US_ASCII), canonical)
+        || bytes.length <= NONCE_BYTES) {
+      return Optional.empty();
+    }
+
+    byte[] payload;
+    try {
+      Cipher cipher = ciphers.get();
+      cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, bytes, 0, NONCE_BYTES));
+      payload = cipher.doFinal(bytes, NONCE_BYTES, bytes.length - NONCE_BYTES);
+    } catch (GeneralSecurityException e) {
+      return Optional.empty();
+    }
+
+    PublicLink link;
+    try {
+      link = objectMapper.readValue(payload, PublicLink.class);
+    } catch (IOException e) {
+      return Optional.empty();
+    }
+    return link.isExpired(Instant.now().getEpochSecond()) ? Optional.empty() : Optional.of(link);
+  }
+}
@@ -0,0 +1,138 @@
+package com.mydrive.demo.service;
+
+import com.mydrive.demo.entity.Directory;
+import com.mydrive.demo.entity.File;
+import com.mydrive.demo.storage.CompressionPolicy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.attribute.FileTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams a directory subtree as a ZIP archive. Entries are written straight
+ * to the response as their content is read, so nothing is staged in memory or
+ * on disk. Content that is already compressed is stored; everything else is
+ * deflated. ZipOutputStream switches to ZIP64 records on its own once sizes,
+ * offsets or the entry count outgrow the classic format.
+ */
+@Service
+public class ArchiveService {
+  private final DirectoryService directoryService;
+  private final FileService fileService;
+  private final CompressionPolicy compressionPolicy;
+
+  /**
+   * One archive entry; directories have no file
+   */
+  public record Entry(String path, File file) {
+  }
+
+  @Autowired
+  public ArchiveService(DirectoryService directoryService, FileService fileService,
+      CompressionPolicy compressionPolicy) {
+    this.directoryService = directoryService;
+    this.fileService = fileService;
+    this.compressionPolicy = compressionPolicy;
+  }
+
+  /**
+   * List the entries of a subtree, parents before children. Only metadata is
+   * loaded here, with one query for the directories and one per thousand
+   * directories for their files, so this can run inside the request before
+   * streaming starts.
+   */
+  public List<Entry> collectEntries(Directory root) {
+    List<Directory> directories = new ArrayList<>(directoryService.findSubtree(root));
+    directories.sort(Comparator.comparing(Directory::getDepth).thenComparing(Directory::getId));
+    directories.add(0, root);
+
+    Map<Integer, List<File>> filesByDirectory = fileService.findByDirectoryIds(
+        directories.stream().map(Directory::getId).toList()).stream()
+        .collect(Collectors.groupingBy(file -> file.getDirectory().getId()));
+
+    List<Entry> entries = new ArrayList<>();
+    Set<String> usedPaths = new HashSet<>();
+    Map<Integer, String> paths = new HashMap<>();
+    for (Directory directory : directories) {
+      String parentPath = directory == root ? "" : paths.get(directory.getParentDirectory().getId());
+      String path = uniquePath(usedPaths, parentPath, directory.getName()) + "/";
+      paths.put(directory.getId(), path);
+      entries.add(new Entry(path, null));
+
+      for (File file : filesByDirectory.getOrDefault(directory.getId(), List.of())) {
+        entries.add(new Entry(uniquePath(usedPaths, path, file.getName()), file));
+      }
+    }
+    return entries;
+  }
+
+  public void writeArchive(List<Entry> entries, OutputStream out) throws IOException {
+    ZipOutputStream zip = new ZipOutputStream(out);
+    for (Entry entry : entries) {
+      ZipEntry zipEntry = new ZipEntry(entry.path());
+      File file = entry.file();
+      if (file == null) {
+        zipEntry.setMethod(ZipEntry.STORED);
+        zipEntry.setSize(0);
+        zipEntry.setCrc(0);
+        zip.putNextEntry(zipEntry);
+        zip.closeEntry();
+        continue;
+      }
+
+      if (file.getUpdatedAt() != null) {
+        zipEntry.setLastModifiedTime(FileTime.from(file.getUpdatedAt().atZone(ZoneId.systemDefault()).toInstant()));
+      }
+
+      // Storing needs the size and CRC up front; content stored before the
+      // CRC was recorded is deflated without compression instead
+      Long crc = compressionPolicy.isCompressible(file.getType()) ? null : fileService.contentCrc32(file);
+      if (crc != null) {
+        zipEntry.setMethod(ZipEntry.STORED);
+        zipEntry.setSize(file.getSize());
+        zipEntry.setCompressedSize(file.getSize());
+        zipEntry.setCrc(crc);
+      } else {
+        zip.setLevel(compressionPolicy.isCompressible(file.getType())
+            ? Deflater.DEFAULT_COMPRESSION
+            : Deflater.NO_COMPRESSION);
+      }
+
+      zip.putNextEntry(zipEntry);
+      try (InputStream content = fileService.openContent(file, 0, file.getSize())) {
+        content.transferTo(zip);
+      }
+      zip.closeEntry();
+    }
+    zip.finish();
+    zip.flush();
+  }
+
+  private static String uniquePath(Set<String> usedPaths, String parent, String name) {
+    String base = name.replace('/', '_').replace('\\', '_');
+    String candidate = parent + base;
+    int dot = base.lastIndexOf('.');
+    for (int n = 1; !usedPaths.add(candidate.toLowerCase(Locale.ROOT)); n++) {
+      candidate = dot > 0
+          ? parent + base.substring(0, dot) + " (" + n + ")" + base.substring(dot)
+          : parent + base + " (" + n + ")";
+    }
+    return candidate;
+  }
+}
@@ -0,0 +1,100 @@
+package com.mydrive.demo.service;
+
+import com.mydrive.demo.entity.BlobTombstone;
+import com.mydrive.demo.repository.BatchInsertRepository;
+import com.mydrive.demo.repository.BlobTombstoneRepository;
+import com.mydrive.demo.storage.BlobStore;
+import com.mydrive.demo.storage.StorageBackend;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.Limit;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Deferred release of stored content. Deleting files only records
+ * tombstones for their content, in the transaction that deletes the rows;
+ * the content is released here in batches afterwards. Deletes return
+ * without touching storage, and content is still freed if the node goes
+ * down in between.
+ */
+@Service
+public class BlobReclaimer {
+  private static final Logger logger = LoggerFactory.getLogger(BlobReclaimer.class);
+
+  private static final int BATCH_SIZE = 500;
+
+  private final BlobTombstoneRepository tombstoneRepository;
+  private final BatchInsertRepository batchInsertRepository;
+  private final BlobStore blobStore;
+  private final StorageBackend storageBackend;
+
+  public BlobReclaimer(
+      BlobTombstoneRepository tombstoneRepository,
+      BatchInsertRepository batchInsertRepository,
+      BlobStore blobStore,
+      StorageBackend storageBackend) {
+    this.tombstoneRepository = tombstoneRepository;
+    this.batchInsertRepository = batchInsertRepository;
+    this.blobStore = blobStore;
+    this.storageBackend = storageBackend;
+  }
+
+  /**
+   * Record content of deleted files for release, in the transaction that
+   * deletes them
+   */
+  @Transactional(propagation = Propagation.MANDATORY)
+  public void bury(Collection<String> keys) {
+    if (!keys.isEmpty()) {
+      batchInsertRepository.insertTombstones(keys);
+    }
+  }
+
+  @Scheduled(fixedDelayString = "${file.reclaim.interval-ms:5000}")
+  public void reclaim() {
+    int released = 0;
+    List<BlobTombstone> batch;
+    List<Long> done;
+    do {
+      batch = tombstoneRepository.findOldest(Limit.of(BATCH_SIZE));
+      done = new ArrayList<>(batch.size());
+      for (BlobTombstone tombstone : batch) {
+        try {
+          release(tombstone.getKey());
+          done.add(tombstone.getId());
+        } catch (IOException | RuntimeException ex) {
+          logger.warn("Could not release stored content {}", tombstone.getKey(), ex);
+        }
+      }
+      // Releasing is idempotent, so a tombstone that outlives its release
+      // through a crash is simply released again
+      if (!done.isEmpty()) {
+        tombstoneRepository.deleteByIdIn(done);
+      }
+      released += done.size();
+    } while (batch.size() == BATCH_SIZE && !done.isEmpty());
+    if (released > 0) {
+      logger.debug("Released content of {} deleted file(s)", released);
+    }
+  }
+
+  /**
+   * Release stored content by key: a blob store manifest, or a plain file
+   * stored before the blob store existed
+   */
+  public void release(String key) throws IOException {
+    if (BlobStore.isManifest(key)) {
+      blobStore.release(key);
+    } else {
+      storageBackend.delete(key);
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package com.mydrive.demo.service;
+
+import com.mydrive.demo.repository.BatchInsertRepository;
+import com.mydrive.demo.repository.StagedBlobRepository;
+import com.mydrive.demo.storage.BlobStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Blobs written for uploads that have not been recorded as files yet. A key
+ * is staged in a short transaction of its own before the first byte is
+ * written, and unstaged by the transaction that inserts the file row, so no
+ * transaction is open while content is written and content of an upload
+ * that never finished is still known. Abandoned stages are reclaimed by a
+ * janitor.
+ */
+@Service
+public class BlobStaging {
+  private static final Logger logger = LoggerFactory.getLogger(BlobStaging.class);
+
+  private static final int BATCH_SIZE = 500;
+
+  private final StagedBlobRepository stagedBlobRepository;
+  private final BatchInsertRepository batchInsertRepository;
+  private final BlobStore blobStore;
+  private final TransactionTemplate separateTransaction;
+  private final Duration stagedTtl;
+
+  public BlobStaging(
+      StagedBlobRepository stagedBlobRepository,
+      BatchInsertRepository batchInsertRepository,
+      BlobStore blobStore,
+      PlatformTransactionManager transactionManager,
+      @Value("${file.upload.staged-ttl-hours:6}") long stagedTtlHours) {
+    this.stagedBlobRepository = stagedBlobRepository;
+    this.batchInsertRepository = batchInsertRepository;
+    this.blobStore = blobStore;
+    this.separateTransaction = new TransactionTemplate(transactionManager);
+    this.separateTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    this.stagedTtl = Duration.ofHours(stagedTtlHours);
+  }
+
+  /**
+   * Allocate and record manifest keys for blobs a user is about to upload
+   */
+  public List<String> stage(Integer userId, int count) {
+    List<String> keys = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      keys.add(BlobStore.newKey());
+    }
+    separateTransaction.executeWithoutResult(status -> batchInsertRepository.insertStagedBlobs(keys, userId));
+    return keys;
+  }
+
+  /**
+   * Mark staged blobs as recorded, in the transaction that records them.
+   * Fails when any of them was reclaimed in the meantime, so a file row can
+   * never point at released content.
+   */
+  @Transactional(propagation = Propagation.MANDATORY)
+  public void unstage(List<String> keys) {
+    int removed = 0;
+    for (int from = 0; from < keys.size(); from += BATCH_SIZE) {
+      removed += stagedBlobRepository.deleteByKeyIn(keys.subList(from, Math.min(keys.size(), from + BATCH_SIZE)));
+    }
+    if (removed != keys.size()) {
+      throw new IllegalStateException("Upload was abandoned before it was recorded");
+    }
+  }
+
+  /**
+   * Release staged blobs that their upload will not record. The content is
+   * released even when the janitor reclaimed the stage first, since the
+   * upload may have written it after the janitor looked; the row goes last,
+   * so an interrupted discard is finished by the janitor.
+   */
+  public void discard(Collection<String> keys) {
+    for (String key : keys) {
+      try {
+        blobStore.release(key);
+        stagedBlobRepository.claim(key);
+      } catch (IOException | RuntimeException ex) {
+        logger.warn("Could not release staged blob {}", key, ex);
+      }
+    }
+  }
+
+  /**
+   * Release blobs staged longer ago than any upload can take, left behind
+   * by uploads whose request died or whose node went down mid-write
+   */
+  @Scheduled(fixedDelayString = "${file.upload.staged-cleanup-ms:900000}")
+  public void reclaimAbandoned() {
+    LocalDateTime cutoff = LocalDateTime.now().minus(stagedTtl);
+    int reclaimed = 0;
+    List<String> keys;
+    int claimed;
+    do {
+      keys = stagedBlobRepository.findKeysCreatedBefore(cutoff, Limit.of(BATCH_SIZE));
+      claimed = 0;
+      for (String key : keys) {
+        if (reclaim(key)) {
+          claimed++;
+        }
+      }
+      reclaimed += claimed;
+    } while (keys.size() == BATCH_SIZE && claimed > 0);
+    if (reclaimed > 0) {
+      logger.info("Reclaimed {} abandoned staged blob(s)", reclaimed);
+    }
+  }
+
+  /**
+   * Release one abandoned blob, unless its upload recorded or discarded it
+   * in the meantime. Only the janitor that deletes the row releases the
+   * content, so a blob that was just recorded as a file is left alone.
+   */
+  private boolean reclaim(String key) {
+    try {
+      if (stagedBlobRepository.claim(key) == 0) {
+        return false;
+      }
+      blobStore.release(key);
+      return true;
+    } catch (IOException | RuntimeException ex) {
+      logger.warn("Could not reclaim staged blob {}", key, ex);
+      return false;
+    }
+  }
+}
@@ -1,22 +1,44 @@
 package com.mydrive.demo.service;
 
 import com.mydrive.demo.entity.Directory;
+import com.mydrive.demo.entity.File;
 import com.mydrive.demo.entity.User;
+import com.mydrive.demo.repository.BatchInsertRepository;
 import com.mydrive.demo.repository.DirectoryRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 @Service
 public class DirectoryService {
   private final DirectoryRepository directoryRepository;
+  private final BatchInsertRepository batchInsertRepository;
+  private final DirectoryTreeCache treeCache;
+  private final SharedItemService sharedItemService;
+  private final SubtreeDeleter subtreeDeleter;
 
   @Autowired
-  public DirectoryService(DirectoryRepository directoryRepository) {
+  public DirectoryService(DirectoryRepository directoryRepository, BatchInsertRepository batchInsertRepository,
+      DirectoryTreeCache treeCache, SharedItemService sharedItemService, SubtreeDeleter subtreeDeleter) {
     this.directoryRepository = directoryRepository;
+    this.batchInsertRepository = batchInsertRepository;
+    this.treeCache = treeCache;
+    this.sharedItemService = sharedItemService;
+    this.subtreeDeleter = subtreeDeleter;
   }
 
   public List<Directory> findAll() {
@@ -47,19 +69,291 @@ public class DirectoryService {
     return directoryRepository.findByNameAndOwnerAndParentDirectory(name, owner, parentDirectory);
   }
 
+  /**
+   * Root directories of an owner, served from the directory tree cache
+   */
+  public List<DirectoryTree.Node> listRoots(User owner) {
+    return treeCache.get(owner.getId()).roots();
+  }
+
+  /**
+   * Direct subdirectories of a directory, served from the directory tree
+   * cache
+   */
+  public List<DirectoryTree.Node> listChildren(Directory directory) {
+    return treeCache.get(directory.getOwner().getId()).children(directory.getId());
+  }
+
   @Transactional
   public Directory create(Directory directory) {
+    if (directory.getParentDirectory() != null) {
+      lockTreePath(directory.getParentDirectory());
+    }
+    checkTreePathLength(Directory.treePathUnder(directory.getParentDirectory()).length());
+    treeCache.invalidate(directory.getOwner().getId());
     return directoryRepository.save(directory);
   }
 
+  /**
+   * Move a directory under a new parent, rewriting the tree path of its whole
+   * subtree in one statement. The directory, the new parent and all their
+   * ancestors are locked up front in ascending id order, the order uploads
+   * and deletes take them in.
+   *
+   * @throws IllegalStateException if either directory was moved since it
+   *         was read
+   */
+  @Transactional
+  public Directory move(Directory directory, Directory newParent) {
+    DirectoryRepository.TotalsRow totals = lockForMove(directory, newParent);
+    if (newParent.getId().equals(directory.getId()) || isSubdirectory(directory, newParent)) {
+      throw new IllegalArgumentException("Cannot move a directory into itself");
+    }
+    // Every tree path in the subtree changes by the same number of characters
+    int growth = Directory.treePathUnder(newParent).length() - directory.getTreePath().length();
+    checkTreePathLength(directory.getTreePath().length() + growth);
+    if (growth > 0) {
+      int deepest = directoryRepository.maxTreePathLengthInSubtree(directory.subtreePath());
+      if (deepest > 0) {
+        checkTreePathLength(deepest + growth);
+      }
+    }
+
+    treeCache.invalidate(directory.getOwner().getId());
+    sharedItemService.invalidateInheritedPermissions();
+    List<Integer> oldAncestors = directory.ancestorIds();
+    String oldPrefix = directory.subtreePath();
+    int oldDepth = directory.getDepth();
+    directory.setParentDirectory(newParent);
+    directory.setTreePath(Directory.treePathUnder(newParent));
+    directory.setDepth(directory.ancestorIds().size());
+    Directory moved = directoryRepository.saveAndFlush(directory);
+
+    directoryRepository.rebaseSubtree(oldPrefix, moved.subtreePath(), moved.getDepth() - oldDepth);
+
+    // Ancestors the directory leaves lose its totals, ones it joins gain them
+    List<Integer> newAncestors = moved.ancestorIds();
+    List<Integer> left = oldAncestors.stream().filter(id -> !newAncestors.contains(id)).toList();
+    List<Integer> joined = newAncestors.stream().filter(id -> !oldAncestors.contains(id)).toList();
+    if (!left.isEmpty()) {
+      directoryRepository.addToTotals(left, -totals.getTotalSize(), -totals.getFileCount());
+    }
+    if (!joined.isEmpty()) {
+      directoryRepository.addToTotals(joined, totals.getTotalSize(), totals.getFileCount());
+    }
+    return moved;
+  }
+
   @Transactional
   public Directory update(Directory directory) {
+    treeCache.invalidate(directory.getOwner().getId());
     return directoryRepository.save(directory);
   }
 
+  /**
+   * Delete a directory with everything below it, including shares of any of
+   * it. Content of the deleted files is handed to BlobReclaimer and their
+   * size given back to the owner's quota. Large subtrees are deleted in the
+   * background.
+   *
+   * @return true when the directory is gone, false when it is still being
+   *         deleted
+   */
+  public boolean delete(Integer id) {
+    return directoryRepository.findById(id).map(subtreeDeleter::delete).orElse(true);
+  }
+
+  /**
+   * Count files into the totals of their directories and every ancestor
+   */
+  @Transactional
+  public void addToTotals(Collection<File> files) {
+    adjustTotals(files, 1);
+  }
+
+  /**
+   * Take files out of the totals of their directories and every ancestor
+   */
+  @Transactional
+  public void removeFromTotals(Collection<File> files) {
+    adjustTotals(files, -1);
+  }
+
+  /**
+   * Sum the changes per directory along each ancestor chain and apply them
+   * with one update per distinct change, so a single file costs one
+   * statement however deep it sits
+   */
+  private void adjustTotals(Collection<File> files, int sign) {
+    Map<Integer, Long> sizes = new HashMap<>();
+    Map<Integer, Long> counts = new HashMap<>();
+    Set<Integer> owners = new HashSet<>();
+    for (File file : files) {
+      Directory directory = file.getDirectory();
+      if (directory == null) {
+        continue;
+      }
+      owners.add(directory.getOwner().getId());
+      List<Integer> chain = new ArrayList<>(directory.ancestorIds());
+      chain.add(directory.getId());
+      for (Integer id : chain) {
+        sizes.merge(id, sign * file.getSize(), Long::sum);
+        counts.merge(id, (long) sign, Long::sum);
+      }
+    }
+
+    Map<List<Long>, List<Integer>> idsByChange = new HashMap<>();
+    sizes.forEach((id, size) -> idsByChange.computeIfAbsent(List.of(size, counts.get(id)), change -> new ArrayList<>())
+        .add(id));
+    idsByChange.forEach((change, ids) -> directoryRepository.addToTotals(ids, change.get(0), change.get(1)));
+    owners.forEach(treeCache::invalidate);
+  }
+
+  /**
+   * Recompute the totals of all of an owner's directories from their files
+   * and repair the ones that drifted. The owner's directory rows are locked
+   * first, so totals updates of concurrent uploads wait for the repair
+   * instead of being lost in it.
+   *
+   * @return number of directories repaired
+   */
+  @Transactional
+  public int recomputeTotals(Integer ownerId) {
+    List<DirectoryRepository.TotalsRow> rows = directoryRepository.lockTotalsByOwnerId(ownerId);
+    Map<Integer, DirectoryRepository.TotalsRow> byId = new HashMap<>();
+    rows.forEach(row -> byId.put(row.getId(), row));
+
+    Map<Integer, long[]> actual = new HashMap<>();
+    for (DirectoryRepository.DirectFilesRow direct : directoryRepository.sumDirectFilesByOwnerId(ownerId)) {
+      DirectoryRepository.TotalsRow row = byId.get(direct.getDirectoryId());
+      if (row == null || row.getTreePath() == null) {
+        continue;
+      }
+      List<Integer> chain = new ArrayList<>();
+      for (String part : row.getTreePath().split("/")) {
+        if (!part.isEmpty()) {
+          chain.add(Integer.valueOf(part));
+        }
+      }
+      chain.add(row.getId());
+      for (Integer id : chain) {
+        long[] totals = actual.computeIfAbsent(id, key -> new long[2]);
+        totals[0] += direct.getSize();
+        totals[1] += direct.getCount();
+      }
+    }
+
+    int repaired = 0;
+    for (DirectoryRepository.TotalsRow row : rows) {
+      long[] totals = actual.getOrDefault(row.getId(), new long[2]);
+      if (row.getTotalSize() != totals[0] || row.getFileCount() != totals[1]) {
+        directoryRepository.setTotals(row.getId(), totals[0], totals[1]);
+        repaired++;
+      }
+    }
+    if (repaired > 0) {
+      treeCache.invalidate(ownerId);
+    }
+    return repaired;
+  }
+
+  public List<Integer> findOwnerIds() {
+    return directoryRepository.findOwnerIds();
+  }
+
+  /**
+   * Resolve relative directory paths ("a/b/c") below a base directory,
+   * creating whatever is missing. Works level by level: one lookup for all
+   * directories of a depth, one batch insert for the missing ones and one
+   * lookup to read their ids back.
+   *
+   * @return directories keyed by relative path; "" maps to the base
+   */
   @Transactional
-  public void delete(Integer id) {
-    directoryRepository.deleteById(id);
+  public Map<String, Directory> resolvePaths(User owner, Directory base, Collection<String> relativePaths) {
+    if (base != null) {
+      lockTreePath(base);
+    }
+    Map<String, Directory> resolved = new HashMap<>();
+    resolved.put("", base);
+
+    // Every prefix of every path, grouped by depth
+    Map<Integer, Set<String>> levels = new TreeMap<>();
+    for (String path : relativePaths) {
+      String[] parts = path.split("/");
+      StringBuilder prefix = new StringBuilder();
+      for (int depth = 0; depth < parts.length; depth++) {
+        if (depth > 0) {
+          prefix.append('/');
+        }
+        prefix.append(parts[depth]);
+        levels.computeIfAbsent(depth + 1, d -> new LinkedHashSet<>()).add(prefix.toString());
+      }
+    }
+
+    for (Set<String> level : levels.values()) {
+      Map<String, Directory> existing = childrenByKey(owner, level, resolved);
+      List<Directory> missing = new ArrayList<>();
+      for (String path : level) {
+        Directory parent = resolved.get(parentPath(path));
+        if (!existing.containsKey(childKey(parent, baseName(path)))) {
+          checkTreePathLength(Directory.treePathUnder(parent).length());
+          Directory directory = new Directory();
+          directory.setName(baseName(path));
+          directory.setOwner(owner);
+          directory.setParentDirectory(parent);
+          missing.add(directory);
+        }
+      }
+      if (!missing.isEmpty()) {
+        treeCache.invalidate(owner.getId());
+        batchInsertRepository.insertDirectories(missing);
+        existing = childrenByKey(owner, level, resolved);
+      }
+      for (String path : level) {
+        resolved.put(path, existing.get(childKey(resolved.get(parentPath(path)), baseName(path))));
+      }
+    }
+    return resolved;
+  }
+
+  private Map<String, Directory> childrenByKey(User owner, Set<String> level, Map<String, Directory> resolved) {
+    Set<Integer> parentIds = new HashSet<>();
+    boolean includeRoots = false;
+    for (String path : level) {
+      Directory parent = resolved.get(parentPath(path));
+      if (parent != null) {
+        parentIds.add(parent.getId());
+      } else {
+        includeRoots = true;
+      }
+    }
+
+    List<Directory> children = new ArrayList<>(parentIds.isEmpty()
+        ? List.of()
+        : directoryRepository.findByOwnerAndParentDirectoryIdIn(owner, parentIds));
+    if (includeRoots) {
+      children.addAll(directoryRepository.findByOwnerAndParentDirectoryIsNull(owner));
+    }
+
+    Map<String, Directory> byKey = new HashMap<>();
+    for (Directory child : children) {
+      byKey.putIfAbsent(childKey(child.getParentDirectory(), child.getName()), child);
+    }
+    return byKey;
+  }
+
+  private static String childKey(Directory parent, String name) {
+    return (parent != null ? parent.getId() : "") + "/" + name;
+  }
+
+  private static String parentPath(String path) {
+    int slash = path.lastIndexOf('/');
+    return slash < 0 ? "" : path.substring(0, slash);
+  }
+
+  private static String baseName(String path) {
+    return path.substring(path.lastIndexOf('/') + 1);
   }
 
   public boolean isDirectoryOwner(Integer directoryId, Integer userId) {
@@ -72,24 +366,116 @@ public class DirectoryService {
    * Check if a directory is a subdirectory of another directory (recursively)
    */
   public boolean isSubdirectory(Directory parent, Directory child) {
-    if (child.getParentDirectory() == null) {
-      return false;
+    return child.getTreePath().startsWith(parent.subtreePath());
+  }
+
+  /**
+   * Ancestors of a directory, root first, loaded with one query
+   */
+  public List<Directory> findAncestors(Directory directory) {
+    List<Directory> ancestors = new ArrayList<>(directoryRepository.findAllById(directory.ancestorIds()));
+    ancestors.sort(Comparator.comparing(Directory::getDepth));
+    return ancestors;
+  }
+
+  /**
+   * All directories below a directory, loaded with one indexed query
+   */
+  public List<Directory> findSubtree(Directory directory) {
+    return directoryRepository.findByTreePathStartingWith(directory.subtreePath());
+  }
+
+  /**
+   * Get full path of directory, from the directory tree cache when it knows
+   * the directory
+   */
+  public String getFullPath(Directory directory) {
+    String cached = treeCache.get(directory.getOwner().getId()).path(directory.getId());
+    if (cached != null) {
+      return cached;
+    }
+
+    StringBuilder path = new StringBuilder();
+    for (Directory ancestor : findAncestors(directory)) {
+      path.append('/').append(ancestor.getName());
     }
+    return path.append('/').append(directory.getName()).toString();
+  }
 
-    if (child.getParentDirectory().getId().equals(parent.getId())) {
-      return true;
+  /**
+   * Fill in tree paths of directories created before they were maintained,
+   * parents before children
+   */
+  @Transactional
+  public int backfillTreePaths() {
+    List<Directory> pending = new ArrayList<>(directoryRepository.findByTreePathIsNull());
+    int updated = 0;
+    boolean progress = true;
+    while (!pending.isEmpty() && progress) {
+      progress = false;
+      for (Iterator<Directory> it = pending.iterator(); it.hasNext();) {
+        Directory directory = it.next();
+        Directory parent = directory.getParentDirectory();
+        if (parent == null || parent.getTreePath() != null) {
+          directory.setTreePath(Directory.treePathUnder(parent));
+          directory.setDepth(parent == null ? 0 : parent.getDepth() + 1);
+          it.remove();
+          updated++;
+          progress = true;
+        }
+      }
+    }
+    if (updated > 0) {
+      treeCache.invalidateAll();
     }
+    return updated;
+  }
 
-    return isSubdirectory(parent, child.getParentDirectory());
+  /**
+   * Reject a tree path that would not fit its column, instead of failing the
+   * insert or update with a truncation error
+   */
+  private static void checkTreePathLength(int length) {
+    if (length > Directory.MAX_TREE_PATH_LENGTH) {
+      throw new IllegalArgumentException("Directory tree is nested too deeply");
+    }
   }
 
   /**
-   * Get full path of directory
+   * Re-read a directory's tree path under a row lock. A move of the
+   * directory or of an ancestor rewrites that row, so it cannot commit while
+   * children are created under the path read here.
    */
-  public String getFullPath(Directory directory) {
-    if (directory.getParentDirectory() == null) {
-      return "/" + directory.getName();
+  /**
+   * Lock the totals rows a move changes and check that neither directory
+   * moved since it was read, which would change the rows to lock
+   *
+   * @return totals of the directory being moved
+   */
+  private DirectoryRepository.TotalsRow lockForMove(Directory directory, Directory newParent) {
+    Set<Integer> ids = new TreeSet<>(directory.ancestorIds());
+    ids.addAll(newParent.ancestorIds());
+    ids.add(directory.getId());
+    ids.add(newParent.getId());
+    Map<Integer, DirectoryRepository.TotalsRow> locked = new HashMap<>();
+    for (DirectoryRepository.TotalsRow row : directoryRepository.lockTotalsIn(ids)) {
+      locked.put(row.getId(), row);
+    }
+
+    for (Directory lockedDirectory : List.of(directory, newParent)) {
+      DirectoryRepository.TotalsRow row = locked.get(lockedDirectory.getId());
+      if (row == null) {
+        throw new IllegalArgumentException("Directory not found");
+      }
+      if (!row.getTreePath().equals(lockedDirectory.getTreePath())) {
+        throw new IllegalStateException("Directory was moved concurrently");
+      }
     }
-    return getFullPath(directory.getParentDirectory()) + "/" + directory.getName();
+    return locked.get(directory.getId());
+  }
+
+  private void lockTreePath(Directory directory) {
+    directory.setTreePath(directoryRepository.lockTreePath(directory.getId()));
+    directory.setDepth(directory.ancestorIds().size());
   }
 }
@@ -0,0 +1,38 @@
+package com.mydrive.demo.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Repairs drift in the recursive directory totals, one owner per
+ * transaction. The first run after start-up also fills in totals of
+ * directories created before they were maintained.
+ */
+@Component
+public class DirectoryTotalsJob {
+  private static final Logger logger = LoggerFactory.getLogger(DirectoryTotalsJob.class);
+
+  private final DirectoryService directoryService;
+
+  public DirectoryTotalsJob(DirectoryService directoryService) {
+    this.directoryService = directoryService;
+  }
+
+  @Scheduled(initialDelayString = "${file.directory-totals.initial-delay-ms:60000}",
+      fixedDelayString = "${file.directory-totals.recompute-ms:86400000}")
+  public void recompute() {
+    int repaired = 0;
+    for (Integer ownerId : directoryService.findOwnerIds()) {
+      try {
+        repaired += directoryService.recomputeTotals(ownerId);
+      } catch (RuntimeException ex) {
+        logger.warn("Could not recompute directory totals of owner {}", ownerId, ex);
+      }
+    }
+    if (repaired > 0) {
+      logger.info("Repaired totals of {} directories", repaired);
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package com.mydrive.demo.service;
+
+import com.mydrive.demo.repository.DirectoryRepository;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of one owner's directory hierarchy: ids, names,
+ * parent/child links and recursive totals, enough to list directories and
+ * build paths without going to the database.
+ */
+public final class DirectoryTree {
+  private final Map<Integer, Node> nodes;
+  private final Map<Integer, List<Node>> children;
+  private final List<Node> roots;
+
+  public record Node(Integer id, String name, Integer parentId, long totalSize, long fileCount) {
+  }
+
+  DirectoryTree(List<DirectoryRepository.TreeRow> rows) {
+    Map<Integer, Node> nodes = new HashMap<>();
+    Map<Integer, List<Node>> children = new HashMap<>();
+    List<Node> roots = new ArrayList<>();
+    for (DirectoryRepository.TreeRow row : rows) {
+      Node node = new Node(row.getId(), row.getName(), row.getParentId(), row.getTotalSize(),
+          row.getFileCount());
+      nodes.put(node.id(), node);
+      if (node.parentId() == null) {
+        roots.add(node);
+      } else {
+        children.computeIfAbsent(node.parentId(), id -> new ArrayList<>()).add(node);
+      }
+    }
+    children.replaceAll((id, list) -> List.copyOf(list));
+    this.nodes = Collections.unmodifiableMap(nodes);
+    this.children = Collections.unmodifiableMap(children);
+    this.roots = List.copyOf(roots);
+  }
+
+  public boolean contains(Integer id) {
+    return nodes.containsKey(id);
+  }
+
+  public List<Node> roots() {
+    return roots;
+  }
+
+  public List<Node> children(Integer id) {
+    return children.getOrDefault(id, List.of());
+  }
+
+  /**
+   * Slash-separated path of a directory from its root, or null if the
+   * directory is not in this tree
+   */
+  public String path(Integer id) {
+    Node node = nodes.get(id);
+    if (node == null) {
+      return null;
+    }
+
+    List<String> names = new ArrayList<>();
+    for (; node != null; node = node.parentId() != null ? nodes.get(node.parentId()) : null) {
+      names.add(node.name());
+    }
+    StringBuilder path = new StringBuilder();
+    for (int i = names.size() - 1; i >= 0; i--) {
+      path.append('/').append(names.get(i));
+    }
+    return path.toString();
+  }
+
+  public int size() {
+    return nodes.size();
+  }
+}
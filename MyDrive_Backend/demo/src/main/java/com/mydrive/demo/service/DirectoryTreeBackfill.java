@@ -0,0 +1,29 @@
+package com.mydrive.demo.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.stereotype.Component;
+
+/**
+ * Fills in directory tree paths missing from rows created before they were
+ * maintained. Runs once at start-up, before the server accepts requests.
+ */
+@Component
+public class DirectoryTreeBackfill implements SmartInitializingSingleton {
+  private static final Logger logger = LoggerFactory.getLogger(DirectoryTreeBackfill.class);
+
+  private final DirectoryService directoryService;
+
+  public DirectoryTreeBackfill(DirectoryService directoryService) {
+    this.directoryService = directoryService;
+  }
+
+  @Override
+  public void afterSingletonsInstantiated() {
+    int updated = directoryService.backfillTreePaths();
+    if (updated > 0) {
+      logger.info("Backfilled tree paths of {} directories", updated);
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package com.mydrive.demo.service;
+
+import com.mydrive.demo.cache.Invalidation;
+import com.mydrive.demo.cache.LruCache;
+import com.mydrive.demo.cache.LruCacheMetrics;
+import com.mydrive.demo.repository.DirectoryRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Directory trees of the most recently active owners, each loaded with one
+ * query. Changes invalidate the owner's tree once their transaction has
+ * finished, so a reader can never cache a tree that misses a committed
+ * change. Hit, miss and eviction counts are published as the
+ * {@code cache.*} meters of the "directoryTrees" cache.
+ */
+@Component
+public class DirectoryTreeCache {
+  private final DirectoryRepository directoryRepository;
+  private final LruCache<Integer, DirectoryTree> trees;
+
+  public DirectoryTreeCache(
+      DirectoryRepository directoryRepository,
+      MeterRegistry meterRegistry,
+      @Value("${file.directory-cache.max-owners:1000}") int maxOwners) {
+    this.directoryRepository = directoryRepository;
+    this.trees = new LruCache<>("directoryTrees", maxOwners);
+    new LruCacheMetrics(trees).bindTo(meterRegistry);
+  }
+
+  public DirectoryTree get(Integer ownerId) {
+    return trees.get(ownerId, id -> new DirectoryTree(directoryRepository.findTreeRowsByOwnerId(id)));
+  }
+
+  /**
+   * Drop an owner's tree now and again when the current transaction
+   * completes, whichever way it ends
+   */
+  public void invalidate(Integer ownerId) {
+    Invalidation.nowAndAfterCompletion(() -> trees.invalidate(ownerId));
+  }
+
+  public void invalidateAll() {
+    trees.invalidateAll();
+  }
+}
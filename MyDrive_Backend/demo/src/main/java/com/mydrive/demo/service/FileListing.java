@@ -0,0 +1,175 @@
+package com.mydrive.demo.service;
+
+import com.mydrive.demo.dto.FileView;
+import com.mydrive.demo.entity.Directory;
+import com.mydrive.demo.entity.File;
+import com.mydrive.demo.entity.User;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.Path;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specification;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * One page of a file listing: sort key and direction, optional filters and
+ * the position after which the page starts. Pages are cut by keyset, not by
+ * offset: the cursor holds the sort value and id of the last row handed out
+ * and the next page starts right after it, so a page deep into a large
+ * folder costs the same index range scan as the first one.
+ */
+public record FileListing(String sort, boolean descending, int limit, String typePrefix, String nameContains,
+    Cursor after) {
+  public static final int DEFAULT_LIMIT = 100;
+  public static final int MAX_LIMIT = 1000;
+
+  private static final Set<String> SORT_KEYS = Set.of("name", "size", "createdAt", "type");
+
+  /**
+   * Sort value and id of the last row of the previous page; the value is
+   * null for rows without one
+   */
+  public record Cursor(Object value, Integer id) {
+  }
+
+  /**
+   * Files of a page and the cursor of the next one, or null on the last page
+   */
+  public record Page(List<FileView> files, String nextCursor) {
+  }
+
+  /**
+   * Build a listing from request parameters, all optional
+   *
+   * @throws IllegalArgumentException if a parameter is invalid
+   */
+  public static FileListing of(String sort, String order, Integer limit, String cursor, String type, String name) {
+    String key = sort != null ? sort : "name";
+    if (!SORT_KEYS.contains(key)) {
+      throw new IllegalArgumentException("Unsupported sort key " + sort);
+    }
+    if (order != null && !order.equalsIgnoreCase("asc") && !order.equalsIgnoreCase("desc")) {
+      throw new IllegalArgumentException("Order must be asc or desc");
+    }
+    int pageSize = limit != null ? limit : DEFAULT_LIMIT;
+    if (pageSize < 1 || pageSize > MAX_LIMIT) {
+      throw new IllegalArgumentException("Limit must be between 1 and " + MAX_LIMIT);
+    }
+    return new FileListing(key, "desc".equalsIgnoreCase(order), pageSize, blankToNull(type), blankToNull(name),
+        cursor != null ? decodeCursor(key, cursor) : null);
+  }
+
+  public Sort toSort() {
+    Sort.Direction direction = descending ? Sort.Direction.DESC : Sort.Direction.ASC;
+    return Sort.by(direction, sort).and(Sort.by(direction, "id"));
+  }
+
+  /**
+   * Files of an owner, in one directory or in all of them, matching the
+   * filters and lying after the cursor
+   */
+  public Specification<File> toSpecification(User owner, Directory directory) {
+    return (root, query, cb) -> {
+      List<Predicate> predicates = new ArrayList<>();
+      predicates.add(cb.equal(root.get("owner"), owner));
+      if (directory != null) {
+        predicates.add(cb.equal(root.get("directory"), directory));
+      }
+      if (typePrefix != null) {
+        predicates.add(cb.like(root.get("type"), escapeLike(typePrefix) + "%", '\\'));
+      }
+      if (nameContains != null) {
+        predicates.add(cb.like(cb.lower(root.get("name")),
+            "%" + escapeLike(nameContains.toLowerCase(Locale.ROOT)) + "%", '\\'));
+      }
+      if (after != null) {
+        predicates.add(afterCursor(root, cb));
+      }
+      return cb.and(predicates.toArray(new Predicate[0]));
+    };
+  }
+
+  /**
+   * Cursor pointing just after a file, for the page that follows it
+   */
+  public String cursorAfter(File file) {
+    Object value = switch (sort) {
+      case "size" -> file.getSize();
+      case "createdAt" -> file.getCreatedAt();
+      case "type" -> file.getType();
+      default -> file.getName();
+    };
+    String encoded = sort + "\n" + (value == null ? "0" : "1" + value) + "\n" + file.getId();
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(encoded.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Rows strictly after the cursor in sort order. Nulls sort first
+   * ascending and last descending, as they do in MySQL.
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private Predicate afterCursor(Root<File> root, CriteriaBuilder cb) {
+    Path<Comparable> key = root.get(sort);
+    Path<Integer> id = root.get("id");
+    Comparable value = (Comparable) after.value();
+    Predicate sameKey = value == null ? cb.isNull(key) : cb.equal(key, value);
+    Predicate laterId = descending ? cb.lessThan(id, after.id()) : cb.greaterThan(id, after.id());
+
+    if (value == null) {
+      return descending
+          ? cb.and(sameKey, laterId)
+          : cb.or(cb.isNotNull(key), cb.and(sameKey, laterId));
+    }
+    Predicate laterKey = descending ? cb.lessThan(key, value) : cb.greaterThan(key, value);
+    return descending
+        ? cb.or(laterKey, cb.and(sameKey, laterId), cb.isNull(key))
+        : cb.or(laterKey, cb.and(sameKey, laterId));
+  }
+
+  /**
+   * Read a cursor written by {@link #cursorAfter}. A cursor carries the sort
+   * key it was cut for, and is rejected under any other.
+   */
+  static Cursor decodeCursor(String sort, String cursor) {
+    try {
+      String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+      int keyEnd = decoded.indexOf('\n');
+      int newline = decoded.lastIndexOf('\n');
+      if (keyEnd < 0 || keyEnd == newline || !decoded.substring(0, keyEnd).equals(sort)) {
+        throw new IllegalArgumentException();
+      }
+      Integer id = Integer.valueOf(decoded.substring(newline + 1));
+      if (decoded.charAt(keyEnd + 1) == '0' && keyEnd + 2 == newline) {
+        return new Cursor(null, id);
+      }
+      if (decoded.charAt(keyEnd + 1) != '1') {
+        throw new IllegalArgumentException();
+      }
+      String value = decoded.substring(keyEnd + 2, newline);
+      return new Cursor(switch (sort) {
+        case "size" -> Long.valueOf(value);
+        case "createdAt" -> LocalDateTime.parse(value);
+        default -> value;
+      }, id);
+    } catch (IllegalArgumentException | IndexOutOfBoundsException | DateTimeParseException ex) {
+      throw new IllegalArgumentException("Invalid cursor");
+    }
+  }
+
+  private static String escapeLike(String value) {
+    return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+  }
+
+  private static String blankToNull(String value) {
+    return value == null || value.isBlank() ? null : value;
+  }
+}
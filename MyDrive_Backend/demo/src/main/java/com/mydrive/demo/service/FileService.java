@@ -1,53 +1,94 @@
 package com.mydrive.demo.service;
 
+import com.mydrive.demo.dto.FileView;
 import com.mydrive.demo.entity.Directory;
 import com.mydrive.demo.entity.File;
 import com.mydrive.demo.entity.User;
+import com.mydrive.demo.repository.BatchInsertRepository;
 import com.mydrive.demo.repository.FileRepository;
+import com.mydrive.demo.storage.BlobStore;
+import com.mydrive.demo.storage.ContentSniffer;
+import com.mydrive.demo.storage.PhysicalRegion;
+import com.mydrive.demo.storage.StorageBackend;
+import com.mydrive.demo.storage.StoredBlob;
+import jakarta.servlet.http.HttpServletRequest;
+import org.apache.commons.fileupload2.core.FileItemInput;
+import org.apache.commons.fileupload2.core.FileItemInputIterator;
+import org.apache.commons.fileupload2.jakarta.servlet6.JakartaServletDiskFileUpload;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.UrlResource;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.nio.file.Files;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
 
+/**
+ * Files and their content. Uploads run in phases so that no connection or
+ * transaction is held while bytes are transferred: quota and blob keys are
+ * reserved in short transactions of their own, content is written with no
+ * transaction open, and the file rows are recorded in a second short
+ * transaction.
+ */
 @Service
 public class FileService {
+  private static final int LOOKUP_BATCH_SIZE = 1000;
+
   private final FileRepository fileRepository;
-  private final UserService userService;
   private final DirectoryService directoryService;
-  private final Path fileStorageLocation;
+  private final BlobStore blobStore;
+  private final StorageBackend storageBackend;
+  private final BatchInsertRepository batchInsertRepository;
+  private final Executor ingestExecutor;
+  private final QuotaService quotaService;
+  private final BlobStaging blobStaging;
+  private final BlobReclaimer blobReclaimer;
+  private final TransactionTemplate transactionTemplate;
 
   @Autowired
   public FileService(
       FileRepository fileRepository,
-      UserService userService,
       DirectoryService directoryService,
-      @Value("${file.upload.directory}") String uploadDir) {
+      BlobStore blobStore,
+      StorageBackend storageBackend,
+      BatchInsertRepository batchInsertRepository,
+      @Qualifier("ingestExecutor") Executor ingestExecutor,
+      QuotaService quotaService,
+      BlobStaging blobStaging,
+      BlobReclaimer blobReclaimer,
+      PlatformTransactionManager transactionManager) {
     this.fileRepository = fileRepository;
-    this.userService = userService;
     this.directoryService = directoryService;
-
-    this.fileStorageLocation = Paths.get(uploadDir)
-        .toAbsolutePath().normalize();
-
-    try {
-      Files.createDirectories(this.fileStorageLocation);
-    } catch (IOException ex) {
-      throw new RuntimeException("Could not create the directory for uploading files", ex);
-    }
+    this.blobStore = blobStore;
+    this.storageBackend = storageBackend;
+    this.batchInsertRepository = batchInsertRepository;
+    this.ingestExecutor = ingestExecutor;
+    this.quotaService = quotaService;
+    this.blobStaging = blobStaging;
+    this.blobReclaimer = blobReclaimer;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
   }
 
   public List<File> findAll() {
@@ -66,6 +107,43 @@ public class FileService {
     return fileRepository.findByDirectory(directory);
   }
 
+  public List<File> findByDirectoryIds(Collection<Integer> directoryIds) {
+    List<File> files = new ArrayList<>();
+    List<Integer> ids = new ArrayList<>(directoryIds);
+    for (int from = 0; from < ids.size(); from += LOOKUP_BATCH_SIZE) {
+      files.addAll(fileRepository.findByDirectoryIdIn(ids.subList(from, Math.min(ids.size(), from + LOOKUP_BATCH_SIZE))));
+    }
+    return files;
+  }
+
+  /**
+   * One page of an owner's files, in one directory or, with a null
+   * directory, in all of them. One row more than the page is read to tell
+   * whether another page follows.
+   */
+  public FileListing.Page listFiles(User owner, Directory directory, FileListing listing) {
+    List<File> rows = fileRepository.findBy(listing.toSpecification(owner, directory),
+        query -> query.sortBy(listing.toSort()).limit(listing.limit() + 1).all());
+    if (rows.size() <= listing.limit()) {
+      return new FileListing.Page(rows.stream().map(FileView::of).toList(), null);
+    }
+    List<File> page = rows.subList(0, listing.limit());
+    return new FileListing.Page(page.stream().map(FileView::of).toList(),
+        listing.cursorAfter(page.get(page.size() - 1)));
+  }
+
+  public List<FileView> findViewsByOwner(User owner) {
+    return fileRepository.findViewsByOwner(owner);
+  }
+
+  public List<FileView> findViewsByOwnerAndDirectory(User owner, Directory directory) {
+    return fileRepository.findViewsByOwnerAndDirectory(owner, directory);
+  }
+
+  public List<FileView> findViewsByDirectory(Directory directory) {
+    return fileRepository.findViewsByDirectory(directory);
+  }
+
   public List<File> findByOwnerAndDirectory(User owner, Directory directory) {
     return fileRepository.findByOwnerAndDirectory(owner, directory);
   }
@@ -74,54 +152,195 @@ public class FileService {
     return fileRepository.findByNameAndOwnerAndDirectory(name, owner, directory);
   }
 
-  @Transactional
   public File uploadFile(MultipartFile file, User owner, Directory directory) throws IOException {
-    // Check if user has enough storage
-    if (!userService.hasEnoughStorage(owner.getId(), file.getSize())) {
-      throw new RuntimeException("Not enough storage space");
+    try (InputStream content = file.getInputStream()) {
+      return storeFile(content, file.getOriginalFilename(), file.getContentType(), file.getSize(), owner, directory);
     }
+  }
 
-    // Normalize file name to avoid security issues
-    String originalFileName = StringUtils.cleanPath(file.getOriginalFilename());
-    if (originalFileName.contains("..")) {
-      throw new RuntimeException("Filename contains invalid path sequence " + originalFileName);
+  /**
+   * Store content of a known size read from a stream and record it as a new
+   * file. The size is reserved against the owner's quota before anything is
+   * written, and the file row recorded in a transaction of its own once the
+   * content is stored.
+   */
+  public File storeFile(InputStream content, String fileName, String contentType, long size, User owner,
+      Directory directory) throws IOException {
+    QuotaService.Reservation reservation = quotaService.reserve(owner.getId(), size);
+    try {
+      return storeFile(content, fileName, contentType, reservation, owner, directory);
+    } finally {
+      quotaService.release(reservation);
     }
+  }
+
+  /**
+   * Store content under a reservation the caller holds, and record it as a
+   * new file. The reservation is committed with the file row; settling it
+   * on failure is up to the caller.
+   */
+  public File storeFile(InputStream content, String fileName, String contentType,
+      QuotaService.Reservation reservation, User owner, Directory directory) throws IOException {
+    StoredBlob blob = storeContent(content, fileName, contentType, reservation);
+    return transactionTemplate.execute(
+        status -> createFile(blob, fileName, contentType, owner, directory, reservation));
+  }
 
-    // Create a unique file name to prevent collisions
-    String fileExtension = "";
-    if (originalFileName.contains(".")) {
-      fileExtension = originalFileName.substring(originalFileName.lastIndexOf("."));
+  /**
+   * Write content to the blob store without recording a file yet. The write
+   * is cut off once it exceeds the quota reserved for it. Name and declared
+   * type decide whether the content is compressed at rest. The blob is
+   * staged until createFile records it.
+   */
+  public StoredBlob storeContent(InputStream content, String fileName, String contentType,
+      QuotaService.Reservation reservation) throws IOException {
+    String key = blobStaging.stage(reservation.userId(), 1).get(0);
+    try {
+      return blobStore.store(content, reservation.bytes(), contentType, fileName, key);
+    } catch (IOException | RuntimeException ex) {
+      blobStaging.discard(List.of(key));
+      throw ex;
     }
-    String uniqueFileName = UUID.randomUUID().toString() + fileExtension;
+  }
 
-    // Create physical file
-    Path targetLocation = this.fileStorageLocation.resolve(uniqueFileName);
-    Files.copy(file.getInputStream(), targetLocation, StandardCopyOption.REPLACE_EXISTING);
+  /**
+   * Record previously stored content as a new file, charging its size
+   * against the reservation it was written under
+   */
+  @Transactional
+  public File createFile(StoredBlob blob, String fileName, String declaredType, User owner, Directory directory,
+      QuotaService.Reservation reservation) {
+    // Release the content again if the metadata never commits
+    afterCompletion(null, () -> blobStaging.discard(List.of(blob.key())));
+
+    // Normalize file name to avoid security issues
+    String originalFileName = StringUtils.cleanPath(fileName);
+    if (originalFileName.contains("..")) {
+      throw new RuntimeException("Filename contains invalid path sequence " + originalFileName);
+    }
 
     // Save file metadata to database
     File fileEntity = new File();
     fileEntity.setName(originalFileName);
-    fileEntity.setType(file.getContentType());
-    fileEntity.setSize(file.getSize());
-    fileEntity.setPath(uniqueFileName);
+    fileEntity.setType(ContentSniffer.resolve(blob.detectedType(), declaredType, originalFileName));
+    fileEntity.setSize(blob.size());
+    fileEntity.setStoredSize(blob.storedSize());
+    fileEntity.setContentEncoding(blob.encoding());
+    fileEntity.setContentDigest(blob.sha256());
+    fileEntity.setPath(blob.key());
     fileEntity.setOwner(owner);
     fileEntity.setDirectory(directory);
 
     // Update user storage used
-    userService.updateStorageUsed(owner.getId(), file.getSize());
+    quotaService.commit(reservation, blob.size());
+
+    File saved = fileRepository.save(fileEntity);
+    directoryService.addToTotals(List.of(saved));
+    blobStaging.unstage(List.of(blob.key()));
+    return saved;
+  }
+
+  /**
+   * Drop stored content that will not be recorded as a file
+   */
+  public void discardContent(StoredBlob blob) {
+    blobStaging.discard(List.of(blob.key()));
+  }
+
+  /**
+   * Stream a multipart request straight into the blob store. Spring's
+   * multipart resolver is bypassed, so the file part is never spooled to a
+   * temp file; form fields are collected as they are encountered.
+   */
+  public StreamedUpload receiveMultipart(HttpServletRequest request, String fileField,
+      QuotaService.Reservation reservation) throws IOException {
+    StoredBlob blob = null;
+    String fileName = null;
+    String contentType = null;
+    Map<String, String> fields = new HashMap<>();
+
+    try {
+      FileItemInputIterator items = new JakartaServletDiskFileUpload().getItemIterator(request);
+      while (items.hasNext()) {
+        FileItemInput item = items.next();
+        if (item.isFormField()) {
+          try (InputStream value = item.getInputStream()) {
+            fields.put(item.getFieldName(), new String(value.readAllBytes(), StandardCharsets.UTF_8));
+          }
+        } else if (fileField.equals(item.getFieldName()) && blob == null) {
+          fileName = item.getName();
+          contentType = item.getContentType();
+          try (InputStream content = item.getInputStream()) {
+            blob = storeContent(content, fileName, contentType, reservation);
+          }
+        }
+      }
+    } catch (IOException | RuntimeException ex) {
+      if (blob != null) {
+        discardContent(blob);
+      }
+      throw ex;
+    }
+
+    return new StreamedUpload(blob, fileName, contentType, fields);
+  }
 
-    return fileRepository.save(fileEntity);
+  public Resource loadFileAsResource(File file) throws IOException {
+    if (BlobStore.isManifest(file.getPath())) {
+      return blobStore.loadAsResource(file.getPath());
+    }
+
+    // Files uploaded before the blob store live as plain files
+    Path filePath = storageBackend.localPath(file.getPath())
+        .orElseThrow(() -> new RuntimeException("File not found: " + file.getPath()));
+    return new UrlResource(filePath.toUri());
   }
 
-  public Resource loadFileAsResource(File file) throws MalformedURLException {
-    Path filePath = fileStorageLocation.resolve(file.getPath()).normalize();
-    Resource resource = new UrlResource(filePath.toUri());
+  /**
+   * Locate the physical regions that hold a byte range of a file's stored
+   * bytes. For compressed files these are the compressed bytes.
+   */
+  public List<PhysicalRegion> contentRegions(File file, long position, long count) throws IOException {
+    if (BlobStore.isManifest(file.getPath())) {
+      return blobStore.regions(blobStore.readManifest(file.getPath()), position, count);
+    }
+
+    Path filePath = storageBackend.localPath(file.getPath())
+        .orElseThrow(() -> new IOException("Content of " + file.getPath() + " is missing"));
+    return count == 0 ? List.of() : List.of(new PhysicalRegion(filePath, position, count));
+  }
 
-    if (resource.exists()) {
-      return resource;
-    } else {
-      throw new RuntimeException("File not found: " + file.getPath());
+  /**
+   * Open a byte range of a file's original content, decompressing it when
+   * it is stored compressed
+   */
+  public InputStream openContent(File file, long position, long count) throws IOException {
+    InputStream in = BlobStore.isManifest(file.getPath())
+        ? blobStore.open(blobStore.readManifest(file.getPath()))
+        : storageBackend.get(file.getPath());
+    try {
+      in.skipNBytes(position);
+    } catch (IOException ex) {
+      in.close();
+      throw ex;
     }
+    return new BoundedInputStream(in, count);
+  }
+
+  /**
+   * Whether a file's stored content is still there; checks storage only
+   */
+  public boolean hasContent(File file) throws IOException {
+    return BlobStore.isManifest(file.getPath())
+        ? blobStore.exists(file.getPath())
+        : storageBackend.stat(file.getPath()).isPresent();
+  }
+
+  /**
+   * CRC-32 of a file's original content, or null when it was not recorded
+   */
+  public Long contentCrc32(File file) throws IOException {
+    return BlobStore.isManifest(file.getPath()) ? blobStore.readManifest(file.getPath()).crc32() : null;
   }
 
   @Transactional
@@ -129,68 +348,177 @@ public class FileService {
     return fileRepository.save(file);
   }
 
+  /**
+   * Delete a file row. Its content is only marked for release here and
+   * released by BlobReclaimer once the deletion has committed.
+   */
   @Transactional
   public void delete(Integer id) throws IOException {
     Optional<File> fileOptional = fileRepository.findById(id);
     if (fileOptional.isPresent()) {
       File file = fileOptional.get();
 
-      // Delete physical file
-      Path filePath = fileStorageLocation.resolve(file.getPath()).normalize();
-      Files.deleteIfExists(filePath);
+      blobReclaimer.bury(List.of(file.getPath()));
 
       // Update user storage used
-      userService.updateStorageUsed(file.getOwner().getId(), -file.getSize());
+      quotaService.addUsage(file.getOwner().getId(), -file.getSize());
+      directoryService.removeFromTotals(List.of(file));
 
       // Delete database entry
       fileRepository.delete(file);
     }
   }
 
+  private void afterCompletion(Runnable onCommit, Runnable onRollback) {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      if (onCommit != null) {
+        onCommit.run();
+      }
+      return;
+    }
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+      @Override
+      public void afterCompletion(int status) {
+        Runnable action = status == STATUS_COMMITTED ? onCommit : onRollback;
+        if (action != null) {
+          action.run();
+        }
+      }
+    });
+  }
+
   public boolean isFileOwner(Integer fileId, Integer userId) {
     return fileRepository.findById(fileId)
         .map(file -> file.getOwner().getId().equals(userId))
         .orElse(false);
   }
 
-  @Transactional
+  /**
+   * Store a folder upload. The directory tree is resolved once for all
+   * files, content is written to the blob store concurrently on a bounded
+   * pool, rows are inserted in JDBC batches and quota is reserved up front
+   * and charged once for the whole batch. Only recording the rows runs in a
+   * transaction.
+   */
   public List<File> uploadFolder(List<MultipartFile> files, List<String> paths, User owner, Directory parentDirectory)
       throws IOException {
     if (files.size() != paths.size()) {
       throw new IllegalArgumentException("Files and paths count mismatch");
     }
-    List<File> uploadedFiles = new java.util.ArrayList<>();
+
+    long declaredSize = files.stream().mapToLong(MultipartFile::getSize).sum();
+    QuotaService.Reservation reservation = quotaService.reserve(owner.getId(), declaredSize);
+    try {
+      return storeFolder(files, paths, owner, parentDirectory, reservation);
+    } finally {
+      quotaService.release(reservation);
+    }
+  }
+
+  private List<File> storeFolder(List<MultipartFile> files, List<String> paths, User owner,
+      Directory parentDirectory, QuotaService.Reservation reservation) throws IOException {
+    // Split "subdir1/subdir2/file.txt" into its directory and file name
+    List<String> directoryPaths = new ArrayList<>(paths.size());
+    List<String> fileNames = new ArrayList<>(paths.size());
+    for (String path : paths) {
+      List<String> parts = new ArrayList<>();
+      for (String part : path.replace("\\", "/").split("/")) {
+        if (part.equals("..")) {
+          throw new RuntimeException("Filename contains invalid path sequence " + path);
+        }
+        if (!part.isEmpty() && !part.equals(".")) {
+          parts.add(part);
+        }
+      }
+      if (parts.isEmpty()) {
+        throw new RuntimeException("Invalid file path " + path);
+      }
+      fileNames.add(parts.remove(parts.size() - 1));
+      directoryPaths.add(String.join("/", parts));
+    }
+
+    List<StoredBlob> blobs = storeConcurrently(files, fileNames, owner, reservation.bytes());
+    return transactionTemplate.execute(
+        status -> recordFolder(blobs, files, fileNames, directoryPaths, owner, parentDirectory, reservation));
+  }
+
+  private List<File> recordFolder(List<StoredBlob> blobs, List<MultipartFile> files, List<String> fileNames,
+      List<String> directoryPaths, User owner, Directory parentDirectory, QuotaService.Reservation reservation) {
+    List<String> keys = blobs.stream().map(StoredBlob::key).toList();
+    afterCompletion(null, () -> blobStaging.discard(keys));
+
+    long totalSize = blobs.stream().mapToLong(StoredBlob::size).sum();
+
+    Map<String, Directory> directories = directoryService.resolvePaths(owner, parentDirectory,
+        directoryPaths.stream().filter(path -> !path.isEmpty()).collect(Collectors.toSet()));
+
+    List<File> rows = new ArrayList<>(blobs.size());
+    for (int i = 0; i < blobs.size(); i++) {
+      StoredBlob blob = blobs.get(i);
+      File file = new File();
+      file.setName(fileNames.get(i));
+      file.setType(ContentSniffer.resolve(blob.detectedType(), files.get(i).getContentType(), fileNames.get(i)));
+      file.setSize(blob.size());
+      file.setStoredSize(blob.storedSize());
+      file.setContentEncoding(blob.encoding());
+      file.setContentDigest(blob.sha256());
+      file.setPath(blob.key());
+      file.setOwner(owner);
+      file.setDirectory(directories.get(directoryPaths.get(i)));
+      rows.add(file);
+    }
+    batchInsertRepository.insertFiles(rows);
+    quotaService.commit(reservation, totalSize);
+    directoryService.addToTotals(rows);
+    blobStaging.unstage(keys);
+
+    // Read the rows back for their ids, in upload order
+    Map<String, File> byPath = new HashMap<>();
+    for (int from = 0; from < keys.size(); from += LOOKUP_BATCH_SIZE) {
+      fileRepository.findByPathIn(keys.subList(from, Math.min(keys.size(), from + LOOKUP_BATCH_SIZE)))
+          .forEach(file -> byPath.put(file.getPath(), file));
+    }
+    return keys.stream().map(byPath::get).toList();
+  }
+
+  /**
+   * Write the content of every file to the blob store on the ingest pool,
+   * under keys staged for all of them up front. If any write fails the
+   * others are released again.
+   */
+  private List<StoredBlob> storeConcurrently(List<MultipartFile> files, List<String> fileNames, User owner,
+      long maxSize) throws IOException {
+    List<String> keys = blobStaging.stage(owner.getId(), files.size());
+    List<CompletableFuture<StoredBlob>> writes = new ArrayList<>(files.size());
     for (int i = 0; i < files.size(); i++) {
       MultipartFile file = files.get(i);
-      String relPath = paths.get(i); // e.g. "subdir1/subdir2/file.txt"
-      String[] parts = relPath.replace("\\", "/").split("/");
-      Directory currentDir = parentDirectory;
-      // Traverse and create directories as needed (all except last part)
-      for (int j = 0; j < parts.length - 1; j++) {
-        String dirName = parts[j];
-        java.util.Optional<Directory> dirOpt = directoryService.findByNameAndOwnerAndParentDirectory(dirName, owner,
-            currentDir);
-        if (dirOpt.isPresent()) {
-          currentDir = dirOpt.get();
-        } else {
-          Directory newDir = new Directory();
-          newDir.setName(dirName);
-          newDir.setOwner(owner);
-          newDir.setParentDirectory(currentDir);
-          currentDir = directoryService.create(newDir);
+      String fileName = fileNames.get(i);
+      String key = keys.get(i);
+      writes.add(CompletableFuture.supplyAsync(() -> {
+        try (InputStream content = file.getInputStream()) {
+          return blobStore.store(content, maxSize, file.getContentType(), fileName, key);
+        } catch (IOException ex) {
+          throw new UncheckedIOException(ex);
         }
+      }, ingestExecutor));
+    }
+
+    List<StoredBlob> blobs = new ArrayList<>(writes.size());
+    Throwable failure = null;
+    for (CompletableFuture<StoredBlob> write : writes) {
+      try {
+        blobs.add(write.join());
+      } catch (CompletionException ex) {
+        failure = failure != null ? failure : ex.getCause();
       }
-      // The file name is the last part
-      String fileName = parts[parts.length - 1];
-      // Always use the original MultipartFile
-      File uploaded = uploadFile(file, owner, currentDir);
-      // If the intended file name is different, update the File entity
-      if (!uploaded.getName().equals(fileName)) {
-        uploaded.setName(fileName);
-        uploaded = update(uploaded);
+    }
+    if (failure != null) {
+      blobStaging.discard(keys);
+      if (failure instanceof UncheckedIOException io) {
+        throw io.getCause();
       }
-      uploadedFiles.add(uploaded);
+      throw failure instanceof RuntimeException runtime ? runtime : new RuntimeException(failure);
     }
-    return uploadedFiles;
+    return blobs;
   }
 }
@@ -0,0 +1,172 @@
+package com.mydrive.demo.service;
+
+import com.mydrive.demo.repository.UserRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Storage quota for uploads. Bytes are reserved with one conditional update
+ * before any content is written, then either committed as used storage
+ * together with the file rows or released. Reservations and releases run in
+ * transactions of their own, so no lock on the user row is held while
+ * content is being written, and parallel uploads of one user only ever
+ * contend for the length of a single update.
+ *
+ * The caller that reserves releases in a finally block; release does nothing
+ * once the reservation was committed. Resumable upload sessions hold their
+ * reservation across requests and restarts instead, see {@link #held}.
+ */
+@Service
+public class QuotaService {
+  private static final Logger logger = LoggerFactory.getLogger(QuotaService.class);
+
+  private final UserRepository userRepository;
+  private final TransactionTemplate separateTransaction;
+
+  /**
+   * Bytes reserved for one upload
+   */
+  public static final class Reservation {
+    private final Integer userId;
+    private final long bytes;
+    private final AtomicBoolean open = new AtomicBoolean(true);
+
+    private Reservation(Integer userId, long bytes) {
+      this.userId = userId;
+      this.bytes = bytes;
+    }
+
+    public Integer userId() {
+      return userId;
+    }
+
+    public long bytes() {
+      return bytes;
+    }
+
+    private boolean close() {
+      return open.compareAndSet(true, false);
+    }
+  }
+
+  public QuotaService(UserRepository userRepository, PlatformTransactionManager transactionManager) {
+    this.userRepository = userRepository;
+    this.separateTransaction = new TransactionTemplate(transactionManager);
+    this.separateTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+  }
+
+  /**
+   * Reserve bytes for a user, or throw when they do not fit in the
+   * remaining quota
+   */
+  public Reservation reserve(Integer userId, long bytes) {
+    if (bytes < 0) {
+      throw new IllegalArgumentException("Cannot reserve a negative size");
+    }
+    Integer updated = separateTransaction.execute(status -> userRepository.reserveStorage(userId, bytes));
+    if (updated == null || updated == 0) {
+      throw new RuntimeException("Not enough storage space");
+    }
+    return new Reservation(userId, bytes);
+  }
+
+  /**
+   * A reservation for bytes that are already reserved, such as those an
+   * upload session took when it was created, so they can be committed or
+   * released like a fresh one
+   */
+  public Reservation held(Integer userId, long bytes) {
+    return new Reservation(userId, bytes);
+  }
+
+  /**
+   * Reserve bytes again that were reserved before a restart cleared them,
+   * regardless of the limit: they were within it when first reserved
+   */
+  public void reinstate(Integer userId, long bytes) {
+    separateTransaction.executeWithoutResult(status -> userRepository.holdStorage(userId, bytes));
+  }
+
+  /**
+   * Charge the bytes actually stored against a reservation, in the current
+   * transaction so the charge commits with the file rows. The rest of the
+   * reservation is returned. Should the transaction roll back, the whole
+   * reservation is released afterwards.
+   */
+  @Transactional
+  public void commit(Reservation reservation, long usedBytes) {
+    if (usedBytes > reservation.bytes()) {
+      throw new RuntimeException("Not enough storage space");
+    }
+    if (!reservation.close()) {
+      throw new IllegalStateException("Reservation is already settled");
+    }
+    userRepository.commitStorage(reservation.userId(), reservation.bytes(), usedBytes);
+
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCompletion(int status) {
+          if (status != STATUS_COMMITTED) {
+            releaseBytes(reservation);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Give a reservation back unless it was committed
+   */
+  public void release(Reservation reservation) {
+    if (reservation != null && reservation.close()) {
+      releaseBytes(reservation);
+    }
+  }
+
+  /**
+   * Change a user's used storage by a delta, e.g. when files are deleted
+   */
+  @Transactional
+  public void addUsage(Integer userId, long bytes) {
+    userRepository.addStorageUsed(userId, bytes);
+  }
+
+  /**
+   * Reservations live only as long as the upload that made them; a node that
+   * has just started has none in flight, so any left over are from a crash.
+   * Content is kept on this node's local storage, so there is no other node
+   * whose uploads this could cut short. Runs before upload sessions
+   * reinstate what they hold.
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  @Order(Ordered.HIGHEST_PRECEDENCE)
+  public void clearStaleReservations() {
+    Integer cleared = separateTransaction.execute(status -> userRepository.clearStorageReservations());
+    if (cleared != null && cleared > 0) {
+      logger.info("Cleared stale storage reservations of {} user(s)", cleared);
+    }
+  }
+
+  private void releaseBytes(Reservation reservation) {
+    try {
+      separateTransaction.executeWithoutResult(
+          status -> userRepository.releaseStorage(reservation.userId(), reservation.bytes()));
+    } catch (RuntimeException ex) {
+      logger.warn("Could not release {} reserved bytes of user {}", reservation.bytes(), reservation.userId(), ex);
+    }
+  }
+}
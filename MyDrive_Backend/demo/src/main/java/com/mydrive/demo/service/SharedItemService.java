@@ -1,24 +1,65 @@
 package com.mydrive.demo.service;
 
-import com.mydrive.demo.entity.Directory;
+import com.mydrive.demo.cache.Invalidation;
+import com.mydrive.demo.cache.LruCache;
+import com.mydrive.demo.cache.LruCacheMetrics;
+import com.mydrive.demo.dto.ShareView;
+import com.mydrive.demo.entity.File;
 import com.mydrive.demo.entity.SharedItem;
 import com.mydrive.demo.entity.User;
 import com.mydrive.demo.repository.DirectoryRepository;
+import com.mydrive.demo.repository.FileRepository;
+import com.mydrive.demo.repository.ItemLocation;
 import com.mydrive.demo.repository.SharedItemRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 @Service
 public class SharedItemService {
+  private static final int BATCH_SIZE = 1000;
+
   private final SharedItemRepository sharedItemRepository;
+  private final FileRepository fileRepository;
   private final DirectoryRepository directoryRepository;
 
-  public SharedItemService(SharedItemRepository sharedItemRepository, DirectoryRepository directoryRepository) {
+  // Effective permission of a user on an item, including what is inherited
+  // from shared ancestor directories; empty when the item is not shared
+  // with the user at all. Grouped by user, so a share change only drops
+  // the entries of the user it is shared with.
+  private final LruCache<AclKey, Optional<SharedItem.PermissionLevel>> permissions;
+
+  private record AclKey(Integer userId, SharedItem.ItemType itemType, Integer itemId) {
+  }
+
+  /**
+   * A file or directory, by type and id
+   */
+  public record ItemRef(SharedItem.ItemType type, Integer id) {
+  }
+
+  public SharedItemService(
+      SharedItemRepository sharedItemRepository,
+      FileRepository fileRepository,
+      DirectoryRepository directoryRepository,
+      MeterRegistry meterRegistry,
+      @Value("${app.acl-cache.max-entries:100000}") int maxEntries) {
     this.sharedItemRepository = sharedItemRepository;
+    this.fileRepository = fileRepository;
     this.directoryRepository = directoryRepository;
+    this.permissions = new LruCache<>("effectivePermissions", maxEntries, AclKey::userId);
+    new LruCacheMetrics(permissions).bindTo(meterRegistry);
   }
 
   public List<SharedItem> findAll() {
@@ -37,6 +78,30 @@ public class SharedItemService {
     return sharedItemRepository.findBySharedWith(sharedWith);
   }
 
+  public List<ShareView> findViewsByOwner(User owner) {
+    return sharedItemRepository.findViewsByOwner(owner);
+  }
+
+  public List<ShareView> findViewsBySharedWith(User sharedWith) {
+    return sharedItemRepository.findViewsBySharedWith(sharedWith);
+  }
+
+  public Optional<ShareView> findViewById(Integer id) {
+    return sharedItemRepository.findViewById(id);
+  }
+
+  /**
+   * Up to limit shares made by a user, newest first, below the given share
+   * id (null for the first page)
+   */
+  public List<ShareView> findViewPageByOwner(User owner, Integer beforeId, int limit) {
+    return sharedItemRepository.findViewPageByOwner(owner, beforeId, Limit.of(limit));
+  }
+
+  public List<ShareView> findViewPageBySharedWith(User sharedWith, Integer beforeId, int limit) {
+    return sharedItemRepository.findViewPageBySharedWith(sharedWith, beforeId, Limit.of(limit));
+  }
+
   public List<SharedItem> findByItemTypeAndItemId(SharedItem.ItemType itemType, Integer itemId) {
     return sharedItemRepository.findByItemTypeAndItemId(itemType, itemId);
   }
@@ -48,38 +113,172 @@ public class SharedItemService {
 
   @Transactional
   public SharedItem create(SharedItem sharedItem) {
+    invalidatePermissionsOf(sharedItem.getSharedWith().getId());
     return sharedItemRepository.save(sharedItem);
   }
 
   @Transactional
   public SharedItem update(SharedItem sharedItem) {
+    invalidatePermissionsOf(sharedItem.getSharedWith().getId());
     return sharedItemRepository.save(sharedItem);
   }
 
   @Transactional
   public void delete(Integer id) {
+    sharedItemRepository.findById(id).ifPresent(item -> invalidatePermissionsOf(item.getSharedWith().getId()));
     sharedItemRepository.deleteById(id);
   }
 
+  /**
+   * Effective permission of a user on a file: its own share or one of any
+   * directory above it, whichever grants more. Served from the permission
+   * cache; a miss costs one query.
+   */
+  public Optional<SharedItem.PermissionLevel> effectivePermission(File file, Integer userId) {
+    Integer directoryId = file.getDirectory() != null ? file.getDirectory().getId() : null;
+    return permissions.get(new AclKey(userId, SharedItem.ItemType.file, file.getId()),
+        key -> strongest(sharedItemRepository.findEffectiveLevels(userId, file.getId(), directoryId)));
+  }
+
+  /**
+   * Effective permission of a user on a directory, including shares of its
+   * ancestors
+   */
+  public Optional<SharedItem.PermissionLevel> effectivePermission(Integer directoryId, Integer userId) {
+    return permissions.get(new AclKey(userId, SharedItem.ItemType.directory, directoryId),
+        key -> strongest(sharedItemRepository.findEffectiveLevels(userId, null, directoryId)));
+  }
+
+  /**
+   * Drop every cached permission that may have been inherited along a
+   * directory path. Moving a directory changes what all of its contents
+   * inherit, for every user it is shared with.
+   */
+  public void invalidateInheritedPermissions() {
+    Invalidation.nowAndAfterCompletion(permissions::invalidateAll);
+  }
+
+  private void invalidatePermissionsOf(Integer userId) {
+    Invalidation.nowAndAfterCompletion(() -> permissions.invalidateGroup(userId));
+  }
+
+  private static Optional<SharedItem.PermissionLevel> strongest(List<SharedItem.PermissionLevel> levels) {
+    if (levels.contains(SharedItem.PermissionLevel.edit)) {
+      return Optional.of(SharedItem.PermissionLevel.edit);
+    }
+    return levels.isEmpty() ? Optional.empty() : Optional.of(SharedItem.PermissionLevel.view);
+  }
+
   /**
    * Check if a user has access to a specific item
    */
   public boolean hasViewAccess(SharedItem.ItemType itemType, Integer itemId, Integer userId) {
-    List<SharedItem> sharedItems = sharedItemRepository.findByItemTypeAndItemId(itemType, itemId);
-
-    return sharedItems.stream()
-        .anyMatch(item -> item.getSharedWith().getId().equals(userId));
+    return sharedItemRepository.existsByItemTypeAndItemIdAndSharedWithId(itemType, itemId, userId);
   }
 
   /**
    * Check if a user has edit access to a specific item
    */
   public boolean hasEditAccess(SharedItem.ItemType itemType, Integer itemId, Integer userId) {
-    List<SharedItem> sharedItems = sharedItemRepository.findByItemTypeAndItemId(itemType, itemId);
+    return sharedItemRepository.existsByItemTypeAndItemIdAndSharedWithIdAndPermissionLevel(itemType, itemId, userId,
+        SharedItem.PermissionLevel.edit);
+  }
+
+  /**
+   * Access of a user to many files and directories at once: edit on what the
+   * user owns, otherwise the strongest level of a direct share or of a share
+   * of any directory above the item. Items that are missing or not
+   * accessible are left out of the result. Costs one query for the files'
+   * locations, one for the directories' and two for the shares, per
+   * thousand items.
+   */
+  public Map<ItemRef, SharedItem.PermissionLevel> resolveAccess(Collection<ItemRef> items, Integer userId) {
+    Map<ItemRef, ItemLocation> locations = new HashMap<>();
+    for (SharedItem.ItemType type : SharedItem.ItemType.values()) {
+      List<Integer> ids = items.stream().filter(item -> item.type() == type).map(ItemRef::id).distinct().toList();
+      for (List<Integer> batch : batches(ids)) {
+        List<ItemLocation> found = type == SharedItem.ItemType.file
+            ? fileRepository.findLocationsByIdIn(batch)
+            : directoryRepository.findLocationsByIdIn(batch);
+        found.forEach(location -> locations.put(new ItemRef(type, location.getId()), location));
+      }
+    }
+
+    // Every item not owned by the user can be reached through a share of
+    // itself (files) or of a directory on its path
+    Set<Integer> fileIds = new HashSet<>();
+    Set<Integer> directoryIds = new HashSet<>();
+    locations.forEach((item, location) -> {
+      if (location.getOwnerId().equals(userId)) {
+        return;
+      }
+      if (item.type() == SharedItem.ItemType.file) {
+        fileIds.add(item.id());
+      }
+      directoryIds.addAll(directoryPath(location));
+    });
+
+    Map<ItemRef, SharedItem.PermissionLevel> shares = new HashMap<>();
+    loadShares(userId, SharedItem.ItemType.file, fileIds, shares);
+    loadShares(userId, SharedItem.ItemType.directory, directoryIds, shares);
+
+    Map<ItemRef, SharedItem.PermissionLevel> access = new HashMap<>();
+    locations.forEach((item, location) -> {
+      if (location.getOwnerId().equals(userId)) {
+        access.put(item, SharedItem.PermissionLevel.edit);
+        return;
+      }
+      List<SharedItem.PermissionLevel> levels = new ArrayList<>();
+      if (item.type() == SharedItem.ItemType.file && shares.containsKey(item)) {
+        levels.add(shares.get(item));
+      }
+      for (Integer directoryId : directoryPath(location)) {
+        SharedItem.PermissionLevel level = shares.get(new ItemRef(SharedItem.ItemType.directory, directoryId));
+        if (level != null) {
+          levels.add(level);
+        }
+      }
+      strongest(levels).ifPresent(level -> access.put(item, level));
+    });
+    return access;
+  }
 
-    return sharedItems.stream()
-        .anyMatch(item -> item.getSharedWith().getId().equals(userId) &&
-            item.getPermissionLevel() == SharedItem.PermissionLevel.edit);
+  private void loadShares(Integer userId, SharedItem.ItemType type, Collection<Integer> itemIds,
+      Map<ItemRef, SharedItem.PermissionLevel> shares) {
+    for (List<Integer> batch : batches(new ArrayList<>(itemIds))) {
+      for (SharedItem share : sharedItemRepository.findBySharedWithIdAndItemTypeAndItemIdIn(userId, type, batch)) {
+        shares.merge(new ItemRef(type, share.getItemId()), share.getPermissionLevel(),
+            (a, b) -> a == SharedItem.PermissionLevel.edit ? a : b);
+      }
+    }
+  }
+
+  /**
+   * Ids of the directory an item inherits shares from and all of its
+   * ancestors
+   */
+  private static List<Integer> directoryPath(ItemLocation location) {
+    List<Integer> path = new ArrayList<>();
+    if (location.getDirectoryId() == null) {
+      return path;
+    }
+    if (location.getTreePath() != null) {
+      for (String part : location.getTreePath().split("/")) {
+        if (!part.isEmpty()) {
+          path.add(Integer.valueOf(part));
+        }
+      }
+    }
+    path.add(location.getDirectoryId());
+    return path;
+  }
+
+  private static List<List<Integer>> batches(List<Integer> ids) {
+    List<List<Integer>> batches = new ArrayList<>();
+    for (int from = 0; from < ids.size(); from += BATCH_SIZE) {
+      batches.add(ids.subList(from, Math.min(ids.size(), from + BATCH_SIZE)));
+    }
+    return batches;
   }
 
   /**
@@ -88,6 +287,7 @@ public class SharedItemService {
   @Transactional
   public void removeAllShares(SharedItem.ItemType itemType, Integer itemId) {
     List<SharedItem> sharedItems = sharedItemRepository.findByItemTypeAndItemId(itemType, itemId);
+    sharedItems.forEach(item -> invalidatePermissionsOf(item.getSharedWith().getId()));
     sharedItemRepository.deleteAll(sharedItems);
   }
 
@@ -95,20 +295,9 @@ public class SharedItemService {
    * Check if a user has view access to a directory (recursively up to parent)
    */
   public boolean hasRecursiveDirectoryAccess(Integer directoryId, Integer userId) {
-    // Check direct share
-    List<SharedItem> sharedItems = sharedItemRepository.findByItemTypeAndItemId(SharedItem.ItemType.directory,
-        directoryId);
-    boolean direct = sharedItems.stream().anyMatch(item -> item.getSharedWith().getId().equals(userId));
-    if (direct)
-      return true;
-    // Check parent
-    Optional<Directory> dirOpt = directoryRepository.findById(directoryId);
-    if (dirOpt.isPresent()) {
-      Directory dir = dirOpt.get();
-      if (dir.getParentDirectory() != null) {
-        return hasRecursiveDirectoryAccess(dir.getParentDirectory().getId(), userId);
-      }
+    if (directoryId == null) {
+      return false;
     }
-    return false;
+    return effectivePermission(directoryId, userId).isPresent();
   }
 }
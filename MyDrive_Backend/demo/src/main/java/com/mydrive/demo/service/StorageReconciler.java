@@ -0,0 +1,230 @@
+package com.mydrive.demo.service;
+
+import com.mydrive.demo.repository.BlobChunkRepository;
+import com.mydrive.demo.repository.BlobTombstoneRepository;
+import com.mydrive.demo.repository.FileRepository;
+import com.mydrive.demo.repository.StagedBlobRepository;
+import com.mydrive.demo.repository.UserRepository;
+import com.mydrive.demo.storage.BlobStat;
+import com.mydrive.demo.storage.BlobStore;
+import com.mydrive.demo.storage.StorageBackend;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Compares storage against the database. Stored keys are streamed and
+ * checked in batches, so memory stays flat however much is stored, and
+ * whatever nothing refers to is removed:
+ *
+ * - manifests of no file, staged upload or pending tombstone
+ * - chunk files without a reference count
+ * - plain files of the pre-blob-store layout that no file points at
+ *
+ * Keys younger than the grace period and names it does not recognise are
+ * left alone. File rows whose content is missing and users whose storage
+ * used differs from the size of their files are reported, not repaired.
+ */
+@Component
+public class StorageReconciler {
+  private static final Logger logger = LoggerFactory.getLogger(StorageReconciler.class);
+
+  private static final int BATCH_SIZE = 500;
+  private static final int MAX_REPORTED = 20;
+  private static final Pattern CHUNK_KEY = Pattern.compile("[0-9a-f]{64}");
+  private static final Pattern LEGACY_KEY = Pattern.compile(
+      "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}(\\.[^.]*)?");
+
+  private final StorageBackend storageBackend;
+  private final BlobStore blobStore;
+  private final BlobReclaimer blobReclaimer;
+  private final FileRepository fileRepository;
+  private final StagedBlobRepository stagedBlobRepository;
+  private final BlobTombstoneRepository tombstoneRepository;
+  private final BlobChunkRepository chunkRepository;
+  private final UserRepository userRepository;
+  private final Duration gracePeriod;
+  private final Counter orphansRemoved;
+  private final AtomicLong missingContent = new AtomicLong();
+  private final AtomicLong usersWithDrift = new AtomicLong();
+
+  public StorageReconciler(
+      StorageBackend storageBackend,
+      BlobStore blobStore,
+      BlobReclaimer blobReclaimer,
+      FileRepository fileRepository,
+      StagedBlobRepository stagedBlobRepository,
+      BlobTombstoneRepository tombstoneRepository,
+      BlobChunkRepository chunkRepository,
+      UserRepository userRepository,
+      @Value("${file.reconcile.grace-hours:24}") long graceHours,
+      MeterRegistry meterRegistry) {
+    this.storageBackend = storageBackend;
+    this.blobStore = blobStore;
+    this.blobReclaimer = blobReclaimer;
+    this.fileRepository = fileRepository;
+    this.stagedBlobRepository = stagedBlobRepository;
+    this.tombstoneRepository = tombstoneRepository;
+    this.chunkRepository = chunkRepository;
+    this.userRepository = userRepository;
+    this.gracePeriod = Duration.ofHours(graceHours);
+    this.orphansRemoved = Counter.builder("storage.reconcile.orphans.removed").register(meterRegistry);
+    Gauge.builder("storage.reconcile.missing.content", missingContent, AtomicLong::get).register(meterRegistry);
+    Gauge.builder("storage.reconcile.quota.drift", usersWithDrift, AtomicLong::get).register(meterRegistry);
+  }
+
+  @Scheduled(initialDelayString = "${file.reconcile.initial-delay-ms:300000}",
+      fixedDelayString = "${file.reconcile.interval-ms:86400000}")
+  public void reconcile() {
+    try {
+      int removed = removeOrphans();
+      long missing = countMissingContent();
+      long drift = reportQuotaDrift();
+      logger.info("Storage reconciled: {} orphan(s) removed, {} file(s) missing content, {} user(s) with quota drift",
+          removed, missing, drift);
+    } catch (IOException | RuntimeException ex) {
+      logger.warn("Could not reconcile storage", ex);
+    }
+  }
+
+  private int removeOrphans() throws IOException {
+    Instant cutoff = Instant.now().minus(gracePeriod);
+    int removed = 0;
+    try (Stream<String> keys = storageBackend.list()) {
+      Iterator<String> it = keys.iterator();
+      List<String> batch = new ArrayList<>(BATCH_SIZE);
+      while (it.hasNext()) {
+        batch.add(it.next());
+        if (batch.size() == BATCH_SIZE || !it.hasNext()) {
+          removed += removeOrphans(batch, cutoff);
+          batch.clear();
+        }
+      }
+    }
+    return removed;
+  }
+
+  private int removeOrphans(List<String> keys, Instant cutoff) {
+    List<String> contentKeys = new ArrayList<>();
+    List<String> chunkKeys = new ArrayList<>();
+    for (String key : keys) {
+      if (BlobStore.isManifest(key) || LEGACY_KEY.matcher(key).matches()) {
+        contentKeys.add(key);
+      } else if (CHUNK_KEY.matcher(key).matches()) {
+        chunkKeys.add(key);
+      }
+    }
+
+    int removed = 0;
+    if (!contentKeys.isEmpty()) {
+      // A key moves from staged to a file row to a tombstone and never back,
+      // so checking in that order cannot miss one that is moving on
+      Set<String> referenced = new HashSet<>(stagedBlobRepository.findKeysIn(contentKeys));
+      referenced.addAll(fileRepository.findPathsIn(contentKeys));
+      referenced.addAll(tombstoneRepository.findKeysIn(contentKeys));
+      for (String key : contentKeys) {
+        if (!referenced.contains(key) && removeContent(key, cutoff)) {
+          removed++;
+        }
+      }
+    }
+
+    if (!chunkKeys.isEmpty()) {
+      Map<String, Long> refCounts = new HashMap<>();
+      chunkRepository.findAllById(chunkKeys).forEach(chunk -> refCounts.put(chunk.getHash(), chunk.getRefCount()));
+      for (String hash : chunkKeys) {
+        if (refCounts.getOrDefault(hash, 0L) == 0 && removeChunk(hash, cutoff)) {
+          removed++;
+        }
+      }
+    }
+
+    orphansRemoved.increment(removed);
+    return removed;
+  }
+
+  private boolean removeContent(String key, Instant cutoff) {
+    try {
+      if (!olderThan(key, cutoff)) {
+        return false;
+      }
+      blobReclaimer.release(key);
+      logger.debug("Removed orphaned content {}", key);
+      return true;
+    } catch (IOException | RuntimeException ex) {
+      logger.warn("Could not remove orphaned content {}", key, ex);
+      return false;
+    }
+  }
+
+  private boolean removeChunk(String hash, Instant cutoff) {
+    try {
+      if (!olderThan(hash, cutoff) || !blobStore.releaseOrphanChunk(hash)) {
+        return false;
+      }
+      logger.debug("Removed orphaned chunk {}", hash);
+      return true;
+    } catch (IOException | RuntimeException ex) {
+      logger.warn("Could not remove orphaned chunk {}", hash, ex);
+      return false;
+    }
+  }
+
+  /**
+   * Count files whose stored content is gone, checking each file's key
+   */
+  private long countMissingContent() throws IOException {
+    long missing = 0;
+    Integer afterId = 0;
+    List<FileRepository.StoredContentRow> page;
+    do {
+      page = fileRepository.findStoredContentAfter(afterId, Limit.of(BATCH_SIZE));
+      for (FileRepository.StoredContentRow row : page) {
+        if (storageBackend.stat(row.getPath()).isEmpty()) {
+          if (missing < MAX_REPORTED) {
+            logger.warn("Content {} of file {} is missing", row.getPath(), row.getId());
+          }
+          missing++;
+        }
+        afterId = row.getId();
+      }
+    } while (page.size() == BATCH_SIZE);
+    missingContent.set(missing);
+    return missing;
+  }
+
+  private long reportQuotaDrift() {
+    List<UserRepository.StorageDriftRow> drift = userRepository.findStorageDrift();
+    drift.stream().limit(MAX_REPORTED).forEach(row -> logger.warn(
+        "Storage used of user {} is {} but their files take {} bytes", row.getId(), row.getStorageUsed(),
+        row.getActualSize()));
+    usersWithDrift.set(drift.size());
+    return drift.size();
+  }
+
+  private boolean olderThan(String key, Instant cutoff) throws IOException {
+    Optional<BlobStat> stat = storageBackend.stat(key);
+    return stat.isPresent() && stat.get().lastModified().isBefore(cutoff);
+  }
+}
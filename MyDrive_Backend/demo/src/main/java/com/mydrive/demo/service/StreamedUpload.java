@@ -0,0 +1,12 @@
+package com.mydrive.demo.service;
+
+import com.mydrive.demo.storage.StoredBlob;
+
+import java.util.Map;
+
+/**
+ * Outcome of streaming a multipart request: the stored file part, if any, and
+ * the plain form fields that came with it
+ */
+public record StreamedUpload(StoredBlob blob, String fileName, String contentType, Map<String, String> fields) {
+}
@@ -0,0 +1,300 @@
+package com.mydrive.demo.service;
+
+import com.mydrive.demo.entity.Directory;
+import com.mydrive.demo.entity.SharedItem;
+import com.mydrive.demo.repository.DirectoryRepository;
+import com.mydrive.demo.repository.FileRepository;
+import com.mydrive.demo.repository.SharedItemRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.domain.Limit;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Deletes a directory with everything below it using set-based statements.
+ * Descendants are found through the tree path index and removed deepest
+ * level first, in bounded steps: up to a batch of files of a level's
+ * directories with their shares, then the shares of those directories and
+ * the directories themselves. No entity of the subtree is loaded, so memory
+ * stays flat however large the tree is.
+ *
+ * Every step commits on its own, so row locks and undo are only ever held
+ * for one batch, and the subtree is a valid, shrinking tree in between. A
+ * step locks the totals rows it changes, its directories and all their
+ * ancestors, up front and in ascending id order, the order uploads take
+ * them in. The directory may be moved while it is being deleted; each step
+ * reads its tree path again under that lock. Subtrees larger than one step
+ * are deleted on a background thread, so the request that deletes them
+ * returns at once.
+ */
+@Service
+public class SubtreeDeleter {
+  private static final Logger logger = LoggerFactory.getLogger(SubtreeDeleter.class);
+
+  private static final int DIRECTORY_BATCH_SIZE = 500;
+  private static final int FILE_BATCH_SIZE = 1000;
+  private static final long PROGRESS_INTERVAL = 10000;
+  // Steps in a row that may find nothing to remove, because what they read
+  // was moved before they locked it, before the delete gives up
+  private static final int MAX_IDLE_STEPS = 16;
+
+  private final DirectoryRepository directoryRepository;
+  private final FileRepository fileRepository;
+  private final SharedItemRepository sharedItemRepository;
+  private final DirectoryTreeCache treeCache;
+  private final QuotaService quotaService;
+  private final BlobReclaimer blobReclaimer;
+  private final TransactionTemplate transactionTemplate;
+  private final ThreadPoolTaskExecutor executor;
+  private final Set<Integer> running = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Rows removed so far from one subtree
+   */
+  private static final class Progress {
+    private final Integer directoryId;
+    private long directories;
+    private long files;
+    private long bytes;
+    private long nextReport = PROGRESS_INTERVAL;
+
+    private Progress(Integer directoryId) {
+      this.directoryId = directoryId;
+    }
+
+    private long rows() {
+      return directories + files;
+    }
+
+    private void add(Step step) {
+      directories += step.directories();
+      files += step.files();
+      bytes += step.bytes();
+      if (rows() >= nextReport) {
+        logger.info("Deleting directory {}: {} directories and {} files removed so far", directoryId, directories,
+            files);
+        nextReport = rows() + PROGRESS_INTERVAL;
+      }
+    }
+  }
+
+  /**
+   * What one committed step removed, and the tree path the directory had
+   * then; done once the directory itself is gone
+   */
+  private record Step(long directories, long files, long bytes, String treePath, boolean done) {
+    private boolean removedNothing() {
+      return directories == 0 && files == 0;
+    }
+  }
+
+  public SubtreeDeleter(
+      DirectoryRepository directoryRepository,
+      FileRepository fileRepository,
+      SharedItemRepository sharedItemRepository,
+      DirectoryTreeCache treeCache,
+      QuotaService quotaService,
+      BlobReclaimer blobReclaimer,
+      PlatformTransactionManager transactionManager,
+      @Qualifier("subtreeDeleteExecutor") ThreadPoolTaskExecutor executor) {
+    this.directoryRepository = directoryRepository;
+    this.fileRepository = fileRepository;
+    this.sharedItemRepository = sharedItemRepository;
+    this.treeCache = treeCache;
+    this.quotaService = quotaService;
+    this.blobReclaimer = blobReclaimer;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.executor = executor;
+  }
+
+  /**
+   * Delete a directory's subtree, right away when it fits in one step and
+   * in the background otherwise. Must not be called within a transaction.
+   *
+   * @return true when the subtree is gone, false when it is still being
+   *         deleted
+   */
+  public boolean delete(Directory directory) {
+    Integer directoryId = directory.getId();
+    if (!running.add(directoryId)) {
+      return false;
+    }
+
+    boolean small = directory.getFileCount() <= FILE_BATCH_SIZE
+        && directoryRepository.countByTreePathStartingWith(directory.subtreePath()) < DIRECTORY_BATCH_SIZE;
+    if (!small) {
+      try {
+        executor.execute(() -> deleteInBackground(directory));
+        return false;
+      } catch (RejectedExecutionException ex) {
+        // Too many deletes queued; this one runs in the request
+      }
+    }
+
+    try {
+      deleteSubtree(directory);
+    } finally {
+      running.remove(directoryId);
+    }
+    return true;
+  }
+
+  private void deleteInBackground(Directory directory) {
+    try {
+      deleteSubtree(directory);
+    } catch (RuntimeException ex) {
+      // What was deleted so far stays deleted; deleting the directory again
+      // picks up the rest
+      logger.warn("Could not finish deleting directory {}", directory.getId(), ex);
+    } finally {
+      running.remove(directory.getId());
+    }
+  }
+
+  private void deleteSubtree(Directory directory) {
+    Integer ownerId = directory.getOwner().getId();
+    Progress progress = new Progress(directory.getId());
+    String treePath = directory.getTreePath();
+    int idleSteps = 0;
+    Step step;
+    do {
+      String stepTreePath = treePath;
+      step = transactionTemplate.execute(status -> deleteStep(directory.getId(), stepTreePath));
+      progress.add(step);
+      // Quota is given back per committed step, in a transaction of its own,
+      // so the user row is never locked after the directory rows
+      if (step.bytes() > 0) {
+        quotaService.addUsage(ownerId, -step.bytes());
+      }
+      treeCache.invalidate(ownerId);
+      treePath = step.treePath();
+
+      idleSteps = step.removedNothing() ? idleSteps + 1 : 0;
+      if (!step.done() && idleSteps > MAX_IDLE_STEPS) {
+        throw new IllegalStateException("Directory " + directory.getId() + " keeps changing while being deleted");
+      }
+    } while (!step.done());
+
+    if (progress.rows() >= PROGRESS_INTERVAL) {
+      logger.info("Deleted directory {}: {} directories and {} files ({} bytes)", directory.getId(),
+          progress.directories, progress.files, progress.bytes);
+    }
+  }
+
+  /**
+   * Remove up to a batch of files from the deepest level of the subtree,
+   * and the level's directories once their files are gone. The directory's
+   * tree path is the one the previous step found, and is checked again
+   * under lock, since the directory or an ancestor may have moved since.
+   */
+  private Step deleteStep(Integer directoryId, String treePath) {
+    List<DirectoryRepository.SubtreeRow> deepest =
+        directoryRepository.findDeepestInSubtree(treePath + directoryId + "/", DIRECTORY_BATCH_SIZE);
+    Map<Integer, String> level = new HashMap<>();
+    boolean root = deepest.isEmpty();
+    if (root) {
+      level.put(directoryId, treePath);
+    } else {
+      Integer depth = deepest.get(0).getDepth();
+      for (DirectoryRepository.SubtreeRow row : deepest) {
+        if (row.getDepth().equals(depth)) {
+          level.put(row.getId(), row.getTreePath());
+        }
+      }
+    }
+
+    Set<Integer> lockIds = new TreeSet<>(level.keySet());
+    lockIds.add(directoryId);
+    level.values().forEach(path -> lockIds.addAll(Directory.ancestorIds(path)));
+    Map<Integer, String> locked = new HashMap<>();
+    for (DirectoryRepository.TotalsRow row : directoryRepository.lockTotalsIn(lockIds)) {
+      locked.put(row.getId(), row.getTreePath());
+    }
+    String currentTreePath = locked.get(directoryId);
+    if (currentTreePath == null) {
+      // Deleted by someone else in the meantime
+      return new Step(0, 0, 0, treePath, true);
+    }
+    if (!currentTreePath.equals(treePath)) {
+      // Moved since the last step; the next one reads below its new path
+      return new Step(0, 0, 0, currentTreePath, false);
+    }
+    for (Map.Entry<Integer, String> entry : level.entrySet()) {
+      if (!entry.getValue().equals(locked.get(entry.getKey()))) {
+        // Moved or deleted between reading and locking; read the level again
+        return new Step(0, 0, 0, treePath, false);
+      }
+    }
+
+    List<FileRepository.DirectoryFileRow> files =
+        fileRepository.findStoredFilesIn(level.keySet(), Limit.of(FILE_BATCH_SIZE));
+    long bytes = deleteFiles(files, level);
+    if (files.size() == FILE_BATCH_SIZE) {
+      return new Step(0, files.size(), bytes, treePath, false);
+    }
+
+    // A directory that got a subdirectory before it was locked is left for
+    // a later step, which reaches it after its new child
+    Set<Integer> removable = new HashSet<>(level.keySet());
+    removable.removeAll(directoryRepository.findParentIdsIn(level.keySet()));
+    if (removable.isEmpty()) {
+      return new Step(0, files.size(), bytes, treePath, false);
+    }
+    sharedItemRepository.deleteByItemTypeAndItemIdIn(SharedItem.ItemType.directory, removable);
+    int directories = directoryRepository.deleteByIdIn(removable);
+    return new Step(directories, files.size(), bytes, treePath, root && removable.contains(directoryId));
+  }
+
+  /**
+   * Delete files with their shares, hand their content to BlobReclaimer and
+   * take them out of the totals of their directories and every ancestor
+   *
+   * @return bytes deleted
+   */
+  private long deleteFiles(List<FileRepository.DirectoryFileRow> files, Map<Integer, String> treePaths) {
+    if (files.isEmpty()) {
+      return 0;
+    }
+
+    List<Integer> fileIds = new ArrayList<>(files.size());
+    List<String> paths = new ArrayList<>(files.size());
+    Map<Integer, Long> sizes = new HashMap<>();
+    Map<Integer, Long> counts = new HashMap<>();
+    long bytes = 0;
+    for (FileRepository.DirectoryFileRow file : files) {
+      fileIds.add(file.getId());
+      paths.add(file.getPath());
+      bytes += file.getSize();
+      List<Integer> chain = new ArrayList<>(Directory.ancestorIds(treePaths.get(file.getDirectoryId())));
+      chain.add(file.getDirectoryId());
+      for (Integer id : chain) {
+        sizes.merge(id, -file.getSize(), Long::sum);
+        counts.merge(id, -1L, Long::sum);
+      }
+    }
+
+    blobReclaimer.bury(paths);
+    sharedItemRepository.deleteByItemTypeAndItemIdIn(SharedItem.ItemType.file, fileIds);
+    fileRepository.deleteByIdIn(fileIds);
+
+    Map<List<Long>, List<Integer>> idsByChange = new HashMap<>();
+    sizes.forEach((id, size) -> idsByChange.computeIfAbsent(List.of(size, counts.get(id)), change -> new ArrayList<>())
+        .add(id));
+    idsByChange.forEach((change, ids) -> directoryRepository.addToTotals(ids, change.get(0), change.get(1)));
+    return bytes;
+  }
+}
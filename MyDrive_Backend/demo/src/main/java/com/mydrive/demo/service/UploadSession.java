@@ -0,0 +1,36 @@
+package com.mydrive.demo.service;
+
+import java.time.Instant;
+
+/**
+ * Descriptor of a resumable upload, persisted next to its data file.
+ * reservedBytes is what the session holds of its owner's quota; 0 once a
+ * failed commit gave the reservation back.
+ */
+public record UploadSession(
+    String id,
+    Integer ownerId,
+    Integer directoryId,
+    String fileName,
+    String contentType,
+    long size,
+    int chunkSize,
+    Instant createdAt,
+    long reservedBytes) {
+
+  public UploadSession withReservedBytes(long bytes) {
+    return new UploadSession(id, ownerId, directoryId, fileName, contentType, size, chunkSize, createdAt, bytes);
+  }
+
+  public int chunkCount() {
+    return size == 0 ? 0 : (int) ((size + chunkSize - 1) / chunkSize);
+  }
+
+  public long chunkOffset(int index) {
+    return (long) index * chunkSize;
+  }
+
+  public long chunkLength(int index) {
+    return Math.min(chunkSize, size - chunkOffset(index));
+  }
+}
@@ -0,0 +1,309 @@
+package com.mydrive.demo.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mydrive.demo.entity.Directory;
+import com.mydrive.demo.entity.File;
+import com.mydrive.demo.entity.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.BitSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resumable uploads. Each session owns a preallocated data file that chunks
+ * are written into at their final offset, plus a one-byte-per-chunk receipt
+ * map; both live on disk so sessions survive restarts. The File row is only
+ * created when the session is committed.
+ *
+ * A session reserves its declared size against the owner's quota when it is
+ * created, so open sessions can never put more on disk than the quota
+ * allows. The reservation is consumed by the commit, or released when the
+ * session is aborted or expires. Whoever deletes the session descriptor
+ * settles the reservation, so it is released exactly once.
+ */
+@Service
+public class UploadSessionService {
+  private static final Logger logger = LoggerFactory.getLogger(UploadSessionService.class);
+
+  private static final int MIN_CHUNK_SIZE = 256 * 1024;
+  private static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+
+  private final FileService fileService;
+  private final QuotaService quotaService;
+  private final ObjectMapper objectMapper;
+  private final Path sessionLocation;
+  private final int defaultChunkSize;
+  private final Duration sessionTtl;
+  private final Set<String> committing = ConcurrentHashMap.newKeySet();
+
+  @Autowired
+  public UploadSessionService(
+      FileService fileService,
+      QuotaService quotaService,
+      ObjectMapper objectMapper,
+      @Value("${file.upload.directory}") String uploadDir,
+      @Value("${file.upload.session-chunk-size:8388608}") int defaultChunkSize,
+      @Value("${file.upload.session-ttl-hours:24}") long sessionTtlHours) {
+    this.fileService = fileService;
+    this.quotaService = quotaService;
+    this.objectMapper = objectMapper;
+    this.defaultChunkSize = defaultChunkSize;
+    this.sessionTtl = Duration.ofHours(sessionTtlHours);
+
+    this.sessionLocation = Paths.get(uploadDir).toAbsolutePath().normalize().resolve("sessions");
+    try {
+      Files.createDirectories(this.sessionLocation);
+    } catch (IOException ex) {
+      throw new RuntimeException("Could not create the directory for upload sessions", ex);
+    }
+  }
+
+  public UploadSession create(User owner, Directory directory, String fileName, String contentType, long size,
+      Integer chunkSize) throws IOException {
+    String cleanName = StringUtils.cleanPath(fileName);
+    if (cleanName.isEmpty() || cleanName.contains("..") || cleanName.contains("/")) {
+      throw new IllegalArgumentException("Filename contains invalid path sequence " + fileName);
+    }
+    if (size < 0) {
+      throw new IllegalArgumentException("File size cannot be negative");
+    }
+    int effectiveChunkSize = chunkSize != null ? chunkSize : defaultChunkSize;
+    if (effectiveChunkSize < MIN_CHUNK_SIZE || effectiveChunkSize > MAX_CHUNK_SIZE) {
+      throw new IllegalArgumentException(
+          "Chunk size must be between " + MIN_CHUNK_SIZE + " and " + MAX_CHUNK_SIZE + " bytes");
+    }
+    QuotaService.Reservation reservation;
+    try {
+      reservation = quotaService.reserve(owner.getId(), size);
+    } catch (RuntimeException ex) {
+      throw new IllegalArgumentException("Not enough storage space");
+    }
+
+    UploadSession session = new UploadSession(UUID.randomUUID().toString(), owner.getId(),
+        directory != null ? directory.getId() : null, cleanName, contentType, size, effectiveChunkSize,
+        Instant.now(), size);
+
+    Path sessionDir = sessionLocation.resolve(session.id());
+    try {
+      Files.createDirectories(sessionDir);
+      try (RandomAccessFile data = new RandomAccessFile(dataPath(session.id()).toFile(), "rw");
+          RandomAccessFile received = new RandomAccessFile(receivedPath(session.id()).toFile(), "rw")) {
+        data.setLength(size);
+        received.setLength(session.chunkCount());
+      }
+      objectMapper.writeValue(sessionPath(session.id()).toFile(), session);
+    } catch (IOException | RuntimeException ex) {
+      quotaService.release(reservation);
+      FileSystemUtils.deleteRecursively(sessionDir);
+      throw ex;
+    }
+    return session;
+  }
+
+  public Optional<UploadSession> find(String sessionId) {
+    try {
+      UUID.fromString(sessionId);
+    } catch (IllegalArgumentException ex) {
+      return Optional.empty();
+    }
+
+    Path path = sessionPath(sessionId);
+    if (!Files.exists(path)) {
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(objectMapper.readValue(path.toFile(), UploadSession.class));
+    } catch (IOException ex) {
+      logger.warn("Unreadable upload session {}", sessionId, ex);
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Write one chunk straight into its final position in the data file. The
+   * chunk is only marked as received once its bytes are on disk.
+   */
+  public void writeChunk(UploadSession session, int index, InputStream body) throws IOException {
+    if (index < 0 || index >= session.chunkCount()) {
+      throw new IllegalArgumentException("Chunk index out of range: " + index);
+    }
+
+    long position = session.chunkOffset(index);
+    long remaining = session.chunkLength(index);
+    try (FileChannel data = FileChannel.open(dataPath(session.id()), StandardOpenOption.WRITE)) {
+      ReadableByteChannel source = Channels.newChannel(body);
+      while (remaining > 0) {
+        long transferred = data.transferFrom(source, position, remaining);
+        if (transferred <= 0) {
+          break;
+        }
+        position += transferred;
+        remaining -= transferred;
+      }
+      if (remaining > 0) {
+        throw new IllegalArgumentException("Chunk " + index + " is shorter than expected");
+      }
+      if (body.read() != -1) {
+        throw new IllegalArgumentException("Chunk " + index + " is longer than expected");
+      }
+      data.force(false);
+    }
+
+    try (FileChannel received = FileChannel.open(receivedPath(session.id()), StandardOpenOption.WRITE)) {
+      received.write(ByteBuffer.wrap(new byte[] { 1 }), index);
+    }
+  }
+
+  public BitSet receivedChunks(UploadSession session) throws IOException {
+    byte[] marks = Files.readAllBytes(receivedPath(session.id()));
+    BitSet received = new BitSet(marks.length);
+    for (int i = 0; i < marks.length; i++) {
+      if (marks[i] != 0) {
+        received.set(i);
+      }
+    }
+    return received;
+  }
+
+  /**
+   * Turn a complete session into a stored file and drop the session
+   */
+  public File commit(UploadSession session, User owner, Directory directory) throws IOException {
+    if (!committing.add(session.id())) {
+      throw new IllegalStateException("Upload session is already being committed");
+    }
+
+    try {
+      BitSet received = receivedChunks(session);
+      if (received.cardinality() != session.chunkCount()) {
+        throw new IllegalStateException("Upload session is missing "
+            + (session.chunkCount() - received.cardinality()) + " chunk(s)");
+      }
+
+      // A session whose earlier commit failed gave its reservation back and
+      // has to reserve again
+      QuotaService.Reservation reservation = session.reservedBytes() > 0
+          ? quotaService.held(session.ownerId(), session.reservedBytes())
+          : quotaService.reserve(session.ownerId(), session.size());
+      File stored;
+      try (InputStream content = Files.newInputStream(dataPath(session.id()))) {
+        stored = fileService.storeFile(content, session.fileName(), session.contentType(), reservation, owner,
+            directory);
+      } catch (IOException | RuntimeException ex) {
+        // Whether the reservation failed before or during the file's
+        // transaction, it is given back here or by that rollback
+        quotaService.release(reservation);
+        objectMapper.writeValue(sessionPath(session.id()).toFile(), session.withReservedBytes(0));
+        throw ex;
+      }
+      FileSystemUtils.deleteRecursively(sessionLocation.resolve(session.id()));
+      return stored;
+    } finally {
+      committing.remove(session.id());
+    }
+  }
+
+  public void abort(UploadSession session) throws IOException {
+    if (committing.contains(session.id())) {
+      throw new IllegalStateException("Upload session is being committed");
+    }
+    discard(sessionLocation.resolve(session.id()));
+  }
+
+  /**
+   * Put the reservations of sessions that outlived a restart back in place,
+   * after QuotaService cleared all reservations left over from before it
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  @Order(Ordered.HIGHEST_PRECEDENCE + 1)
+  public void reinstateReservations() {
+    try (DirectoryStream<Path> sessions = Files.newDirectoryStream(sessionLocation)) {
+      for (Path sessionDir : sessions) {
+        find(sessionDir.getFileName().toString())
+            .filter(session -> session.reservedBytes() > 0)
+            .ifPresent(session -> quotaService.reinstate(session.ownerId(), session.reservedBytes()));
+      }
+    } catch (IOException | RuntimeException ex) {
+      logger.warn("Could not reinstate the reservations of upload sessions", ex);
+    }
+  }
+
+  /**
+   * Drop sessions that were never committed
+   */
+  @Scheduled(fixedDelayString = "${file.upload.session-cleanup-ms:3600000}")
+  public void purgeExpiredSessions() {
+    Instant cutoff = Instant.now().minus(sessionTtl);
+    try (DirectoryStream<Path> sessions = Files.newDirectoryStream(sessionLocation)) {
+      for (Path sessionDir : sessions) {
+        String sessionId = sessionDir.getFileName().toString();
+        if (committing.contains(sessionId)) {
+          continue;
+        }
+        Optional<UploadSession> session = find(sessionId);
+        Instant createdAt = session.map(UploadSession::createdAt)
+            .orElse(Files.getLastModifiedTime(sessionDir).toInstant());
+        if (createdAt.isBefore(cutoff)) {
+          discard(sessionDir);
+          logger.debug("Purged expired upload session {}", sessionId);
+        }
+      }
+    } catch (IOException ex) {
+      logger.warn("Could not purge expired upload sessions", ex);
+    }
+  }
+
+  /**
+   * Delete a session and release what it holds of its owner's quota. Only
+   * the caller that removes the descriptor releases, so an abort racing the
+   * expiry purge cannot release twice.
+   */
+  private void discard(Path sessionDir) throws IOException {
+    Path descriptor = sessionDir.resolve("session.json");
+    Optional<UploadSession> session = find(sessionDir.getFileName().toString());
+    if (Files.deleteIfExists(descriptor) && session.isPresent() && session.get().reservedBytes() > 0) {
+      quotaService.release(quotaService.held(session.get().ownerId(), session.get().reservedBytes()));
+    }
+    FileSystemUtils.deleteRecursively(sessionDir);
+  }
+
+  private Path sessionPath(String sessionId) {
+    return sessionLocation.resolve(sessionId).resolve("session.json");
+  }
+
+  private Path dataPath(String sessionId) {
+    return sessionLocation.resolve(sessionId).resolve("data");
+  }
+
+  private Path receivedPath(String sessionId) {
+    return sessionLocation.resolve(sessionId).resolve("received");
+  }
+}
@@ -4,8 +4,8 @@ import com.mydrive.demo.entity.User;
 import com.mydrive.demo.entity.Directory;
 import com.mydrive.demo.repository.UserRepository;
 import com.mydrive.demo.repository.DirectoryRepository;
+import com.mydrive.demo.security.PrincipalCache;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -16,15 +16,15 @@ import java.util.Optional;
 public class UserService {
   private final UserRepository userRepository;
   private final DirectoryRepository directoryRepository;
-  private final PasswordEncoder passwordEncoder;
+  private final PrincipalCache principalCache;
 
   @Autowired
   public UserService(UserRepository userRepository,
       DirectoryRepository directoryRepository,
-      PasswordEncoder passwordEncoder) {
+      PrincipalCache principalCache) {
     this.userRepository = userRepository;
     this.directoryRepository = directoryRepository;
-    this.passwordEncoder = passwordEncoder;
+    this.principalCache = principalCache;
   }
 
   public List<User> findAll() {
@@ -43,11 +43,12 @@ public class UserService {
     return userRepository.findByEmail(email);
   }
 
+  /**
+   * Save a new user with a root directory. The password must already be
+   * encoded.
+   */
   @Transactional
   public User register(User user) {
-    // Encrypt password
-    user.setPassword(passwordEncoder.encode(user.getPassword()));
-
     // Set default storage limits
     if (user.getStorageLimit() == null) {
       user.setStorageLimit(5368709120L); // 5GB default
@@ -69,21 +70,38 @@ public class UserService {
 
   @Transactional
   public User update(User user) {
+    principalCache.invalidate(user.getId());
     return userRepository.save(user);
   }
 
+  /**
+   * Replace a user's password hash, e.g. with one of a higher cost
+   */
   @Transactional
-  public void updateStorageUsed(Integer userId, Long additionalSize) {
+  public void updatePassword(Integer userId, String encodedPassword) {
     userRepository.findById(userId).ifPresent(user -> {
-      user.setStorageUsed(user.getStorageUsed() + additionalSize);
+      user.setPassword(encodedPassword);
       userRepository.save(user);
     });
   }
 
+  @Transactional
+  public void updateStorageUsed(Integer userId, Long additionalSize) {
+    userRepository.addStorageUsed(userId, additionalSize);
+  }
+
+  /**
+   * Whether a size fits next to what is used and reserved. Only a hint: the
+   * actual check is QuotaService's reservation.
+   */
   public boolean hasEnoughStorage(Integer userId, Long fileSize) {
+    return getAvailableStorage(userId) >= fileSize;
+  }
+
+  public long getAvailableStorage(Integer userId) {
     return userRepository.findById(userId)
-        .map(user -> (user.getStorageLimit() - user.getStorageUsed()) >= fileSize)
-        .orElse(false);
+        .map(user -> Math.max(0L, user.getStorageLimit() - user.getStorageUsed() - user.getStorageReserved()))
+        .orElse(0L);
   }
 
   public boolean existsByUsername(String username) {
@@ -96,6 +114,7 @@ public class UserService {
 
   @Transactional
   public void delete(Integer id) {
+    principalCache.invalidate(id);
     userRepository.deleteById(id);
   }
 }
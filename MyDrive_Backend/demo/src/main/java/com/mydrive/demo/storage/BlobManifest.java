@@ -0,0 +1,21 @@
+package com.mydrive.demo.storage;
+
+import java.util.List;
+
+/**
+ * Ordered list of content chunks that make up one stored file. Size and
+ * checksums describe the original content; when an encoding is set the chunks
+ * hold that encoding of it. Manifests written before the CRC-32 was recorded
+ * have none.
+ */
+public record BlobManifest(long size, String sha256, List<Chunk> chunks, String encoding, Long crc32) {
+  public record Chunk(String hash, long size) {
+  }
+
+  /**
+   * Number of bytes kept on disk for this content
+   */
+  public long storedSize() {
+    return chunks.stream().mapToLong(Chunk::size).sum();
+  }
+}
@@ -0,0 +1,50 @@
+package com.mydrive.demo.storage;
+
+import org.springframework.core.io.AbstractResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Resource view over a manifest-backed blob
+ */
+public class BlobResource extends AbstractResource {
+  private final BlobStore blobStore;
+  private final String key;
+  private final BlobManifest manifest;
+
+  BlobResource(BlobStore blobStore, String key, BlobManifest manifest) {
+    this.blobStore = blobStore;
+    this.key = key;
+    this.manifest = manifest;
+  }
+
+  public BlobManifest getManifest() {
+    return manifest;
+  }
+
+  @Override
+  public boolean exists() {
+    return true;
+  }
+
+  @Override
+  public long contentLength() {
+    return manifest.size();
+  }
+
+  @Override
+  public String getFilename() {
+    return key;
+  }
+
+  @Override
+  public String getDescription() {
+    return "Blob [" + key + "]";
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    return blobStore.open(manifest);
+  }
+}
@@ -0,0 +1,9 @@
+package com.mydrive.demo.storage;
+
+import java.time.Instant;
+
+/**
+ * Size and modification time of a stored key
+ */
+public record BlobStat(String key, long size, Instant lastModified) {
+}
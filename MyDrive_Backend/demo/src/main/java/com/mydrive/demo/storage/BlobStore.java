@@ -0,0 +1,362 @@
+package com.mydrive.demo.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mydrive.demo.entity.BlobChunk;
+import com.mydrive.demo.repository.BlobChunkRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Content-addressed store that splits streams into fixed-size chunks keyed by
+ * SHA-256. Each distinct chunk is written once and reference counted; a stored
+ * file is a manifest listing its chunks in order. Chunks and manifests are
+ * kept in a {@link StorageBackend} under their hash and manifest name.
+ */
+@Component
+public class BlobStore {
+  public static final String MANIFEST_SUFFIX = ".manifest";
+
+  private static final int LOCK_STRIPES = 64;
+  private static final int POOLED_BUFFERS = 16;
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+  private final BlobChunkRepository chunkRepository;
+  private final ObjectMapper objectMapper;
+  private final StorageBackend backend;
+  private final CompressionPolicy compressionPolicy;
+  private final BufferPool bufferPool;
+  private final Object[] locks = new Object[LOCK_STRIPES];
+
+  @Autowired
+  public BlobStore(
+      BlobChunkRepository chunkRepository,
+      ObjectMapper objectMapper,
+      StorageBackend backend,
+      CompressionPolicy compressionPolicy,
+      @Value("${file.chunk-size:4194304}") int chunkSize) {
+    this.chunkRepository = chunkRepository;
+    this.objectMapper = objectMapper;
+    this.backend = backend;
+    this.compressionPolicy = compressionPolicy;
+    this.bufferPool = new BufferPool(chunkSize, POOLED_BUFFERS);
+    for (int i = 0; i < LOCK_STRIPES; i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  public static boolean isManifest(String key) {
+    return key != null && key.endsWith(MANIFEST_SUFFIX);
+  }
+
+  /**
+   * A fresh key for a blob's manifest, for callers that need to record the
+   * key before the content is stored
+   */
+  public static String newKey() {
+    return UUID.randomUUID() + MANIFEST_SUFFIX;
+  }
+
+  public StoredBlob store(InputStream in) throws IOException {
+    return store(in, Long.MAX_VALUE, null, null);
+  }
+
+  public StoredBlob store(InputStream in, long maxSize, String declaredType, String fileName) throws IOException {
+    return store(in, maxSize, declaredType, fileName, newKey());
+  }
+
+  /**
+   * Split a stream into chunks, store the ones not seen before and write a
+   * manifest for the whole content. Size, checksum and content type are all
+   * taken in this single pass; the stream is abandoned once it grows past
+   * maxSize. Content of a compressible type is gzipped before it is chunked,
+   * so size and checksum describe the original bytes while the chunks hold
+   * the compressed ones. The manifest is written under the given key.
+   */
+  public StoredBlob store(InputStream in, long maxSize, String declaredType, String fileName, String key)
+      throws IOException {
+    byte[] head = in.readNBytes(ContentSniffer.HEAD_LENGTH);
+    String detectedType = ContentSniffer.detect(head, head.length);
+    String encoding = compressionPolicy.encodingFor(ContentSniffer.resolve(detectedType, declaredType, fileName));
+
+    MessageDigest contentDigest = sha256();
+    CRC32 crc = new CRC32();
+    ChunkSink sink = new ChunkSink(bufferPool.acquire());
+    long size = 0;
+
+    try {
+      OutputStream out = encoding != null ? compressionPolicy.compress(sink) : sink;
+      byte[] buffer = head;
+      int read = head.length;
+      while (read > 0) {
+        if (size + read > maxSize) {
+          throw new IOException("Content exceeds the allowed size of " + maxSize + " bytes");
+        }
+        contentDigest.update(buffer, 0, read);
+        crc.update(buffer, 0, read);
+        out.write(buffer, 0, read);
+        size += read;
+        if (buffer == head) {
+          buffer = new byte[COPY_BUFFER_SIZE];
+        }
+        read = in.readNBytes(buffer, 0, buffer.length);
+      }
+      out.close();
+
+      BlobManifest manifest = new BlobManifest(size, HexFormat.of().formatHex(contentDigest.digest()), sink.chunks,
+          encoding, crc.getValue());
+      writeManifest(key, manifest);
+      return new StoredBlob(key, manifest.size(), manifest.storedSize(), manifest.sha256(), detectedType, encoding);
+    } catch (IOException | RuntimeException ex) {
+      releaseChunks(sink.chunks.stream().map(BlobManifest.Chunk::hash).toList()).forEach(ex::addSuppressed);
+      throw ex;
+    } finally {
+      bufferPool.release(sink.buffer);
+    }
+  }
+
+  public BlobManifest readManifest(String key) throws IOException {
+    try (InputStream in = backend.get(key)) {
+      return objectMapper.readValue(in, BlobManifest.class);
+    }
+  }
+
+  public boolean exists(String key) throws IOException {
+    return backend.stat(key).isPresent();
+  }
+
+  /**
+   * Open the content of a stored blob, decompressing it if it was stored
+   * compressed
+   */
+  public InputStream open(BlobManifest manifest) throws IOException {
+    InputStream stored = openStored(manifest);
+    return CompressionPolicy.GZIP.equals(manifest.encoding()) ? new GZIPInputStream(stored, COPY_BUFFER_SIZE) : stored;
+  }
+
+  /**
+   * Open the bytes of a stored blob as they are kept on disk; chunk files are
+   * opened one at a time
+   */
+  public InputStream openStored(BlobManifest manifest) {
+    Iterator<BlobManifest.Chunk> chunks = manifest.chunks().iterator();
+    return new SequenceInputStream(new Enumeration<InputStream>() {
+      @Override
+      public boolean hasMoreElements() {
+        return chunks.hasNext();
+      }
+
+      @Override
+      public InputStream nextElement() {
+        try {
+          return backend.get(chunks.next().hash());
+        } catch (IOException ex) {
+          throw new UncheckedIOException(ex);
+        }
+      }
+    });
+  }
+
+  /**
+   * Map a byte range of a blob's stored bytes onto the chunk files that hold
+   * it. For compressed blobs the range is one of the compressed stream.
+   */
+  public List<PhysicalRegion> regions(BlobManifest manifest, long position, long count) throws IOException {
+    List<PhysicalRegion> regions = new ArrayList<>();
+    long chunkStart = 0;
+    long end = position + count;
+    for (BlobManifest.Chunk chunk : manifest.chunks()) {
+      long chunkEnd = chunkStart + chunk.size();
+      if (chunkEnd > position && chunkStart < end) {
+        long from = Math.max(position, chunkStart);
+        long to = Math.min(end, chunkEnd);
+        regions.add(new PhysicalRegion(chunkPath(chunk.hash()), from - chunkStart, to - from));
+      }
+      if (chunkEnd >= end) {
+        break;
+      }
+      chunkStart = chunkEnd;
+    }
+    return regions;
+  }
+
+  public BlobResource loadAsResource(String key) throws IOException {
+    return new BlobResource(this, key, readManifest(key));
+  }
+
+  /**
+   * Drop a manifest and release its chunk references. The manifest goes
+   * first, so an interrupted release can only leak chunks, never free
+   * content another manifest still points at. Only the caller whose delete
+   * removes the manifest releases the chunks, so releasing a blob twice
+   * concurrently frees its chunks once.
+   */
+  public void release(String key) throws IOException {
+    if (!exists(key)) {
+      return;
+    }
+
+    BlobManifest manifest;
+    try {
+      manifest = readManifest(key);
+    } catch (NoSuchFileException ex) {
+      return;
+    }
+    if (!backend.delete(key)) {
+      return;
+    }
+    List<Exception> failures = releaseChunks(manifest.chunks().stream().map(BlobManifest.Chunk::hash).toList());
+    if (!failures.isEmpty()) {
+      IOException failure = new IOException("Could not release " + failures.size() + " chunk(s) of " + key);
+      failures.forEach(failure::addSuppressed);
+      throw failure;
+    }
+  }
+
+  /**
+   * Delete a chunk file that no reference count accounts for, left behind by
+   * a release that was interrupted. Rechecked under the chunk's lock, so a
+   * chunk an upload acquires in the meantime is kept.
+   *
+   * @return true if the chunk was deleted
+   */
+  public boolean releaseOrphanChunk(String hash) throws IOException {
+    synchronized (lockFor(hash)) {
+      Optional<BlobChunk> chunk = chunkRepository.findById(hash);
+      if (chunk.isPresent() && (chunk.get().getRefCount() > 0 || chunkRepository.deleteIfUnreferenced(hash) == 0)) {
+        return false;
+      }
+      return backend.delete(hash);
+    }
+  }
+
+  /**
+   * Output stream that cuts what is written into chunk-sized pieces and
+   * stores each piece as it fills up
+   */
+  private class ChunkSink extends OutputStream {
+    private final byte[] buffer;
+    private final MessageDigest chunkDigest = sha256();
+    private final List<BlobManifest.Chunk> chunks = new ArrayList<>();
+    private int filled;
+
+    ChunkSink(byte[] buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        int n = Math.min(len, buffer.length - filled);
+        System.arraycopy(b, off, buffer, filled, n);
+        filled += n;
+        off += n;
+        len -= n;
+        if (filled == buffer.length) {
+          flushChunk();
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (filled > 0) {
+        flushChunk();
+      }
+    }
+
+    private void flushChunk() throws IOException {
+      chunkDigest.update(buffer, 0, filled);
+      String hash = HexFormat.of().formatHex(chunkDigest.digest());
+      acquireChunk(hash, buffer, filled);
+      chunks.add(new BlobManifest.Chunk(hash, filled));
+      filled = 0;
+    }
+  }
+
+  private void acquireChunk(String hash, byte[] buffer, int length) throws IOException {
+    synchronized (lockFor(hash)) {
+      chunkRepository.acquire(hash, length);
+      try {
+        if (backend.stat(hash).isEmpty()) {
+          backend.put(hash, new ByteArrayInputStream(buffer, 0, length));
+        }
+      } catch (IOException | RuntimeException ex) {
+        releaseChunks(List.of(hash)).forEach(ex::addSuppressed);
+        throw ex;
+      }
+    }
+  }
+
+  /**
+   * Release chunks one by one, carrying on past any that fail, so one
+   * failure does not leave the rest referenced
+   *
+   * @return the failures, in order
+   */
+  private List<Exception> releaseChunks(List<String> hashes) {
+    List<Exception> failures = new ArrayList<>();
+    for (String hash : hashes) {
+      try {
+        releaseChunk(hash);
+      } catch (IOException | RuntimeException ex) {
+        failures.add(ex);
+      }
+    }
+    return failures;
+  }
+
+  private void releaseChunk(String hash) throws IOException {
+    synchronized (lockFor(hash)) {
+      if (chunkRepository.release(hash) > 0 && chunkRepository.deleteIfUnreferenced(hash) > 0) {
+        backend.delete(hash);
+      }
+    }
+  }
+
+  private void writeManifest(String key, BlobManifest manifest) throws IOException {
+    backend.put(key, new ByteArrayInputStream(objectMapper.writeValueAsBytes(manifest)));
+  }
+
+  private Path chunkPath(String hash) throws IOException {
+    return backend.localPath(hash)
+        .orElseThrow(() -> new IOException("Chunk " + hash + " is not available on the local filesystem"));
+  }
+
+  private Object lockFor(String hash) {
+    return locks[Math.floorMod(hash.hashCode(), LOCK_STRIPES)];
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package com.mydrive.demo.storage;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Small pool of equally sized byte buffers so that concurrent uploads reuse
+ * their chunk buffers instead of allocating megabytes per request. When the
+ * pool is empty a fresh buffer is handed out; surplus buffers are dropped on
+ * release.
+ */
+public class BufferPool {
+  private final int bufferSize;
+  private final BlockingQueue<byte[]> buffers;
+
+  public BufferPool(int bufferSize, int maxPooled) {
+    this.bufferSize = bufferSize;
+    this.buffers = new ArrayBlockingQueue<>(maxPooled);
+  }
+
+  public byte[] acquire() {
+    byte[] buffer = buffers.poll();
+    return buffer != null ? buffer : new byte[bufferSize];
+  }
+
+  public void release(byte[] buffer) {
+    if (buffer.length == bufferSize) {
+      buffers.offer(buffer);
+    }
+  }
+
+  public int bufferSize() {
+    return bufferSize;
+  }
+}
@@ -0,0 +1,69 @@
+package com.mydrive.demo.storage;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.InvalidMimeTypeException;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Decides which content is compressed at rest. Text-like types compress
+ * well; media and archives are already compressed and are stored as is.
+ */
+@Component
+public class CompressionPolicy {
+  public static final String GZIP = "gzip";
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final boolean enabled;
+  private final int level;
+  private final List<MimeType> types;
+
+  public CompressionPolicy(
+      @Value("${file.compression.enabled:true}") boolean enabled,
+      @Value("${file.compression.level:6}") int level,
+      @Value("${file.compression.types:text/*,application/json,application/xml,application/javascript}") List<String> types) {
+    this.enabled = enabled;
+    this.level = level;
+    this.types = types.stream().map(String::trim).filter(type -> !type.isEmpty())
+        .map(MimeTypeUtils::parseMimeType).toList();
+  }
+
+  /**
+   * Content encoding to store a given content type with, or null to store it
+   * uncompressed
+   */
+  public String encodingFor(String contentType) {
+    return enabled && isCompressible(contentType) ? GZIP : null;
+  }
+
+  /**
+   * Whether content of a type is worth compressing, whether or not
+   * compression at rest is enabled
+   */
+  public boolean isCompressible(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    try {
+      MimeType mimeType = MimeTypeUtils.parseMimeType(contentType);
+      return types.stream().anyMatch(type -> type.includes(mimeType));
+    } catch (InvalidMimeTypeException ex) {
+      return false;
+    }
+  }
+
+  OutputStream compress(OutputStream out) throws IOException {
+    return new GZIPOutputStream(out, BUFFER_SIZE) {
+      {
+        def.setLevel(level);
+      }
+    };
+  }
+}
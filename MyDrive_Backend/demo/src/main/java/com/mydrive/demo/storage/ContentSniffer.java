@@ -0,0 +1,102 @@
+package com.mydrive.demo.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Content type detection from the leading bytes of a stream
+ */
+public final class ContentSniffer {
+  public static final String OCTET_STREAM = "application/octet-stream";
+
+  /** Number of leading bytes detection looks at */
+  public static final int HEAD_LENGTH = 64;
+
+  private ContentSniffer() {
+  }
+
+  /**
+   * Detect a content type from magic numbers, or null when the bytes are not
+   * recognised
+   */
+  public static String detect(byte[] head, int length) {
+    if (startsWith(head, length, 0, "%PDF-")) {
+      return "application/pdf";
+    }
+    if (startsWith(head, length, 0, 0x50, 0x4B, 0x03, 0x04)) {
+      return "application/zip";
+    }
+    if (startsWith(head, length, 0, 0x1F, 0x8B)) {
+      return "application/gzip";
+    }
+    if (startsWith(head, length, 0, 0x89, 'P', 'N', 'G')) {
+      return "image/png";
+    }
+    if (startsWith(head, length, 0, 0xFF, 0xD8, 0xFF)) {
+      return "image/jpeg";
+    }
+    if (startsWith(head, length, 0, "GIF8")) {
+      return "image/gif";
+    }
+    if (startsWith(head, length, 0, "RIFF") && startsWith(head, length, 8, "WEBP")) {
+      return "image/webp";
+    }
+    if (startsWith(head, length, 4, "ftyp")) {
+      return "video/mp4";
+    }
+    if (startsWith(head, length, 0, "ID3")) {
+      return "audio/mpeg";
+    }
+    if (startsWith(head, length, 0, 0x1A, 0x45, 0xDF, 0xA3)) {
+      return "video/webm";
+    }
+
+    try {
+      return URLConnection.guessContentTypeFromStream(
+          new ByteArrayInputStream(head, 0, Math.min(length, HEAD_LENGTH)));
+    } catch (IOException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Pick the effective content type: recognised magic numbers win, then the
+   * type declared by the client, then a guess from the file name
+   */
+  public static String resolve(String detectedType, String declaredType, String fileName) {
+    if (detectedType != null) {
+      return detectedType;
+    }
+    if (declaredType != null && !declaredType.isBlank() && !OCTET_STREAM.equals(declaredType)) {
+      return declaredType;
+    }
+    String guessed = fileName != null ? URLConnection.guessContentTypeFromName(fileName) : null;
+    return guessed != null ? guessed : OCTET_STREAM;
+  }
+
+  private static boolean startsWith(byte[] head, int length, int offset, String magic) {
+    return startsWith(head, length, offset, magic.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private static boolean startsWith(byte[] head, int length, int offset, int... magic) {
+    byte[] bytes = new byte[magic.length];
+    for (int i = 0; i < magic.length; i++) {
+      bytes[i] = (byte) magic[i];
+    }
+    return startsWith(head, length, offset, bytes);
+  }
+
+  private static boolean startsWith(byte[] head, int length, int offset, byte[] magic) {
+    if (length < offset + magic.length) {
+      return false;
+    }
+    for (int i = 0; i < magic.length; i++) {
+      if (head[offset + i] != magic[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,205 @@
+package com.mydrive.demo.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Storage backend on the local filesystem. Keys are fanned out by their first
+ * four characters ({@code objects/ab/cd/abcd...}) so no directory grows past a
+ * few thousand entries.
+ *
+ * Content written by earlier versions still sits in the flat upload directory
+ * or under {@code chunks/} and {@code manifests/}. Reads fall back to those
+ * locations until {@link #migrateLegacyLayout()} has moved everything into
+ * the sharded layout.
+ */
+@Component
+public class LocalStorageBackend implements StorageBackend {
+  private static final Logger logger = LoggerFactory.getLogger(LocalStorageBackend.class);
+
+  private static final int MIN_KEY_LENGTH = 4;
+
+  private final Path rootLocation;
+  private final Path objectLocation;
+  private final Path legacyChunkLocation;
+  private final Path legacyManifestLocation;
+
+  public LocalStorageBackend(@Value("${file.upload.directory}") String uploadDir) {
+    this.rootLocation = Paths.get(uploadDir).toAbsolutePath().normalize();
+    this.objectLocation = rootLocation.resolve("objects");
+    this.legacyChunkLocation = rootLocation.resolve("chunks");
+    this.legacyManifestLocation = rootLocation.resolve("manifests");
+
+    try {
+      Files.createDirectories(this.objectLocation);
+    } catch (IOException ex) {
+      throw new RuntimeException("Could not create the storage directory", ex);
+    }
+  }
+
+  @Override
+  public void put(String key, InputStream content) throws IOException {
+    Path target = shardedPath(key);
+    Files.createDirectories(target.getParent());
+    Path temp = Files.createTempFile(target.getParent(), ".put-", ".tmp");
+    try {
+      Files.copy(content, temp, StandardCopyOption.REPLACE_EXISTING);
+      Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  @Override
+  public InputStream get(String key) throws IOException {
+    return Files.newInputStream(existingPath(key).orElseThrow(() -> new NoSuchFileException(key)));
+  }
+
+  @Override
+  public boolean delete(String key) throws IOException {
+    // Legacy copies go first: a concurrent migration either moved the file
+    // already, and the sharded delete catches it, or finds it gone
+    boolean deleted = false;
+    for (Path legacy : legacyPaths(key)) {
+      deleted |= Files.deleteIfExists(legacy);
+    }
+    deleted |= Files.deleteIfExists(shardedPath(key));
+    return deleted;
+  }
+
+  @Override
+  public Optional<BlobStat> stat(String key) throws IOException {
+    Optional<Path> path = existingPath(key);
+    if (path.isEmpty()) {
+      return Optional.empty();
+    }
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(path.get(), BasicFileAttributes.class);
+      return Optional.of(new BlobStat(key, attributes.size(), attributes.lastModifiedTime().toInstant()));
+    } catch (NoSuchFileException ex) {
+      return Optional.empty();
+    }
+  }
+
+  @Override
+  public Stream<String> list() throws IOException {
+    Stream<String> sharded = Files.walk(objectLocation, 3)
+        .filter(path -> objectLocation.relativize(path).getNameCount() == 3)
+        .filter(Files::isRegularFile)
+        .map(path -> path.getFileName().toString())
+        .filter(name -> !name.startsWith("."));
+    return Stream.concat(sharded, legacyFiles().stream().map(path -> path.getFileName().toString()));
+  }
+
+  @Override
+  public Optional<Path> localPath(String key) throws IOException {
+    return existingPath(key);
+  }
+
+  /**
+   * Move content stored in the flat or pre-sharding layouts into the sharded
+   * layout. Must run before the application serves traffic: a reader that
+   * resolved a legacy path would otherwise find it gone when it opens it.
+   *
+   * @return number of files moved
+   */
+  public int migrateLegacyLayout() throws IOException {
+    int moved = 0;
+    for (Path legacy : legacyFiles()) {
+      String key = legacy.getFileName().toString();
+      Path target;
+      try {
+        target = shardedPath(key);
+      } catch (IllegalArgumentException ex) {
+        // Not content the application wrote, e.g. .DS_Store or .gitkeep
+        logger.warn("Skipping {}: not a valid storage key", legacy);
+        continue;
+      }
+      try {
+        if (Files.exists(target)) {
+          // Already rewritten in the sharded layout; the legacy copy is stale.
+          // Checked up front because an atomic rename replaces the target on
+          // POSIX instead of failing
+          Files.deleteIfExists(legacy);
+          continue;
+        }
+        Files.createDirectories(target.getParent());
+        Files.move(legacy, target, StandardCopyOption.ATOMIC_MOVE);
+        moved++;
+      } catch (NoSuchFileException ex) {
+        // Deleted while the migration was running
+      } catch (IOException ex) {
+        logger.warn("Could not migrate {} into the sharded layout", legacy, ex);
+      }
+    }
+    return moved;
+  }
+
+  Path shardedPath(String key) {
+    if (key == null || key.length() < MIN_KEY_LENGTH || key.contains("/") || key.contains("\\")
+        || key.startsWith(".")) {
+      throw new IllegalArgumentException("Invalid storage key: " + key);
+    }
+    String prefix = key.toLowerCase(Locale.ROOT);
+    return objectLocation.resolve(prefix.substring(0, 2)).resolve(prefix.substring(2, 4)).resolve(key);
+  }
+
+  private Optional<Path> existingPath(String key) {
+    Path sharded = shardedPath(key);
+    if (Files.exists(sharded)) {
+      return Optional.of(sharded);
+    }
+    for (Path legacy : legacyPaths(key)) {
+      if (Files.exists(legacy)) {
+        return Optional.of(legacy);
+      }
+    }
+    // The migration may have moved the file between the two checks
+    return Files.exists(sharded) ? Optional.of(sharded) : Optional.empty();
+  }
+
+  private List<Path> legacyPaths(String key) {
+    return List.of(
+        rootLocation.resolve(key),
+        legacyChunkLocation.resolve(key.substring(0, 2)).resolve(key),
+        legacyManifestLocation.resolve(key));
+  }
+
+  private List<Path> legacyFiles() throws IOException {
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(rootLocation, Files::isRegularFile)) {
+      entries.forEach(files::add);
+    }
+    if (Files.isDirectory(legacyChunkLocation)) {
+      try (Stream<Path> chunks = Files.walk(legacyChunkLocation, 2)) {
+        chunks.filter(Files::isRegularFile)
+            .filter(path -> !path.getFileName().toString().endsWith(".tmp"))
+            .forEach(files::add);
+      }
+    }
+    if (Files.isDirectory(legacyManifestLocation)) {
+      try (DirectoryStream<Path> manifests = Files.newDirectoryStream(legacyManifestLocation,
+          path -> !path.getFileName().toString().endsWith(".tmp"))) {
+        manifests.forEach(files::add);
+      }
+    }
+    return files;
+  }
+}
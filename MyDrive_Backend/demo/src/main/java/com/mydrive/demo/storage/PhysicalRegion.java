@@ -0,0 +1,31 @@
+package com.mydrive.demo.storage;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Byte range of one file on disk that backs part of a stored blob
+ */
+public record PhysicalRegion(Path path, long start, long length) {
+  /**
+   * Copy this region to a channel with FileChannel.transferTo, letting the
+   * kernel move the bytes where the target allows it
+   */
+  public void transferTo(WritableByteChannel target) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long position = start;
+      long remaining = length;
+      while (remaining > 0) {
+        long transferred = channel.transferTo(position, remaining, target);
+        if (transferred <= 0) {
+          throw new IOException("Unexpected end of " + path);
+        }
+        position += transferred;
+        remaining -= transferred;
+      }
+    }
+  }
+}
@@ -0,0 +1,38 @@
+package com.mydrive.demo.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Key/value storage for blob content. Keys are opaque names such as chunk
+ * hashes, manifest names or the UUID names of files stored before the blob
+ * store existed.
+ */
+public interface StorageBackend {
+  /**
+   * Store content under a key, replacing any previous content atomically
+   */
+  void put(String key, InputStream content) throws IOException;
+
+  InputStream get(String key) throws IOException;
+
+  /**
+   * @return true if something was deleted
+   */
+  boolean delete(String key) throws IOException;
+
+  Optional<BlobStat> stat(String key) throws IOException;
+
+  /**
+   * All stored keys; the stream must be closed by the caller
+   */
+  Stream<String> list() throws IOException;
+
+  /**
+   * Path of the content on the local filesystem, for backends that have one
+   */
+  Optional<Path> localPath(String key) throws IOException;
+}
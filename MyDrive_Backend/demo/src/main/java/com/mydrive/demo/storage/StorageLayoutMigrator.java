@@ -0,0 +1,47 @@
+package com.mydrive.demo.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+
+/**
+ * Moves content left in the flat upload directory into the sharded layout.
+ * Runs once per start, after the beans are created and before the web server
+ * accepts requests, so no download can resolve a path that is moved under it.
+ */
+@Component
+public class StorageLayoutMigrator implements SmartInitializingSingleton {
+  private static final Logger logger = LoggerFactory.getLogger(StorageLayoutMigrator.class);
+
+  private final LocalStorageBackend backend;
+  private final boolean enabled;
+
+  public StorageLayoutMigrator(
+      LocalStorageBackend backend,
+      @Value("${file.storage.migrate-layout:true}") boolean enabled) {
+    this.backend = backend;
+    this.enabled = enabled;
+  }
+
+  @Override
+  public void afterSingletonsInstantiated() {
+    if (!enabled) {
+      return;
+    }
+
+    try {
+      long started = System.currentTimeMillis();
+      int moved = backend.migrateLegacyLayout();
+      if (moved > 0) {
+        logger.info("Moved {} stored files into the sharded layout in {} ms",
+            moved, System.currentTimeMillis() - started);
+      }
+    } catch (IOException | RuntimeException ex) {
+      logger.warn("Storage layout migration stopped", ex);
+    }
+  }
+}
@@ -0,0 +1,10 @@
+package com.mydrive.demo.storage;
+
+/**
+ * Result of writing a stream into the blob store. The detected type comes
+ * from the leading bytes and is null when they were not recognised; the
+ * encoding is null when the content is stored uncompressed.
+ */
+public record StoredBlob(String key, long size, long storedSize, String sha256, String detectedType,
+    String encoding) {
+}
@@ -0,0 +1,305 @@
+package com.mydrive.demo.controller;
+
+import com.mydrive.demo.config.ContentBodyHttpMessageConverter;
+import com.mydrive.demo.entity.File;
+import com.mydrive.demo.service.FileService;
+import com.mydrive.demo.storage.PhysicalRegion;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.http.MockHttpOutputMessage;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DownloadResponsesTest {
+  private static final String CONTENT = "0123456789abcdefghij";
+  private static final LocalDateTime CREATED_AT = LocalDateTime.of(2024, 5, 1, 12, 0, 0);
+
+  @TempDir
+  Path storage;
+
+  private final DownloadResponses downloadResponses = new DownloadResponses();
+  private File plain;
+  private File compressed;
+  private long compressedSize;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    Files.writeString(storage.resolve("plain"), CONTENT);
+    ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+      out.write(CONTENT.getBytes(StandardCharsets.US_ASCII));
+    }
+    Files.write(storage.resolve("compressed"), gzipped.toByteArray());
+    compressedSize = gzipped.size();
+
+    plain = file("plain", null, (long) CONTENT.length());
+    compressed = file("compressed", "gzip", compressedSize);
+    ReflectionTestUtils.setField(downloadResponses, "fileService", new StubFileService());
+  }
+
+  @Test
+  void servesTheWholeFileWithoutARange() throws IOException {
+    ResponseEntity<?> response = download(plain, request());
+
+    assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(response.getHeaders().getContentLength()).isEqualTo(20);
+    assertThat(response.getHeaders().getFirst(HttpHeaders.ACCEPT_RANGES)).isEqualTo("bytes");
+    assertThat(body(response)).isEqualTo(CONTENT);
+  }
+
+  @Test
+  void servesASingleRange() throws IOException {
+    ResponseEntity<?> response = download(plain, request("bytes=5-9"));
+
+    assertThat(response.getStatusCode()).isEqualTo(HttpStatus.PARTIAL_CONTENT);
+    assertThat(response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes 5-9/20");
+    assertThat(response.getHeaders().getContentLength()).isEqualTo(5);
+    assertThat(body(response)).isEqualTo("56789");
+  }
+
+  @Test
+  void servesSuffixAndOpenEndedRanges() throws IOException {
+    assertThat(body(download(plain, request("bytes=-3")))).isEqualTo("hij");
+    assertThat(body(download(plain, request("bytes=15-")))).isEqualTo("fghij");
+
+    ResponseEntity<?> clipped = download(plain, request("bytes=18-100"));
+    assertThat(clipped.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes 18-19/20");
+    assertThat(body(clipped)).isEqualTo("ij");
+  }
+
+  @Test
+  void answersUnsatisfiableRangesWith416() throws IOException {
+    for (String range : List.of("bytes=20-30", "bytes=25-", "bytes=9-5", "bytes=abc")) {
+      ResponseEntity<?> response = download(plain, request(range));
+
+      assertThat(response.getStatusCode()).as(range).isEqualTo(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+      assertThat(response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE)).as(range).isEqualTo("bytes */20");
+    }
+  }
+
+  @Test
+  void dropsTheUnsatisfiableRangesOfAMultiRangeRequest() throws IOException {
+    ResponseEntity<?> response = download(plain, request("bytes=30-40,2-4"));
+
+    assertThat(response.getStatusCode()).isEqualTo(HttpStatus.PARTIAL_CONTENT);
+    assertThat(response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes 2-4/20");
+    assertThat(body(response)).isEqualTo("234");
+  }
+
+  @Test
+  void servesSeveralRangesAsMultipartByteranges() throws IOException {
+    ResponseEntity<?> response = download(plain, request("bytes=0-1,10-12"));
+
+    assertThat(response.getStatusCode()).isEqualTo(HttpStatus.PARTIAL_CONTENT);
+    MediaType type = response.getHeaders().getContentType();
+    assertThat(type.toString()).startsWith("multipart/byteranges");
+    String boundary = type.getParameter("boundary");
+    String body = body(response);
+    assertThat(body).isEqualTo("\r\n--" + boundary + "\r\n"
+        + "Content-Type: text/plain\r\nContent-Range: bytes 0-1/20\r\n\r\n01"
+        + "\r\n--" + boundary + "\r\n"
+        + "Content-Type: text/plain\r\nContent-Range: bytes 10-12/20\r\n\r\nabc"
+        + "\r\n--" + boundary + "--\r\n");
+    assertThat(response.getHeaders().getContentLength()).isEqualTo(body.length());
+  }
+
+  @Test
+  void honoursRangesOnlyForTheRepresentationIfRangeNames() throws IOException {
+    assertThat(download(plain, request("bytes=0-1", HttpHeaders.IF_RANGE, "\"digest\"")).getStatusCode())
+        .isEqualTo(HttpStatus.PARTIAL_CONTENT);
+    assertThat(download(plain, request("bytes=0-1", HttpHeaders.IF_RANGE, "\"other\"")).getStatusCode())
+        .isEqualTo(HttpStatus.OK);
+    assertThat(download(plain, request("bytes=0-1", HttpHeaders.IF_RANGE, "W/\"digest\"")).getStatusCode())
+        .isEqualTo(HttpStatus.OK);
+
+    MockHttpServletRequest current = request("bytes=0-1");
+    current.addHeader(HttpHeaders.IF_RANGE, epochMillis(CREATED_AT));
+    assertThat(download(plain, current).getStatusCode()).isEqualTo(HttpStatus.PARTIAL_CONTENT);
+
+    MockHttpServletRequest older = request("bytes=0-1");
+    older.addHeader(HttpHeaders.IF_RANGE, epochMillis(CREATED_AT.minusDays(1)));
+    ResponseEntity<?> full = download(plain, older);
+    assertThat(full.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(body(full)).isEqualTo(CONTENT);
+  }
+
+  @Test
+  void decodesRangesOfCompressedContent() throws IOException {
+    MockHttpServletRequest request = request("bytes=10-14", HttpHeaders.ACCEPT_ENCODING, "gzip");
+
+    ResponseEntity<?> response = download(compressed, request);
+
+    assertThat(response.getStatusCode()).isEqualTo(HttpStatus.PARTIAL_CONTENT);
+    assertThat(response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING)).isNull();
+    assertThat(response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes 10-14/20");
+    assertThat(body(response)).isEqualTo("abcde");
+  }
+
+  @Test
+  void handsASingleRegionToSendfile() throws IOException {
+    MockHttpServletRequest request = request("bytes=4-7");
+    request.setAttribute("org.apache.tomcat.sendfile.support", true);
+
+    ResponseEntity<?> response = download(plain, request);
+
+    assertThat(response.getStatusCode()).isEqualTo(HttpStatus.PARTIAL_CONTENT);
+    assertThat(response.getBody()).isNull();
+    assertThat(request.getAttribute("org.apache.tomcat.sendfile.filename"))
+        .isEqualTo(storage.resolve("plain").toAbsolutePath().toString());
+    assertThat(request.getAttribute("org.apache.tomcat.sendfile.start")).isEqualTo(4L);
+    assertThat(request.getAttribute("org.apache.tomcat.sendfile.end")).isEqualTo(8L);
+  }
+
+  @Test
+  void sendsTheDigestAsETagAndTheCreationAsLastModified() throws IOException {
+    ResponseEntity<?> response = download(plain, request());
+
+    assertThat(response.getHeaders().getETag()).isEqualTo("\"digest\"");
+    assertThat(response.getHeaders().getLastModified()).isEqualTo(epochMillis(CREATED_AT));
+    assertThat(response.getHeaders().getVary()).isEmpty();
+  }
+
+  @Test
+  void answersAMatchingIfNoneMatchWith304() throws IOException {
+    for (String tags : List.of("\"digest\"", "\"other\", \"digest\"", "W/\"digest\"", "*")) {
+      ResponseEntity<?> response = download(plain, request(null, HttpHeaders.IF_NONE_MATCH, tags));
+
+      assertThat(response.getStatusCode()).as(tags).isEqualTo(HttpStatus.NOT_MODIFIED);
+      assertThat(response.getHeaders().getETag()).as(tags).isEqualTo("\"digest\"");
+      assertThat(response.getBody()).as(tags).isNull();
+    }
+
+    ResponseEntity<?> changed = download(plain, request(null, HttpHeaders.IF_NONE_MATCH, "\"other\""));
+    assertThat(changed.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(body(changed)).isEqualTo(CONTENT);
+  }
+
+  @Test
+  void answersIfModifiedSinceWith304OnlyWithoutIfNoneMatch() throws IOException {
+    MockHttpServletRequest current = request();
+    current.addHeader(HttpHeaders.IF_MODIFIED_SINCE, epochMillis(CREATED_AT));
+    assertThat(download(plain, current).getStatusCode()).isEqualTo(HttpStatus.NOT_MODIFIED);
+
+    MockHttpServletRequest stale = request();
+    stale.addHeader(HttpHeaders.IF_MODIFIED_SINCE, epochMillis(CREATED_AT.minusDays(1)));
+    assertThat(download(plain, stale).getStatusCode()).isEqualTo(HttpStatus.OK);
+
+    MockHttpServletRequest changed = request(null, HttpHeaders.IF_NONE_MATCH, "\"other\"");
+    changed.addHeader(HttpHeaders.IF_MODIFIED_SINCE, epochMillis(CREATED_AT));
+    assertThat(download(plain, changed).getStatusCode()).isEqualTo(HttpStatus.OK);
+  }
+
+  @Test
+  void tagsCompressedContentSentAsStoredWithItsEncoding() throws IOException {
+    ResponseEntity<?> response = download(compressed, request(null, HttpHeaders.ACCEPT_ENCODING, "gzip"));
+
+    assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(response.getHeaders().getETag()).isEqualTo("\"digest-gzip\"");
+    assertThat(response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING)).isEqualTo("gzip");
+    assertThat(response.getHeaders().getVary()).containsExactly(HttpHeaders.ACCEPT_ENCODING);
+    assertThat(response.getHeaders().getContentLength()).isEqualTo(compressedSize);
+
+    // The decoded representation has a tag of its own
+    MockHttpServletRequest decoded = request(null, HttpHeaders.IF_NONE_MATCH, "\"digest-gzip\"");
+    ResponseEntity<?> identity = download(compressed, decoded);
+    assertThat(identity.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(identity.getHeaders().getETag()).isEqualTo("\"digest\"");
+    assertThat(identity.getHeaders().getVary()).containsExactly(HttpHeaders.ACCEPT_ENCODING);
+    assertThat(body(identity)).isEqualTo(CONTENT);
+  }
+
+  @Test
+  void sendsNoETagWithoutADigest() throws IOException {
+    plain.setContentDigest(null);
+
+    ResponseEntity<?> response = download(plain, request(null, HttpHeaders.IF_NONE_MATCH, "\"digest\""));
+
+    assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(response.getHeaders().getETag()).isNull();
+  }
+
+  private ResponseEntity<?> download(File file, MockHttpServletRequest request) throws IOException {
+    return downloadResponses.download(file, request);
+  }
+
+  private static MockHttpServletRequest request(String... rangeAndHeaders) {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/files/1/download");
+    if (rangeAndHeaders.length > 0 && rangeAndHeaders[0] != null) {
+      request.addHeader(HttpHeaders.RANGE, rangeAndHeaders[0]);
+    }
+    for (int i = 1; i + 1 < rangeAndHeaders.length; i += 2) {
+      request.addHeader(rangeAndHeaders[i], rangeAndHeaders[i + 1]);
+    }
+    return request;
+  }
+
+  private static String body(ResponseEntity<?> response) throws IOException {
+    return new String(bytes(response), StandardCharsets.ISO_8859_1);
+  }
+
+  private static byte[] bytes(ResponseEntity<?> response) throws IOException {
+    MockHttpOutputMessage output = new MockHttpOutputMessage();
+    MediaType type = response.getHeaders().getContentType();
+    new ContentBodyHttpMessageConverter().write((ContentBody) response.getBody(), type, output);
+    return output.getBodyAsBytes();
+  }
+
+  private static long epochMillis(LocalDateTime time) {
+    return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+  }
+
+  private File file(String path, String encoding, long storedSize) {
+    File file = new File();
+    file.setId(1);
+    file.setName(path + ".txt");
+    file.setType("text/plain");
+    file.setSize((long) CONTENT.length());
+    file.setStoredSize(storedSize);
+    file.setContentEncoding(encoding);
+    file.setContentDigest("digest");
+    file.setPath(path);
+    file.setCreatedAt(CREATED_AT);
+    return file;
+  }
+
+  /**
+   * Serves regions of the files in the temporary storage directory, and
+   * their original content decoded from memory
+   */
+  private final class StubFileService extends FileService {
+    private StubFileService() {
+      super(null, null, null, null, null, null, null, null, null, null);
+    }
+
+    @Override
+    public List<PhysicalRegion> contentRegions(File file, long position, long count) {
+      return count == 0 ? List.of() : List.of(new PhysicalRegion(storage.resolve(file.getPath()), position, count));
+    }
+
+    @Override
+    public InputStream openContent(File file, long position, long count) {
+      byte[] content = CONTENT.getBytes(StandardCharsets.US_ASCII);
+      return new ByteArrayInputStream(Arrays.copyOfRange(content, (int) position, (int) (position + count)));
+    }
+  }
+}
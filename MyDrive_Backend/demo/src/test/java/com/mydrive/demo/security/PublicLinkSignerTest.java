@@ -0,0 +1,96 @@
+package com.mydrive.demo.security;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mydrive.demo.entity.SharedItem;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PublicLinkSignerTest {
+  private static final String STORAGE_KEY = "0f3c9a2e-5b1d-4c8e-9a7f-2d6b4e1c8a90.manifest";
+
+  private final PublicLinkSigner signer = new PublicLinkSigner(new ObjectMapper(), "test-secret");
+
+  @Test
+  void verifiesWhatItSigned() {
+    PublicLink link = fileLink("report.pdf", expiresIn(3600));
+
+    assertThat(signer.verify(signer.sign(link))).contains(link);
+  }
+
+  @Test
+  void doesNotRevealTheLinkInTheToken() {
+    byte[] token = Base64.getUrlDecoder().decode(signer.sign(fileLink("report.pdf", expiresIn(3600))));
+
+    String decoded = new String(token, StandardCharsets.ISO_8859_1);
+    assertThat(decoded).doesNotContain(STORAGE_KEY).doesNotContain("report.pdf").doesNotContain("ownerId");
+  }
+
+  @Test
+  void rejectsTamperedTokens() {
+    String token = signer.sign(fileLink("report.pdf", expiresIn(3600)));
+    byte[] bytes = Base64.getUrlDecoder().decode(token);
+
+    for (int i = 0; i < bytes.length; i++) {
+      byte[] tampered = bytes.clone();
+      tampered[i] ^= 0x01;
+      assertThat(signer.verify(Base64.getUrlEncoder().withoutPadding().encodeToString(tampered)))
+          .as("bit flipped in byte %d", i)
+          .isEmpty();
+    }
+  }
+
+  @Test
+  void rejectsTruncatedAndMalformedTokens() {
+    String token = signer.sign(fileLink("report.pdf", expiresIn(3600)));
+
+    assertThat(signer.verify(token.substring(0, token.length() - 4))).isEmpty();
+    assertThat(signer.verify(token.substring(0, 10))).isEmpty();
+    assertThat(signer.verify("")).isEmpty();
+    assertThat(signer.verify("not*base64")).isEmpty();
+    assertThat(signer.verify(token + ".signature")).isEmpty();
+  }
+
+  @Test
+  void rejectsExpiredTokens() {
+    assertThat(signer.verify(signer.sign(fileLink("report.pdf", expiresIn(-1))))).isEmpty();
+    assertThat(signer.verify(signer.sign(fileLink("report.pdf", expiresIn(0))))).isEmpty();
+  }
+
+  @Test
+  void rejectsTokensOfAnotherSecret() {
+    PublicLinkSigner other = new PublicLinkSigner(new ObjectMapper(), "other-secret");
+
+    assertThat(signer.verify(other.sign(fileLink("report.pdf", expiresIn(3600))))).isEmpty();
+  }
+
+  @Test
+  void rejectsNonCanonicalBase64() {
+    // A token whose length leaves unused bits in its last character
+    String token = signer.sign(fileLink("report.pdf", expiresIn(3600)));
+    for (String name = "a"; token.length() % 4 == 0; name += "a") {
+      token = signer.sign(fileLink(name, expiresIn(3600)));
+    }
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+    char last = token.charAt(token.length() - 1);
+    String sameBytes = token.substring(0, token.length() - 1) + alphabet.charAt(alphabet.indexOf(last) ^ 1);
+
+    assertThat(Base64.getUrlDecoder().decode(sameBytes)).isEqualTo(Base64.getUrlDecoder().decode(token));
+    assertThat(signer.verify(sameBytes)).isEmpty();
+    assertThat(signer.verify(token + "=".repeat(4 - token.length() % 4))).isEmpty();
+    assertThat(signer.verify(token)).isPresent();
+  }
+
+  private static PublicLink fileLink(String name, long expiresAt) {
+    return new PublicLink(SharedItem.ItemType.file, 42, 7, name, "application/pdf", 1024L, 1024L, null,
+        STORAGE_KEY, expiresAt);
+  }
+
+  private static long expiresIn(long seconds) {
+    return Instant.now().getEpochSecond() + seconds;
+  }
+}
@@ -0,0 +1,255 @@
+package com.mydrive.demo.service;
+
+import com.mydrive.demo.entity.File;
+import com.mydrive.demo.entity.User;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class FileListingTest {
+  private static final User OWNER = new User();
+
+  @Test
+  void pagesThroughNamesAscending() {
+    assertEveryCursorContinuesInOrder("name", "asc");
+  }
+
+  @Test
+  void pagesThroughNamesDescending() {
+    assertEveryCursorContinuesInOrder("name", "desc");
+  }
+
+  @Test
+  void pagesThroughSizesWithNullsAscending() {
+    assertEveryCursorContinuesInOrder("size", "asc");
+  }
+
+  @Test
+  void pagesThroughSizesWithNullsDescending() {
+    assertEveryCursorContinuesInOrder("size", "desc");
+  }
+
+  @Test
+  void pagesThroughCreationTimes() {
+    assertEveryCursorContinuesInOrder("createdAt", "asc");
+    assertEveryCursorContinuesInOrder("createdAt", "desc");
+  }
+
+  @Test
+  void pagesThroughTypesWithNulls() {
+    assertEveryCursorContinuesInOrder("type", "asc");
+    assertEveryCursorContinuesInOrder("type", "desc");
+  }
+
+  @Test
+  void cursorRoundTripsValuesWithSeparators() {
+    File file = file(7, "line\none", 1L, null, "text/plain");
+    FileListing listing = FileListing.of("name", null, null, null, null, null);
+
+    FileListing next = FileListing.of("name", null, null, listing.cursorAfter(file), null, null);
+
+    assertThat(next.after()).isEqualTo(new FileListing.Cursor("line\none", 7));
+  }
+
+  @Test
+  void cursorKeepsNullValues() {
+    File file = file(3, "a", null, null, null);
+    FileListing listing = FileListing.of("size", null, null, null, null, null);
+
+    FileListing next = FileListing.of("size", null, null, listing.cursorAfter(file), null, null);
+
+    assertThat(next.after()).isEqualTo(new FileListing.Cursor(null, 3));
+  }
+
+  @Test
+  void rejectsMalformedCursors() {
+    assertInvalidCursor("name", "not base64!");
+    assertInvalidCursor("name", "");
+    assertInvalidCursor("name", encode("name"));
+    assertInvalidCursor("name", encode("name\n1abc"));
+    assertInvalidCursor("name", encode("name\n1abc\nx"));
+    assertInvalidCursor("name", encode("name\n2abc\n1"));
+    assertInvalidCursor("name", encode("name\n0abc\n1"));
+    assertInvalidCursor("size", encode("size\n1ten\n1"));
+    assertInvalidCursor("createdAt", encode("createdAt\n1yesterday\n1"));
+  }
+
+  @Test
+  void rejectsCursorOfAnotherSortKey() {
+    File file = file(1, "a", 10L, null, "text/plain");
+    String nameCursor = FileListing.of("name", null, null, null, null, null).cursorAfter(file);
+
+    assertInvalidCursor("type", nameCursor);
+    assertInvalidCursor("size", nameCursor);
+  }
+
+  @Test
+  void rejectsInvalidParameters() {
+    assertThatThrownBy(() -> FileListing.of("owner", null, null, null, null, null))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> FileListing.of(null, "up", null, null, null, null))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> FileListing.of(null, null, 0, null, null, null))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> FileListing.of(null, null, FileListing.MAX_LIMIT + 1, null, null, null))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  /**
+   * For every row of a listing sorted the way MySQL sorts it, the cursor
+   * after that row must select exactly the rows that follow it
+   */
+  private static void assertEveryCursorContinuesInOrder(String sort, String order) {
+    List<File> files = List.of(
+        file(1, "b", 20L, LocalDateTime.of(2024, 1, 2, 0, 0), "text/plain"),
+        file(2, "a", null, LocalDateTime.of(2024, 1, 1, 0, 0), null),
+        file(3, "b", 10L, LocalDateTime.of(2024, 1, 2, 0, 0), "image/png"),
+        file(4, "c", null, LocalDateTime.of(2024, 1, 3, 0, 0), "text/plain"),
+        file(5, "a", 20L, LocalDateTime.of(2024, 1, 1, 0, 0), null),
+        file(6, "d", 5L, LocalDateTime.of(2024, 1, 4, 0, 0), "image/png"));
+    FileListing first = FileListing.of(sort, order, null, null, null, null);
+    List<File> sorted = new ArrayList<>(files);
+    sorted.sort(mysqlOrder(sort, first.descending()));
+
+    for (int i = 0; i < sorted.size(); i++) {
+      FileListing page = FileListing.of(sort, order, null, first.cursorAfter(sorted.get(i)), null, null);
+      List<File> selected = new ArrayList<>(sorted);
+      selected.removeIf(file -> !matches(page, file));
+      assertThat(selected).as("%s %s after #%d", sort, order, i).isEqualTo(sorted.subList(i + 1, sorted.size()));
+    }
+  }
+
+  /**
+   * Nulls first ascending and last descending, ties broken by id in the same
+   * direction
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static Comparator<File> mysqlOrder(String sort, boolean descending) {
+    Comparator<File> byKey = Comparator.comparing(file -> (Comparable) field(file, sort),
+        Comparator.nullsFirst(Comparator.naturalOrder()));
+    Comparator<File> ascending = byKey.thenComparing(File::getId);
+    return descending ? ascending.reversed() : ascending;
+  }
+
+  private static boolean matches(FileListing listing, File file) {
+    Root<File> root = proxy(Root.class, (method, args) -> expression(row -> field(row, (String) args[0])));
+    CriteriaBuilder cb = proxy(CriteriaBuilder.class, FileListingTest::evaluate);
+    Predicate predicate = listing.toSpecification(OWNER, null).toPredicate(root, null, cb);
+    return Boolean.TRUE.equals(((Expression) Proxy.getInvocationHandler(predicate)).eval.apply(file));
+  }
+
+  /**
+   * The CriteriaBuilder calls a listing makes, evaluated against one row. A
+   * comparison with null is unknown, which a WHERE clause treats as false.
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static Object evaluate(Method method, Object[] args) {
+    Function<File, Object> left = args.length > 0 && Proxy.isProxyClass(args[0].getClass())
+        ? ((Expression) Proxy.getInvocationHandler(args[0])).eval
+        : null;
+    return switch (method.getName()) {
+      case "isNull" -> predicate(row -> left.apply(row) == null);
+      case "isNotNull" -> predicate(row -> left.apply(row) != null);
+      case "equal" -> predicate(row -> left.apply(row) != null && left.apply(row).equals(args[1]));
+      case "lessThan" -> predicate(row -> left.apply(row) != null
+          && ((Comparable) left.apply(row)).compareTo(args[1]) < 0);
+      case "greaterThan" -> predicate(row -> left.apply(row) != null
+          && ((Comparable) left.apply(row)).compareTo(args[1]) > 0);
+      case "and" -> predicate(row -> all(operands(args), row, true));
+      case "or" -> predicate(row -> !all(operands(args), row, false));
+      default -> throw new UnsupportedOperationException(method.getName());
+    };
+  }
+
+  /**
+   * Operands of and() or or(), which have two-argument overloads besides the
+   * varargs ones
+   */
+  private static Predicate[] operands(Object[] args) {
+    return args[0] instanceof Predicate[] array ? array : Arrays.copyOf(args, args.length, Predicate[].class);
+  }
+
+  /**
+   * Whether every predicate evaluates to the given value
+   */
+  private static boolean all(Predicate[] predicates, File row, boolean value) {
+    for (Predicate predicate : predicates) {
+      if (Boolean.TRUE.equals(((Expression) Proxy.getInvocationHandler(predicate)).eval.apply(row)) != value) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Object field(File file, String name) {
+    return switch (name) {
+      case "id" -> file.getId();
+      case "owner" -> file.getOwner();
+      case "name" -> file.getName();
+      case "size" -> file.getSize();
+      case "createdAt" -> file.getCreatedAt();
+      case "type" -> file.getType();
+      default -> throw new IllegalArgumentException(name);
+    };
+  }
+
+  private record Expression(Function<File, Object> eval) implements InvocationHandler {
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      throw new UnsupportedOperationException(method.getName());
+    }
+  }
+
+  private static Object expression(Function<File, Object> eval) {
+    return Proxy.newProxyInstance(FileListingTest.class.getClassLoader(),
+        new Class<?>[] { jakarta.persistence.criteria.Path.class }, new Expression(eval));
+  }
+
+  private static Predicate predicate(Function<File, Object> eval) {
+    return (Predicate) Proxy.newProxyInstance(FileListingTest.class.getClassLoader(),
+        new Class<?>[] { Predicate.class }, new Expression(eval));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(Class<?> type, java.util.function.BiFunction<Method, Object[], Object> handler) {
+    return (T) Proxy.newProxyInstance(FileListingTest.class.getClassLoader(), new Class<?>[] { type },
+        (proxy, method, args) -> handler.apply(method, args == null ? new Object[0] : args));
+  }
+
+  private static File file(Integer id, String name, Long size, LocalDateTime createdAt, String type) {
+    File file = new File();
+    file.setId(id);
+    file.setOwner(OWNER);
+    file.setName(name);
+    file.setSize(size);
+    file.setCreatedAt(createdAt);
+    file.setType(type);
+    return file;
+  }
+
+  private static String encode(String cursor) {
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static void assertInvalidCursor(String sort, String cursor) {
+    assertThatThrownBy(() -> FileListing.of(sort, null, null, cursor, null, null))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("Invalid cursor");
+  }
+}
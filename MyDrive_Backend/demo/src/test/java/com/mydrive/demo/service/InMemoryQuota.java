@@ -0,0 +1,100 @@
+package com.mydrive.demo.service;
+
+import com.mydrive.demo.repository.UserRepository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+
+import java.lang.reflect.Proxy;
+
+/**
+ * Storage quota of a single user kept in memory, behind the UserRepository
+ * statements QuotaService issues. Transactions of the accompanying manager
+ * roll those statements back, so commit and rollback behave as they do
+ * against the database.
+ */
+class InMemoryQuota {
+  static final Integer USER_ID = 1;
+
+  private final long limit;
+  private long used;
+  private long reserved;
+
+  InMemoryQuota(long limit, long used) {
+    this.limit = limit;
+    this.used = used;
+  }
+
+  synchronized long used() {
+    return used;
+  }
+
+  synchronized long reserved() {
+    return reserved;
+  }
+
+  QuotaService quotaService() {
+    return new QuotaService(userRepository(), transactionManager());
+  }
+
+  UserRepository userRepository() {
+    return (UserRepository) Proxy.newProxyInstance(InMemoryQuota.class.getClassLoader(),
+        new Class<?>[] { UserRepository.class }, (proxy, method, args) -> {
+          synchronized (this) {
+            long bytes = args != null && args.length > 1 ? (Long) args[1] : 0;
+            switch (method.getName()) {
+              case "reserveStorage" -> {
+                if (used + reserved + bytes > limit) {
+                  return 0;
+                }
+                reserved += bytes;
+              }
+              case "commitStorage" -> {
+                reserved -= bytes;
+                used += (Long) args[2];
+              }
+              case "releaseStorage" -> reserved -= bytes;
+              case "holdStorage" -> reserved += bytes;
+              case "addStorageUsed" -> used += bytes;
+              case "clearStorageReservations" -> {
+                int cleared = reserved != 0 ? 1 : 0;
+                reserved = 0;
+                return cleared;
+              }
+              default -> throw new UnsupportedOperationException(method.getName());
+            }
+            return 1;
+          }
+        });
+  }
+
+  PlatformTransactionManager transactionManager() {
+    return new AbstractPlatformTransactionManager() {
+      @Override
+      protected Object doGetTransaction() {
+        return new long[2];
+      }
+
+      @Override
+      protected void doBegin(Object transaction, TransactionDefinition definition) {
+        synchronized (InMemoryQuota.this) {
+          ((long[]) transaction)[0] = used;
+          ((long[]) transaction)[1] = reserved;
+        }
+      }
+
+      @Override
+      protected void doCommit(DefaultTransactionStatus status) {
+      }
+
+      @Override
+      protected void doRollback(DefaultTransactionStatus status) {
+        synchronized (InMemoryQuota.this) {
+          used = ((long[]) status.getTransaction())[0];
+          reserved = ((long[]) status.getTransaction())[1];
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,102 @@
+package com.mydrive.demo.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class QuotaServiceTest {
+  private final InMemoryQuota quota = new InMemoryQuota(100, 40);
+  private final QuotaService quotaService = quota.quotaService();
+  private final TransactionTemplate transactionTemplate = new TransactionTemplate(quota.transactionManager());
+
+  @Test
+  void reservesOnlyWhatFitsNextToUsedAndReservedBytes() {
+    quotaService.reserve(InMemoryQuota.USER_ID, 35);
+    quotaService.reserve(InMemoryQuota.USER_ID, 25);
+
+    assertThatThrownBy(() -> quotaService.reserve(InMemoryQuota.USER_ID, 1))
+        .hasMessage("Not enough storage space");
+    assertThat(quota.reserved()).isEqualTo(60);
+    assertThat(quota.used()).isEqualTo(40);
+  }
+
+  @Test
+  void rejectsNegativeReservations() {
+    assertThatThrownBy(() -> quotaService.reserve(InMemoryQuota.USER_ID, -1))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  void commitChargesUsedBytesAndReturnsTheRest() {
+    QuotaService.Reservation reservation = quotaService.reserve(InMemoryQuota.USER_ID, 50);
+
+    transactionTemplate.executeWithoutResult(status -> quotaService.commit(reservation, 30));
+    quotaService.release(reservation);
+
+    assertThat(quota.used()).isEqualTo(70);
+    assertThat(quota.reserved()).isZero();
+  }
+
+  @Test
+  void rollbackOfTheCommitReleasesTheReservation() {
+    QuotaService.Reservation reservation = quotaService.reserve(InMemoryQuota.USER_ID, 50);
+
+    transactionTemplate.executeWithoutResult(status -> {
+      quotaService.commit(reservation, 30);
+      status.setRollbackOnly();
+    });
+    // Already settled by the rollback
+    quotaService.release(reservation);
+
+    assertThat(quota.used()).isEqualTo(40);
+    assertThat(quota.reserved()).isZero();
+  }
+
+  @Test
+  void refusesToCommitMoreThanWasReserved() {
+    QuotaService.Reservation reservation = quotaService.reserve(InMemoryQuota.USER_ID, 50);
+
+    assertThatThrownBy(() -> transactionTemplate.executeWithoutResult(status -> quotaService.commit(reservation, 51)))
+        .hasMessage("Not enough storage space");
+    quotaService.release(reservation);
+
+    assertThat(quota.used()).isEqualTo(40);
+    assertThat(quota.reserved()).isZero();
+  }
+
+  @Test
+  void settlesAReservationOnlyOnce() {
+    QuotaService.Reservation reservation = quotaService.reserve(InMemoryQuota.USER_ID, 50);
+
+    quotaService.release(reservation);
+    quotaService.release(reservation);
+
+    assertThat(quota.reserved()).isZero();
+    assertThatThrownBy(() -> quotaService.commit(reservation, 10)).isInstanceOf(IllegalStateException.class);
+    assertThat(quota.used()).isEqualTo(40);
+  }
+
+  @Test
+  void reinstatedBytesAreHeldRegardlessOfTheLimit() {
+    quotaService.reinstate(InMemoryQuota.USER_ID, 80);
+
+    assertThat(quota.reserved()).isEqualTo(80);
+    assertThatThrownBy(() -> quotaService.reserve(InMemoryQuota.USER_ID, 1))
+        .hasMessage("Not enough storage space");
+
+    quotaService.release(quotaService.held(InMemoryQuota.USER_ID, 80));
+    assertThat(quota.reserved()).isZero();
+  }
+
+  @Test
+  void clearsReservationsLeftOverFromBeforeAStart() {
+    quotaService.reserve(InMemoryQuota.USER_ID, 30);
+
+    quotaService.clearStaleReservations();
+
+    assertThat(quota.reserved()).isZero();
+    assertThat(quota.used()).isEqualTo(40);
+  }
+}
@@ -0,0 +1,390 @@
+package com.mydrive.demo.service;
+
+import com.mydrive.demo.entity.Directory;
+import com.mydrive.demo.entity.SharedItem;
+import com.mydrive.demo.entity.User;
+import com.mydrive.demo.repository.DirectoryRepository;
+import com.mydrive.demo.repository.FileRepository;
+import com.mydrive.demo.repository.SharedItemRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Limit;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SubtreeDeleterTest {
+  private static final long FILE_SIZE = 10;
+
+  private final InMemoryQuota quota = new InMemoryQuota(Long.MAX_VALUE, 0);
+  private final Map<Integer, Node> directories = new TreeMap<>();
+  private final Map<Integer, StoredFile> files = new TreeMap<>();
+  private final Set<Integer> sharedFiles = new HashSet<>();
+  private final Set<Integer> sharedDirectories = new HashSet<>();
+  private final List<String> buried = new ArrayList<>();
+  private final List<Integer> fileBatches = new ArrayList<>();
+  private final List<Set<Integer>> deletedLevels = new ArrayList<>();
+  private final User owner = new User();
+  // Runs between a step reading the subtree and locking it
+  private Runnable beforeLock = () -> { };
+  private int nextFileId = 1;
+  private SubtreeDeleter subtreeDeleter;
+
+  @BeforeEach
+  void setUp() {
+    owner.setId(InMemoryQuota.USER_ID);
+    subtreeDeleter = new SubtreeDeleter(directoryRepository(), fileRepository(), sharedItemRepository(),
+        new DirectoryTreeCache(null, new SimpleMeterRegistry(), 10), quota.quotaService(), new RecordingReclaimer(),
+        quota.transactionManager(), new CallerRunsExecutor());
+  }
+
+  @Test
+  void deletesTheSubtreeDeepestLevelFirst() {
+    directory(1, null);
+    directory(2, 1);
+    directory(3, 2);
+    directory(4, 2);
+    directory(5, 3);
+    directory(6, 1);
+    addFiles(3, 2);
+    addFiles(5, 1);
+    addFiles(6, 1);
+    sharedDirectories.addAll(List.of(2, 5));
+    sharedFiles.addAll(files.keySet());
+
+    assertThat(subtreeDeleter.delete(entity(2))).isTrue();
+
+    assertThat(directories.keySet()).containsExactly(1, 6);
+    assertThat(deletedLevels).containsExactly(Set.of(5), Set.of(3, 4), Set.of(2));
+    assertThat(files.values()).extracting(StoredFile::getDirectoryId).containsExactly(6);
+    assertThat(buried).hasSize(3);
+    assertThat(sharedDirectories).isEmpty();
+    assertThat(sharedFiles).containsExactlyElementsOf(files.keySet());
+    assertTotals(1, 1);
+    assertThat(quota.used()).isEqualTo(FILE_SIZE);
+  }
+
+  @Test
+  void removesLargeDirectoriesInBatchesInTheBackground() {
+    directory(1, null);
+    directory(2, 1);
+    addFiles(2, 2500);
+
+    assertThat(subtreeDeleter.delete(entity(2))).isFalse();
+
+    assertThat(fileBatches).containsExactly(1000, 1000, 500);
+    assertThat(directories.keySet()).containsExactly(1);
+    assertThat(files).isEmpty();
+    assertTotals(1, 0);
+    assertThat(quota.used()).isZero();
+  }
+
+  @Test
+  void followsTheDirectoryWhenItIsMovedBetweenSteps() {
+    directory(1, null);
+    directory(2, null);
+    directory(3, 1);
+    directory(4, 3);
+    addFiles(4, 1500);
+    beforeLock = () -> {
+      if (fileBatches.size() == 1) {
+        move(3, 2);
+        beforeLock = () -> { };
+      }
+    };
+
+    subtreeDeleter.delete(entity(3));
+
+    assertThat(directories.keySet()).containsExactly(1, 2);
+    assertThat(files).isEmpty();
+    assertTotals(1, 0);
+    assertTotals(2, 0);
+    assertThat(quota.used()).isZero();
+  }
+
+  @Test
+  void readsTheLevelAgainWhenPartOfItMovesBeforeItIsLocked() {
+    directory(1, null);
+    directory(2, 1);
+    directory(3, 2);
+    directory(4, 2);
+    addFiles(3, 1);
+    addFiles(4, 1);
+    beforeLock = () -> {
+      move(4, 1);
+      beforeLock = () -> { };
+    };
+
+    subtreeDeleter.delete(entity(2));
+
+    assertThat(directories.keySet()).containsExactly(1, 4);
+    assertThat(files.values()).extracting(StoredFile::getDirectoryId).containsExactly(4);
+    assertTotals(1, 1);
+  }
+
+  @Test
+  void givesUpOnADirectoryThatKeepsMoving() {
+    directory(1, null);
+    directory(2, null);
+    directory(3, 1);
+    addFiles(3, 1);
+    beforeLock = () -> move(3, directories.get(3).parentId == 1 ? 2 : 1);
+
+    assertThatThrownBy(() -> subtreeDeleter.delete(entity(3)))
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessageContaining("keeps changing");
+
+    assertThat(directories).containsKey(3);
+    assertThat(files).hasSize(1);
+  }
+
+  @Test
+  void stopsWhenTheDirectoryIsDeletedByAnotherRequest() {
+    directory(1, null);
+    directory(2, 1);
+    beforeLock = () -> directories.remove(2);
+
+    assertThat(subtreeDeleter.delete(entity(2))).isTrue();
+
+    assertThat(deletedLevels).isEmpty();
+  }
+
+  private void directory(Integer id, Integer parentId) {
+    String treePath = parentId == null ? "/" : directories.get(parentId).treePath + parentId + "/";
+    directories.put(id, new Node(id, parentId, treePath));
+  }
+
+  private void addFiles(Integer directoryId, int count) {
+    for (int i = 0; i < count; i++) {
+      int id = nextFileId++;
+      files.put(id, new StoredFile(id, "key-" + id, directoryId));
+    }
+    String treePath = directories.get(directoryId).treePath;
+    addToTotals(treePath + directoryId + "/", count);
+    quota.userRepository().addStorageUsed(InMemoryQuota.USER_ID, count * FILE_SIZE);
+  }
+
+  /**
+   * Move a directory under another one the way DirectoryService does:
+   * rebase its subtree and carry its totals from the old ancestors to the
+   * new ones
+   */
+  private void move(Integer id, Integer newParentId) {
+    Node moved = directories.get(id);
+    String oldPrefix = moved.treePath;
+    String newPrefix = directories.get(newParentId).treePath + newParentId + "/";
+    long count = moved.fileCount;
+    addToTotals(oldPrefix, -count);
+    for (Node node : directories.values()) {
+      if (node == moved || node.treePath.startsWith(oldPrefix + id + "/")) {
+        node.treePath = newPrefix + node.treePath.substring(oldPrefix.length());
+      }
+    }
+    moved.parentId = newParentId;
+    addToTotals(newPrefix, count);
+  }
+
+  private void addToTotals(String ancestorPath, long count) {
+    for (Integer ancestorId : Directory.ancestorIds(ancestorPath)) {
+      directories.get(ancestorId).fileCount += count;
+      directories.get(ancestorId).totalSize += count * FILE_SIZE;
+    }
+  }
+
+  private void assertTotals(Integer id, long count) {
+    assertThat(directories.get(id).fileCount).isEqualTo(count);
+    assertThat(directories.get(id).totalSize).isEqualTo(count * FILE_SIZE);
+  }
+
+  private Directory entity(Integer id) {
+    Node node = directories.get(id);
+    Directory directory = new Directory();
+    directory.setId(id);
+    directory.setOwner(owner);
+    directory.setTreePath(node.treePath);
+    directory.setFileCount(node.fileCount);
+    return directory;
+  }
+
+  /**
+   * Statements SubtreeDeleter issues, answered from the directories map
+   */
+  @SuppressWarnings("unchecked")
+  private DirectoryRepository directoryRepository() {
+    return (DirectoryRepository) Proxy.newProxyInstance(SubtreeDeleterTest.class.getClassLoader(),
+        new Class<?>[] { DirectoryRepository.class }, (proxy, method, args) -> switch (method.getName()) {
+          case "countByTreePathStartingWith" -> directories.values().stream()
+              .filter(node -> node.treePath.startsWith((String) args[0]))
+              .count();
+          case "findDeepestInSubtree" -> directories.values().stream()
+              .filter(node -> node.treePath.startsWith((String) args[0]))
+              .sorted(Comparator.comparing(Node::getDepth).reversed().thenComparing(Node::getId))
+              .limit((Integer) args[1])
+              .map(Node::copy)
+              .toList();
+          case "lockTotalsIn" -> {
+            beforeLock.run();
+            yield directories.values().stream()
+                .filter(node -> ((Collection<Integer>) args[0]).contains(node.id))
+                .map(Node::copy)
+                .toList();
+          }
+          case "findParentIdsIn" -> directories.values().stream()
+              .map(node -> node.parentId)
+              .filter(((Collection<Integer>) args[0])::contains)
+              .distinct()
+              .toList();
+          case "deleteByIdIn" -> {
+            Set<Integer> ids = new HashSet<>((Collection<Integer>) args[0]);
+            deletedLevels.add(ids);
+            yield (int) ids.stream().filter(id -> directories.remove(id) != null).count();
+          }
+          case "addToTotals" -> {
+            for (Integer id : (Collection<Integer>) args[0]) {
+              directories.get(id).totalSize += (Long) args[1];
+              directories.get(id).fileCount += (Long) args[2];
+            }
+            yield ((Collection<Integer>) args[0]).size();
+          }
+          default -> throw new UnsupportedOperationException(method.getName());
+        });
+  }
+
+  @SuppressWarnings("unchecked")
+  private FileRepository fileRepository() {
+    return (FileRepository) Proxy.newProxyInstance(SubtreeDeleterTest.class.getClassLoader(),
+        new Class<?>[] { FileRepository.class }, (proxy, method, args) -> switch (method.getName()) {
+          case "findStoredFilesIn" -> files.values().stream()
+              .filter(file -> ((Collection<Integer>) args[0]).contains(file.directoryId))
+              .limit(((Limit) args[1]).max())
+              .toList();
+          case "deleteByIdIn" -> {
+            Collection<Integer> ids = (Collection<Integer>) args[0];
+            fileBatches.add(ids.size());
+            yield (int) ids.stream().filter(id -> files.remove(id) != null).count();
+          }
+          default -> throw new UnsupportedOperationException(method.getName());
+        });
+  }
+
+  @SuppressWarnings("unchecked")
+  private SharedItemRepository sharedItemRepository() {
+    return (SharedItemRepository) Proxy.newProxyInstance(SubtreeDeleterTest.class.getClassLoader(),
+        new Class<?>[] { SharedItemRepository.class }, (proxy, method, args) -> {
+          if (!method.getName().equals("deleteByItemTypeAndItemIdIn")) {
+            throw new UnsupportedOperationException(method.getName());
+          }
+          Set<Integer> shared = args[0] == SharedItem.ItemType.file ? sharedFiles : sharedDirectories;
+          shared.removeAll((Collection<Integer>) args[1]);
+          return 0;
+        });
+  }
+
+  /**
+   * A directories row
+   */
+  private static final class Node implements DirectoryRepository.TotalsRow, DirectoryRepository.SubtreeRow {
+    private final Integer id;
+    private Integer parentId;
+    private String treePath;
+    private long totalSize;
+    private long fileCount;
+
+    private Node(Integer id, Integer parentId, String treePath) {
+      this.id = id;
+      this.parentId = parentId;
+      this.treePath = treePath;
+    }
+
+    private Node copy() {
+      Node copy = new Node(id, parentId, treePath);
+      copy.totalSize = totalSize;
+      copy.fileCount = fileCount;
+      return copy;
+    }
+
+    @Override
+    public Integer getId() {
+      return id;
+    }
+
+    @Override
+    public Integer getDepth() {
+      return Directory.ancestorIds(treePath).size();
+    }
+
+    @Override
+    public String getTreePath() {
+      return treePath;
+    }
+
+    @Override
+    public Long getTotalSize() {
+      return totalSize;
+    }
+
+    @Override
+    public Long getFileCount() {
+      return fileCount;
+    }
+  }
+
+  private record StoredFile(Integer id, String path, Integer directoryId) implements FileRepository.DirectoryFileRow {
+    @Override
+    public Integer getId() {
+      return id;
+    }
+
+    @Override
+    public String getPath() {
+      return path;
+    }
+
+    @Override
+    public Long getSize() {
+      return FILE_SIZE;
+    }
+
+    @Override
+    public Integer getDirectoryId() {
+      return directoryId;
+    }
+  }
+
+  /**
+   * Records the content it is handed instead of burying it
+   */
+  private final class RecordingReclaimer extends BlobReclaimer {
+    private RecordingReclaimer() {
+      super(null, null, null, null);
+    }
+
+    @Override
+    public void bury(Collection<String> keys) {
+      buried.addAll(keys);
+    }
+  }
+
+  /**
+   * Runs background deletes on the calling thread, so they are finished
+   * when delete returns
+   */
+  private static final class CallerRunsExecutor extends ThreadPoolTaskExecutor {
+    @Override
+    public void execute(Runnable task) {
+      task.run();
+    }
+  }
+}
@@ -0,0 +1,293 @@
+package com.mydrive.demo.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mydrive.demo.entity.Directory;
+import com.mydrive.demo.entity.File;
+import com.mydrive.demo.entity.User;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class UploadSessionServiceTest {
+  private static final int CHUNK_SIZE = 256 * 1024;
+  private static final long SIZE = 2L * CHUNK_SIZE + 100;
+
+  @TempDir
+  Path uploadDir;
+
+  private final InMemoryQuota quota = new InMemoryQuota(10L * CHUNK_SIZE, 0);
+  private final QuotaService quotaService = quota.quotaService();
+  private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+  private final byte[] content = content(SIZE);
+  private final User owner = new User();
+  private StubFileService fileService;
+  private UploadSessionService sessions;
+
+  @BeforeEach
+  void setUp() {
+    owner.setId(InMemoryQuota.USER_ID);
+    fileService = new StubFileService();
+    sessions = sessions(24);
+  }
+
+  @Test
+  void createReservesTheDeclaredSize() throws IOException {
+    UploadSession session = create(SIZE);
+
+    assertThat(session.reservedBytes()).isEqualTo(SIZE);
+    assertThat(session.chunkCount()).isEqualTo(3);
+    assertThat(quota.reserved()).isEqualTo(SIZE);
+    assertThat(sessions.find(session.id())).contains(session);
+  }
+
+  @Test
+  void createFailsWhenTheSizeDoesNotFitInTheQuota() {
+    assertThatThrownBy(() -> create(11L * CHUNK_SIZE))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("Not enough storage space");
+
+    assertThat(quota.reserved()).isZero();
+    assertThat(sessionDirectories()).isZero();
+  }
+
+  @Test
+  void createRejectsInvalidNamesAndChunkSizes() {
+    assertThatThrownBy(() -> sessions.create(owner, null, "../escape", null, SIZE, CHUNK_SIZE))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> sessions.create(owner, null, "data.bin", null, SIZE, CHUNK_SIZE - 1))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> sessions.create(owner, null, "data.bin", null, -1, CHUNK_SIZE))
+        .isInstanceOf(IllegalArgumentException.class);
+
+    assertThat(quota.reserved()).isZero();
+  }
+
+  @Test
+  void commitStoresChunksWrittenInAnyOrderAndConsumesTheReservation() throws IOException {
+    UploadSession session = create(SIZE);
+    writeChunks(session, 2, 0, 1);
+
+    assertThat(sessions.receivedChunks(session).cardinality()).isEqualTo(3);
+    File file = sessions.commit(session, owner, null);
+
+    assertThat(file.getSize()).isEqualTo(SIZE);
+    assertThat(fileService.stored).isEqualTo(content);
+    assertThat(quota.used()).isEqualTo(SIZE);
+    assertThat(quota.reserved()).isZero();
+    assertThat(sessions.find(session.id())).isEmpty();
+    assertThat(sessionDirectories()).isZero();
+  }
+
+  @Test
+  void rejectsChunksOfTheWrongLength() throws IOException {
+    UploadSession session = create(SIZE);
+
+    assertThatThrownBy(() -> sessions.writeChunk(session, 0, new ByteArrayInputStream(new byte[CHUNK_SIZE - 1])))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> sessions.writeChunk(session, 2, new ByteArrayInputStream(new byte[101])))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> sessions.writeChunk(session, 3, new ByteArrayInputStream(new byte[0])))
+        .isInstanceOf(IllegalArgumentException.class);
+
+    assertThat(sessions.receivedChunks(session).isEmpty()).isTrue();
+  }
+
+  @Test
+  void incompleteSessionsCannotBeCommitted() throws IOException {
+    UploadSession session = create(SIZE);
+    writeChunks(session, 0, 2);
+
+    assertThatThrownBy(() -> sessions.commit(session, owner, null))
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessageContaining("missing 1 chunk");
+
+    assertThat(quota.reserved()).isEqualTo(SIZE);
+    assertThat(fileService.stored).isNull();
+  }
+
+  @Test
+  void failedCommitReleasesTheReservationAndARetryReservesAgain() throws IOException {
+    UploadSession session = create(SIZE);
+    writeChunks(session, 0, 1, 2);
+    fileService.failure = new IllegalStateException("disk full");
+
+    assertThatThrownBy(() -> sessions.commit(session, owner, null)).hasMessage("disk full");
+
+    assertThat(quota.reserved()).isZero();
+    UploadSession failed = sessions.find(session.id()).orElseThrow();
+    assertThat(failed.reservedBytes()).isZero();
+
+    fileService.failure = null;
+    sessions.commit(failed, owner, null);
+
+    assertThat(quota.used()).isEqualTo(SIZE);
+    assertThat(quota.reserved()).isZero();
+  }
+
+  @Test
+  void abortReleasesTheReservation() throws IOException {
+    UploadSession session = create(SIZE);
+    writeChunks(session, 1);
+
+    sessions.abort(session);
+
+    assertThat(quota.reserved()).isZero();
+    assertThat(sessions.find(session.id())).isEmpty();
+    assertThat(sessionDirectories()).isZero();
+  }
+
+  @Test
+  void refusesToAbortASessionBeingCommitted() throws Exception {
+    UploadSession session = create(SIZE);
+    writeChunks(session, 0, 1, 2);
+    fileService.entered = new CountDownLatch(1);
+    fileService.proceed = new CountDownLatch(1);
+
+    CompletableFuture<File> commit = CompletableFuture.supplyAsync(() -> {
+      try {
+        return sessions.commit(session, owner, null);
+      } catch (IOException ex) {
+        throw new RuntimeException(ex);
+      }
+    });
+    assertThat(fileService.entered.await(5, TimeUnit.SECONDS)).isTrue();
+
+    assertThatThrownBy(() -> sessions.abort(session)).isInstanceOf(IllegalStateException.class);
+    assertThatThrownBy(() -> sessions.commit(session, owner, null)).isInstanceOf(IllegalStateException.class);
+
+    fileService.proceed.countDown();
+    commit.get(5, TimeUnit.SECONDS);
+    assertThat(quota.used()).isEqualTo(SIZE);
+    assertThat(quota.reserved()).isZero();
+  }
+
+  @Test
+  void expiredSessionsArePurgedAndReleasedOnce() throws IOException {
+    UploadSession session = create(SIZE);
+    UploadSession other = create(CHUNK_SIZE);
+
+    // A negative time to live puts every session past it
+    sessions(-1).purgeExpiredSessions();
+    // An abort that raced the purge finds the session gone and releases nothing
+    sessions.abort(session);
+
+    assertThat(sessions.find(session.id())).isEmpty();
+    assertThat(sessions.find(other.id())).isEmpty();
+    assertThat(quota.reserved()).isZero();
+  }
+
+  @Test
+  void sessionsThatAreNotExpiredAreKept() throws IOException {
+    UploadSession session = create(SIZE);
+
+    sessions.purgeExpiredSessions();
+
+    assertThat(sessions.find(session.id())).isPresent();
+    assertThat(quota.reserved()).isEqualTo(SIZE);
+  }
+
+  @Test
+  void reservationsOfOpenSessionsSurviveARestart() throws IOException {
+    UploadSession session = create(SIZE);
+    writeChunks(session, 0, 1, 2);
+    fileService.failure = new IllegalStateException("disk full");
+    UploadSession released = create(CHUNK_SIZE);
+    writeChunks(released, 0);
+    assertThatThrownBy(() -> sessions.commit(released, owner, null)).hasMessage("disk full");
+
+    quotaService.clearStaleReservations();
+    sessions(24).reinstateReservations();
+
+    assertThat(quota.reserved()).isEqualTo(SIZE);
+  }
+
+  private UploadSession create(long size) throws IOException {
+    return sessions.create(owner, null, "data.bin", "application/octet-stream", size, CHUNK_SIZE);
+  }
+
+  private void writeChunks(UploadSession session, int... indexes) throws IOException {
+    for (int index : indexes) {
+      int offset = (int) session.chunkOffset(index);
+      byte[] chunk = Arrays.copyOfRange(content, offset, offset + (int) session.chunkLength(index));
+      sessions.writeChunk(session, index, new ByteArrayInputStream(chunk));
+    }
+  }
+
+  private UploadSessionService sessions(long ttlHours) {
+    return new UploadSessionService(fileService, quotaService, objectMapper, uploadDir.toString(), CHUNK_SIZE,
+        ttlHours);
+  }
+
+  private long sessionDirectories() {
+    try (Stream<Path> entries = Files.list(uploadDir.resolve("sessions"))) {
+      return entries.count();
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private static byte[] content(long size) {
+    byte[] bytes = new byte[(int) size];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) (i * 31 + i / CHUNK_SIZE);
+    }
+    return bytes;
+  }
+
+  /**
+   * Records what would be stored and commits the reservation the way
+   * FileService does, in a transaction of the quota's manager; can fail or
+   * be held up on request
+   */
+  private final class StubFileService extends FileService {
+    private final TransactionTemplate transactionTemplate = new TransactionTemplate(quota.transactionManager());
+    private volatile RuntimeException failure;
+    private volatile CountDownLatch entered;
+    private volatile CountDownLatch proceed;
+    private volatile byte[] stored;
+
+    private StubFileService() {
+      super(null, null, null, null, null, null, quotaService, null, null, quota.transactionManager());
+    }
+
+    @Override
+    public File storeFile(InputStream content, String fileName, String contentType,
+        QuotaService.Reservation reservation, User owner, Directory directory) throws IOException {
+      byte[] bytes = content.readAllBytes();
+      if (entered != null) {
+        entered.countDown();
+        try {
+          proceed.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      return transactionTemplate.execute(status -> {
+        quotaService.commit(reservation, bytes.length);
+        stored = bytes;
+        File file = new File();
+        file.setName(fileName);
+        file.setSize((long) bytes.length);
+        return file;
+      });
+    }
+  }
+}
@@ -0,0 +1,198 @@
+package com.mydrive.demo.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mydrive.demo.entity.BlobChunk;
+import com.mydrive.demo.repository.BlobChunkRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
+
+class BlobStoreTest {
+  // Content sniffing reads this much up front, and so stores it in two chunks
+  private static final int CHUNK_SIZE = ContentSniffer.HEAD_LENGTH / 2;
+
+  @TempDir
+  Path root;
+
+  private final Map<String, Long> refCounts = new ConcurrentHashMap<>();
+  private final Set<String> failingReleases = new HashSet<>();
+  private LocalStorageBackend backend;
+  private BlobStore blobStore;
+
+  @BeforeEach
+  void setUp() {
+    backend = new LocalStorageBackend(root.toString());
+    blobStore = new BlobStore(chunkRepository(), new ObjectMapper(), backend,
+        new CompressionPolicy(false, 6, List.of()), CHUNK_SIZE);
+  }
+
+  @Test
+  void storesRepeatedChunksOnce() throws IOException {
+    StoredBlob blob = blobStore.store(content(chunk('a'), chunk('a'), chunk('a'), "xy"));
+
+    BlobManifest manifest = blobStore.readManifest(blob.key());
+    assertThat(manifest.chunks()).extracting(BlobManifest.Chunk::hash)
+        .containsExactly(hash(chunk('a')), hash(chunk('a')), hash(chunk('a')), hash("xy"));
+    assertThat(refCounts).containsOnly(entry(hash(chunk('a')), 3L), entry(hash("xy"), 1L));
+    assertThat(storedChunks()).containsExactlyInAnyOrder(hash(chunk('a')), hash("xy"));
+    assertThat(read(manifest)).isEqualTo(chunk('a') + chunk('a') + chunk('a') + "xy");
+    assertThat(blob.size()).isEqualTo(3 * CHUNK_SIZE + 2);
+  }
+
+  @Test
+  void keepsSharedChunksUntilTheLastBlobIsReleased() throws IOException {
+    StoredBlob first = blobStore.store(content(chunk('a'), chunk('b')));
+    StoredBlob second = blobStore.store(content(chunk('a'), chunk('c')));
+    assertThat(refCounts).containsEntry(hash(chunk('a')), 2L);
+
+    blobStore.release(first.key());
+
+    assertThat(blobStore.exists(first.key())).isFalse();
+    assertThat(refCounts).containsOnly(entry(hash(chunk('a')), 1L), entry(hash(chunk('c')), 1L));
+    assertThat(storedChunks()).containsExactlyInAnyOrder(hash(chunk('a')), hash(chunk('c')));
+    assertThat(read(blobStore.readManifest(second.key()))).isEqualTo(chunk('a') + chunk('c'));
+
+    blobStore.release(second.key());
+
+    assertThat(refCounts).isEmpty();
+    assertThat(storedChunks()).isEmpty();
+  }
+
+  @Test
+  void releasesABlobOnlyOnce() throws IOException {
+    StoredBlob first = blobStore.store(content(chunk('a'), chunk('b')));
+    blobStore.store(content(chunk('a')));
+
+    blobStore.release(first.key());
+    blobStore.release(first.key());
+
+    assertThat(refCounts).containsOnly(entry(hash(chunk('a')), 1L));
+    assertThat(storedChunks()).containsExactly(hash(chunk('a')));
+  }
+
+  @Test
+  void releasesAcquiredChunksWhenContentIsTooLarge() throws IOException {
+    blobStore.store(content(chunk('a')));
+
+    assertThatThrownBy(() -> blobStore.store(content(chunk('a'), chunk('b'), chunk('c')), 2 * CHUNK_SIZE, null, null))
+        .isInstanceOf(IOException.class)
+        .hasMessageContaining("exceeds the allowed size");
+
+    assertThat(refCounts).containsOnly(entry(hash(chunk('a')), 1L));
+    assertThat(storedChunks()).containsExactly(hash(chunk('a')));
+  }
+
+  @Test
+  void keepsTheWriteFailureWhenReleasingChunksFails() throws IOException {
+    blobStore.store(content(chunk('b')));
+    failingReleases.add(hash(chunk('a')));
+
+    assertThatThrownBy(() -> blobStore.store(content(chunk('a'), chunk('b'), chunk('c')), 2 * CHUNK_SIZE, null, null))
+        .isInstanceOf(IOException.class)
+        .hasMessageContaining("exceeds the allowed size")
+        .satisfies(ex -> assertThat(ex.getSuppressed()).singleElement()
+            .satisfies(suppressed -> assertThat(suppressed).hasMessageContaining("release failed")));
+
+    // The failed release does not stop the one after it
+    assertThat(refCounts).containsEntry(hash(chunk('b')), 1L);
+  }
+
+  @Test
+  void reportsEveryChunkThatCouldNotBeReleased() throws IOException {
+    StoredBlob blob = blobStore.store(content(chunk('a'), chunk('b'), chunk('c')));
+    failingReleases.add(hash(chunk('a')));
+    failingReleases.add(hash(chunk('c')));
+
+    assertThatThrownBy(() -> blobStore.release(blob.key()))
+        .isInstanceOf(IOException.class)
+        .satisfies(ex -> assertThat(ex.getSuppressed()).hasSize(2));
+
+    assertThat(refCounts).doesNotContainKey(hash(chunk('b')));
+    assertThat(blobStore.exists(blob.key())).isFalse();
+  }
+
+  /**
+   * One chunk's worth of a single character
+   */
+  private static String chunk(char c) {
+    return String.valueOf(c).repeat(CHUNK_SIZE);
+  }
+
+  private static String hash(String chunk) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return HexFormat.of().formatHex(digest.digest(chunk.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private Set<String> storedChunks() throws IOException {
+    try (Stream<String> keys = backend.list()) {
+      return new HashSet<>(keys.filter(key -> !BlobStore.isManifest(key)).toList());
+    }
+  }
+
+  private String read(BlobManifest manifest) throws IOException {
+    try (InputStream in = blobStore.open(manifest)) {
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+
+  private static InputStream content(String... parts) {
+    return new ByteArrayInputStream(String.join("", parts).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Reference counts kept in memory the way the blob_chunks statements keep
+   * them; releases of hashes in failingReleases throw
+   */
+  private BlobChunkRepository chunkRepository() {
+    return (BlobChunkRepository) Proxy.newProxyInstance(BlobStoreTest.class.getClassLoader(),
+        new Class<?>[] { BlobChunkRepository.class }, (proxy, method, args) -> {
+          String hash = (String) args[0];
+          return switch (method.getName()) {
+            case "acquire" -> {
+              refCounts.merge(hash, 1L, Long::sum);
+              yield null;
+            }
+            case "release" -> {
+              if (failingReleases.contains(hash)) {
+                throw new IllegalStateException("release failed for " + hash);
+              }
+              Long count = refCounts.get(hash);
+              if (count == null || count == 0) {
+                yield 0;
+              }
+              refCounts.put(hash, count - 1);
+              yield 1;
+            }
+            case "deleteIfUnreferenced" -> refCounts.remove(hash, 0L) ? 1 : 0;
+            case "findById" -> Optional.ofNullable(refCounts.get(hash))
+                .map(count -> new BlobChunk(hash, (long) CHUNK_SIZE, count, null));
+            default -> throw new UnsupportedOperationException(method.getName());
+          };
+        });
+  }
+}
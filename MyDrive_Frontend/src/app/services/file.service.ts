@@ -1,5 +1,5 @@
 import { Injectable } from '@angular/core';
-import { HttpClient, HttpEvent, HttpRequest } from '@angular/common/http';
+import { HttpClient, HttpEvent, HttpHeaders, HttpRequest } from '@angular/common/http';
 import { Observable } from 'rxjs';
 
 @Injectable({
@@ -46,7 +46,9 @@ export class FileService {
       formData.append('directoryId', directoryId.toString());
     }
 
+    // Lets the server reserve exactly the file's size of the quota
     const req = new HttpRequest('POST', `${this.apiUrl}/upload`, formData, {
+      headers: new HttpHeaders({ 'X-File-Size': file.size.toString() }),
       reportProgress: true,
       responseType: 'json'
     });